@@ -0,0 +1,359 @@
+/* This class computes aggregates over the records of a table in parallel on
+ * a ForkJoinPool (the common pool unless one is given). The table's records
+ * are read through a snapshot opened for each aggregate, as a Spliterator 
+ * (see Table.spliterator) which is split in half recursively until parts are
+ * small enough to scan, each part is scanned on its own task, and the 
+ * partial results are merged as the tasks join; writes made meanwhile are
+ * not seen. Records can be narrowed by conditions as in Query.java. 
+ * Aggregates of a column (count, sum, min, max and average) are gathered 
+ * together in a Stats object, overall or grouped by the values of another
+ * column; fields that are not numbers are left out of a column's Stats. The
+ * sum of an INT column is kept exactly, as a long.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.io.*;
+
+class Aggregation {
+   static final int PARTITION_SIZE = 4096;
+
+   private Table table;
+   private List<Predicate<Record>> conditions;
+   private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+   private static final String noSuchColumn = "No such column exists in table.";
+   private static final String notIntColumn = "Column is not of type INT.";
+
+   Aggregation(Table table) {
+      this.table = table;
+      this.conditions = new ArrayList<Predicate<Record>>();
+   }
+
+   // only aggregates records whose field in column compares to value as op says
+   Aggregation where(String column, Operator op, String value) {
+      int idx = columnIndex(column);
+      FieldType type = this.table.getColumnType(idx);
+      this.conditions.add(data -> op.test(type, data.getField(idx), value));
+      return this;
+   }
+
+   void setPool(ForkJoinPool pool) {
+      this.pool = pool;
+   }
+
+   // number of records matching the conditions
+   long count() {
+      return scan(() -> new long[1],
+         (count, data) -> count[0]++,
+         (a, b) -> { a[0] += b[0]; return a; })[0];
+   }
+
+   // an INT column's sum throws ArithmeticException if it overflows a long
+   Stats stats(String column) {
+      int idx = columnIndex(column);
+      FieldType type = this.table.getColumnType(idx);
+      return scan(() -> new Stats(type),
+         (stats, data) -> stats.add(data.getField(idx)),
+         Stats::merge);
+   }
+
+   // stats of column for each value of groupColumn
+   Map<String,Stats> groupBy(String groupColumn, String column) {
+      int group = columnIndex(groupColumn);
+      int idx = columnIndex(column);
+      FieldType type = this.table.getColumnType(idx);
+      return scan(HashMap<String,Stats>::new,
+         (groups, data) -> groups.computeIfAbsent(data.getField(group),
+            key -> new Stats(type)).add(data.getField(idx)),
+         (a, b) -> {
+            for (Map.Entry<String,Stats> entry : b.entrySet()) {
+               a.merge(entry.getKey(), entry.getValue(), Stats::merge);
+            }
+            return a;
+         });
+   }
+
+   // count, sum, min, max and average of the numeric values of a column
+   static class Stats {
+      private final boolean exact;
+      private long count = 0;
+      private long longSum = 0;
+      private double sum = 0;
+      private double min = Double.POSITIVE_INFINITY;
+      private double max = Double.NEGATIVE_INFINITY;
+
+      // the values of an INT column are summed exactly
+      Stats(FieldType type) {
+         this.exact = type == FieldType.INT;
+      }
+
+      long getCount() {
+         return this.count;
+      }
+
+      double getSum() {
+         return this.exact ? (double) this.longSum : this.sum;
+      }
+
+      // the exact sum of an INT column
+      long getLongSum() {
+         if (!this.exact) {
+            System.out.println(notIntColumn);
+            throw new IllegalArgumentException();
+         }
+         return this.longSum;
+      }
+
+      // infinite if there are no values, as is max
+      double getMin() {
+         return this.min;
+      }
+
+      double getMax() {
+         return this.max;
+      }
+
+      // NaN if there are no values
+      double getAverage() {
+         return this.count == 0 ? Double.NaN : getSum() / this.count;
+      }
+
+      void add(String field) {
+         double value;
+         try {
+            if (this.exact) {
+               long exactValue = Long.parseLong(field.trim());
+               this.longSum = Math.addExact(this.longSum, exactValue);
+               value = exactValue;
+            } else {
+               value = Double.parseDouble(field.trim());
+               this.sum += value;
+            }
+         } catch (NumberFormatException e) {
+            return;
+         }
+         this.count++;
+         this.min = Math.min(this.min, value);
+         this.max = Math.max(this.max, value);
+      }
+
+      Stats merge(Stats other) {
+         this.count += other.count;
+         this.longSum = Math.addExact(this.longSum, other.longSum);
+         this.sum += other.sum;
+         this.min = Math.min(this.min, other.min);
+         this.max = Math.max(this.max, other.max);
+         return this;
+      }
+   }
+
+   // --- helper methods ---
+
+   // folds the matching records into a result, through a snapshot held 
+   // open until the scan is done
+   private <T> T scan(Supplier<T> start, BiConsumer<T,Record> accumulator,
+         BinaryOperator<T> combiner) {
+      try (Snapshot snapshot = this.table.snapshot()) {
+         return this.pool.invoke(new Scan<T>(this.table.spliterator(snapshot), 
+            start, accumulator, combiner));
+      }
+   }
+
+   // folds the matching records of a part into a result, splitting the part
+   // into subtasks while it is larger than PARTITION_SIZE
+   private class Scan<T> extends RecursiveTask<T> {
+      private static final long serialVersionUID = 1L;
+
+      private final Spliterator<Record> part;
+      private final Supplier<T> start;
+      private final BiConsumer<T,Record> accumulator;
+      private final BinaryOperator<T> combiner;
+
+      Scan(Spliterator<Record> part, Supplier<T> start, BiConsumer<T,Record> accumulator,
+            BinaryOperator<T> combiner) {
+         this.part = part;
+         this.start = start;
+         this.accumulator = accumulator;
+         this.combiner = combiner;
+      }
+
+      @Override
+      protected T compute() {
+         if (this.part.estimateSize() > PARTITION_SIZE) {
+            Spliterator<Record> half = this.part.trySplit();
+            if (half != null) {
+               Scan<T> left = new Scan<T>(half, this.start, this.accumulator, this.combiner);
+               left.fork();
+               T right = compute();
+               return this.combiner.apply(left.join(), right);
+            }
+         }
+         T result = this.start.get();
+         this.part.forEachRemaining(data -> {
+            if (matches(data)) {
+               this.accumulator.accept(result, data);
+            }
+         });
+         return result;
+      }
+   }
+
+   private boolean matches(Record data) {
+      for (Predicate<Record> entry : this.conditions) {
+         if (!entry.test(data)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private int columnIndex(String column) {
+      for (int i = 0; i < this.table.getColumnSize(); i++) {
+         if (this.table.getColumnName(i).equals(column)) {
+            return i;
+         }
+      }
+      System.out.println(noSuchColumn);
+      throw new IllegalArgumentException();
+   }
+
+   // --- testing ---
+
+   private static Table testTable(int size) {
+      Table test = new Table(
+         "events",
+         new ColumnID("key", true),
+         new ColumnID("hour", false, FieldType.INT),
+         new ColumnID("latency", false, FieldType.FLOAT)
+      );
+      for (int i = 0; i < size; i++) {
+         test.add(new Record("e" + i, Integer.toString(i % 24),
+            Double.toString(i % 100)));
+      }
+      return test;
+   }
+
+   private void testAggregates() {
+      Table test = testTable(100000);
+      Aggregation all = new Aggregation(test);
+      assert(all.count() == 100000);
+      Stats latency = all.stats("latency");
+      assert(latency.getCount() == 100000);
+      assert(latency.getSum() == 1000.0 * 4950);
+      assert(latency.getMin() == 0);
+      assert(latency.getMax() == 99);
+      assert(latency.getAverage() == 49.5);
+      Aggregation morning = new Aggregation(test).where("hour", Operator.LT, "12");
+      Map<String,Stats> hours = morning.groupBy("hour", "latency");
+      assert(hours.size() == 12);
+      long total = 0;
+      for (Stats entry : hours.values()) {
+         total += entry.getCount();
+      }
+      assert(total == morning.count());
+      // a single-threaded pool gives the same answers
+      Aggregation serial = new Aggregation(test).where("hour", Operator.LT, "12");
+      serial.setPool(new ForkJoinPool(1));
+      Stats expected = serial.groupBy("hour", "latency").get("3");
+      assert(expected.getSum() == hours.get("3").getSum());
+      assert(expected.getCount() == hours.get("3").getCount());
+      // columnar tables and non-numeric fields
+      test.setStorageMode(StorageMode.COLUMNAR);
+      assert(new Aggregation(test).stats("latency").getMax() == 99.0);
+      Stats keys = new Aggregation(test).stats("key");
+      assert(keys.getCount() == 0);
+      assert(Double.isNaN(keys.getAverage()));
+   }
+
+   private void testExactSums() {
+      Table test = new Table("big", new ColumnID("key", true), 
+         new ColumnID("n", false, FieldType.INT));
+      // 2^53 + 1 is not a double, so a double sum would lose the 1s
+      long large = (1L << 53) + 1;
+      for (int i = 0; i < 10000; i++) {
+         test.add(new Record("k" + i, i < 2 ? Long.toString(large) : "1"));
+      }
+      Stats n = new Aggregation(test).stats("n");
+      assert(n.getLongSum() == 2 * large + 9998);
+      assert(n.getMax() == (double) large);
+      Map<String,Stats> grouped = new Aggregation(test).groupBy("n", "n");
+      assert(grouped.get(Long.toString(large)).getLongSum() == 2 * large);
+      // overflowing a long is an error, not a wrapped sum
+      test.add(new Record("max", Long.toString(Long.MAX_VALUE)));
+      boolean caught = false;
+      try { new Aggregation(test).stats("n"); }
+      catch (ArithmeticException e) { caught = true; }
+      assert(caught == true);
+   }
+
+   private void testSnapshotScans() {
+      Table test = testTable(10000);
+      Snapshot before = test.snapshot();
+      for (int i = 0; i < 5000; i++) {
+         test.delete("e" + i);
+      }
+      test.update("e9999", 2, "1000");
+      // aggregates read the table as it is, though old versions are kept
+      Aggregation all = new Aggregation(test);
+      assert(all.count() == 5000);
+      assert(all.stats("latency").getMax() == 1000);
+      // a pass over a snapshot sees the table as it was, however it's split
+      Spliterator<Record> part = test.spliterator(before);
+      Spliterator<Record> half = part.trySplit();
+      test.delete("e9998");
+      long[] seen = new long[1];
+      double[] max = new double[1];
+      for (Spliterator<Record> entry : List.of(half, part)) {
+         entry.forEachRemaining(data -> {
+            seen[0]++;
+            max[0] = Math.max(max[0], Double.parseDouble(data.getField(2)));
+         });
+      }
+      assert(seen[0] == 10000);
+      assert(max[0] == 99);
+      before.close();
+   }
+
+   private void testInvalidAggregates() {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      boolean caught = false;
+      try { new Aggregation(testTable(1)).stats("size"); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      try { new Aggregation(testTable(1)).stats("latency").getLongSum(); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void runTests() {
+      testAggregates();
+      testExactSums();
+      testSnapshotScans();
+      testInvalidAggregates();
+   }
+
+   public static void main(String[] args) {
+      Aggregation program = new Aggregation(new Table());
+      program.runTests();
+   }
+}
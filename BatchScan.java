@@ -0,0 +1,196 @@
+/* This class runs full-table scans a batch at a time (see ColumnBatch.java)
+ * instead of a record at a time, for analytics over whole tables. A scan
+ * reads only the columns it names plus those its conditions test; each
+ * batch has every condition applied to its selection vector in turn before
+ * it is passed on, and count and sum are computed over the vectors without
+ * building a Record per row. Columns are named as in Query.java.
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.io.*;
+
+class BatchScan {
+   private Table table;
+   private Set<Integer> columns;
+   private List<Integer> filterColumns;
+   private List<Operator> filterOps;
+   private List<String> filterValues;
+   private int batchSize = ColumnBatch.DEFAULT_CAPACITY;
+
+   private static final String noSuchColumn = "No such column exists in table.";
+   private static final String invalidSize = "Invalid batch size.";
+
+   BatchScan(Table table, String... columns) {
+      this.table = table;
+      this.columns = new LinkedHashSet<Integer>();
+      this.filterColumns = new ArrayList<Integer>();
+      this.filterOps = new ArrayList<Operator>();
+      this.filterValues = new ArrayList<String>();
+      for (String entry : columns) {
+         this.columns.add(columnIndex(entry));
+      }
+   }
+
+   // keeps rows whose field in column compares to value as op says
+   BatchScan where(String column, Operator op, String value) {
+      int idx = columnIndex(column);
+      this.columns.add(idx);
+      this.filterColumns.add(idx);
+      this.filterOps.add(op);
+      this.filterValues.add(value);
+      return this;
+   }
+
+   BatchScan batchSize(int batchSize) {
+      if (batchSize <= 0) {
+         System.out.println(invalidSize);
+         throw new IllegalArgumentException();
+      }
+      this.batchSize = batchSize;
+      return this;
+   }
+
+   // passes each batch, filtered by the conditions, to consumer; the batch is
+   // reused, so consumer shouldn't keep it
+   void forEach(Consumer<ColumnBatch> consumer) {
+      int[] scanned = new int[this.columns.size()];
+      int i = 0;
+      for (int entry : this.columns) {
+         scanned[i++] = entry;
+      }
+      ColumnBatch batch = new ColumnBatch(this.table, this.batchSize, scanned);
+      this.table.scanBatches(batch, current -> {
+         for (int j = 0; j < this.filterColumns.size(); j++) {
+            current.filter(this.filterColumns.get(j), this.filterOps.get(j),
+               this.filterValues.get(j));
+         }
+         consumer.accept(current);
+      });
+   }
+
+   // number of rows matching the conditions
+   long count() {
+      long[] count = new long[1];
+      forEach(batch -> count[0] += batch.getSelectedCount());
+      return count[0];
+   }
+
+   // sum of an INT or FLOAT column over the rows matching the conditions
+   double sum(String column) {
+      int idx = columnIndex(column);
+      this.columns.add(idx);
+      boolean ints = this.table.getColumnType(idx) == FieldType.INT;
+      double[] sum = new double[1];
+      forEach(batch -> sum[0] += ints ? batch.sumInts(idx) : batch.sumDoubles(idx));
+      return sum[0];
+   }
+
+   // --- helper methods ---
+
+   private int columnIndex(String column) {
+      for (int i = 0; i < this.table.getColumnSize(); i++) {
+         if (this.table.getColumnName(i).equals(column)) {
+            return i;
+         }
+      }
+      System.out.println(noSuchColumn);
+      throw new IllegalArgumentException();
+   }
+
+   // --- testing ---
+
+   private static Table testTable(int size) {
+      Table test = new Table(
+         "sales",
+         new ColumnID("key", true),
+         new ColumnID("region", false),
+         new ColumnID("units", false, FieldType.INT),
+         new ColumnID("price", false, FieldType.FLOAT)
+      );
+      for (int i = 0; i < size; i++) {
+         test.add(new Record("s" + i, i % 3 == 0 ? "north" : "south",
+            Integer.toString(i % 10), "2.5"));
+      }
+      return test;
+   }
+
+   private void testScans() {
+      Table test = testTable(5000);
+      // batches smaller than the table, and a partial last batch
+      assert(new BatchScan(test).batchSize(300).count() == 5000);
+      assert(new BatchScan(test).where("units", Operator.GE, "5").count() == 2500);
+      assert(new BatchScan(test).sum("units") == 500 * 45);
+      assert(new BatchScan(test)
+         .where("region", Operator.EQ, "north")
+         .where("units", Operator.LT, "3")
+         .sum("price") == 2.5 * countNorthBelow(5000, 3));
+      // the same answers straight from a column store
+      test.setStorageMode(StorageMode.COLUMNAR);
+      assert(new BatchScan(test).batchSize(300).count() == 5000);
+      assert(new BatchScan(test).sum("units") == 500 * 45);
+      assert(new BatchScan(test)
+         .where("region", Operator.EQ, "north")
+         .where("units", Operator.LT, "3")
+         .sum("price") == 2.5 * countNorthBelow(5000, 3));
+      // consumers see only the selected rows' positions
+      long[] seen = new long[1];
+      new BatchScan(test, "key").where("units", Operator.EQ, "9").forEach(batch -> {
+         String[] keys = batch.getStrings(0);
+         for (int i = 0; i < batch.getSelectedCount(); i++) {
+            assert(keys[batch.getSelection()[i]].endsWith("9"));
+            seen[0]++;
+         }
+      });
+      assert(seen[0] == 500);
+   }
+
+   private static long countNorthBelow(int size, int units) {
+      long count = 0;
+      for (int i = 0; i < size; i++) {
+         if (i % 3 == 0 && i % 10 < units) {
+            count++;
+         }
+      }
+      return count;
+   }
+
+   private void testInvalidScans() {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      Table test = testTable(10);
+      boolean caught = false;
+      try { new BatchScan(test, "weight"); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      try { new BatchScan(test).batchSize(0); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      try { new BatchScan(test).sum("region"); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void runTests() {
+      testScans();
+      testInvalidScans();
+   }
+
+   public static void main(String[] args) {
+      BatchScan program = new BatchScan(new Table());
+      program.runTests();
+   }
+}
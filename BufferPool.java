@@ -0,0 +1,533 @@
+/* This class caches the pages of page files (see PageFile.java) in a fixed
+ * number of frames, so that reading a record of a large on-disk table reads
+ * only the pages it needs, and pages in use stay in memory without the whole
+ * file being. A page is pinned while it is used and unpinned after, marked
+ * dirty if it was changed; pinned pages are never evicted. When a page is
+ * needed and no frame is free, frames are swept in clock order: a frame used
+ * since the hand last passed gets a second chance, and the first one that
+ * hasn't is evicted, being written back first if it is dirty. Dirty pages are
+ * also written back in the background once they are unpinned, so evictions
+ * seldom have to wait for a write. One pool can be shared by many files.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.io.*;
+
+class BufferPool implements Closeable {
+   static final int DEFAULT_FRAMES = 256;
+
+   private final Frame[] frames;
+   private final HashMap<PageKey,Frame> pageTable = new HashMap<>();
+   private int hand = 0;
+   private long hits = 0;
+   private long misses = 0;
+   private long evictions = 0;
+   private long writes = 0;
+   private boolean writeBackQueued = false;
+   private IOException writeFailure;
+   private ExecutorService writer;
+   private boolean closed = false;
+
+   private static final String noFrames = "Buffer pool needs at least one frame.";
+   private static final String allPinned = "Every buffer frame is pinned.";
+   private static final String notPinned = "Page is not pinned.";
+   private static final String closedPool = "Buffer pool has been closed.";
+
+   BufferPool() {
+      this(DEFAULT_FRAMES);
+   }
+
+   BufferPool(int frameCount) {
+      if (frameCount < 1) {
+         System.out.println(noFrames);
+         throw new IllegalArgumentException();
+      }
+      this.frames = new Frame[frameCount];
+      for (int i = 0; i < frameCount; i++) {
+         this.frames[i] = new Frame();
+      }
+   }
+
+   // the frame holding page pageNo of file, reading the page if it isn't
+   // cached; the frame is kept until it is unpinned
+   synchronized Frame pin(PageFile file, int pageNo) throws IOException {
+      return pin(file, pageNo, true);
+   }
+
+   // as pin(), for a page just added to file: its frame is zeroed, not read
+   synchronized Frame pinNew(PageFile file, int pageNo) throws IOException {
+      return pin(file, pageNo, false);
+   }
+
+   synchronized void unpin(Frame frame, boolean dirty) {
+      if (frame.pins == 0) {
+         System.out.println(notPinned);
+         throw new IllegalArgumentException();
+      }
+      frame.pins--;
+      if (dirty) {
+         frame.dirty = true;
+         frame.version++;
+      }
+      if (frame.pins == 0 && frame.dirty) {
+         scheduleWriteBack();
+      }
+   }
+
+   // writes every dirty page of file now; throws if a background write of
+   // the pool has failed since the last flush
+   synchronized void flush(PageFile file) throws IOException {
+      awaitWrites(file);
+      IOException failure = this.writeFailure;
+      this.writeFailure = null;
+      for (Frame frame : this.frames) {
+         if (frame.file == file && frame.dirty) {
+            writeFrame(frame);
+         }
+      }
+      if (failure != null) {
+         throw failure;
+      }
+   }
+
+   // flushes the pages of file and frees their frames, before file closes
+   synchronized void discard(PageFile file) throws IOException {
+      flush(file);
+      for (Frame frame : this.frames) {
+         if (frame.file == file) {
+            this.pageTable.remove(new PageKey(file, frame.pageNo));
+            frame.clear();
+         }
+      }
+   }
+
+   int getFrameCount() {
+      return this.frames.length;
+   }
+
+   synchronized int getPinnedCount() {
+      int pinned = 0;
+      for (Frame frame : this.frames) {
+         pinned += frame.pins > 0 ? 1 : 0;
+      }
+      return pinned;
+   }
+
+   synchronized int getDirtyCount() {
+      int dirty = 0;
+      for (Frame frame : this.frames) {
+         dirty += frame.dirty ? 1 : 0;
+      }
+      return dirty;
+   }
+
+   // pins of cached pages, pins which had to read or zero a frame, pages
+   // evicted, and pages written back
+   synchronized long getHits() {
+      return this.hits;
+   }
+
+   synchronized long getMisses() {
+      return this.misses;
+   }
+
+   synchronized long getEvictions() {
+      return this.evictions;
+   }
+
+   synchronized long getWrites() {
+      return this.writes;
+   }
+
+   // writes back every dirty page and stops the background writer; files
+   // using the pool should be closed first
+   @Override
+   public void close() throws IOException {
+      ExecutorService current;
+      synchronized (this) {
+         if (this.closed) {
+            return;
+         }
+         this.closed = true;
+         current = this.writer;
+      }
+      if (current != null) {
+         current.shutdown();
+         try {
+            current.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+      synchronized (this) {
+         for (Frame frame : this.frames) {
+            if (frame.dirty) {
+               writeFrame(frame);
+            }
+         }
+      }
+   }
+
+   // --- helper methods ---
+
+   // must hold this pool's monitor
+   private Frame pin(PageFile file, int pageNo, boolean read) throws IOException {
+      checkIfOpen();
+      PageKey key = new PageKey(file, pageNo);
+      Frame frame = this.pageTable.get(key);
+      if (frame != null) {
+         this.hits++;
+         if (!read) {
+            Arrays.fill(frame.page.array(), (byte) 0);
+         }
+      } else {
+         this.misses++;
+         frame = findVictim();
+         if (frame.file != null) {
+            if (frame.dirty) {
+               writeFrame(frame);
+            }
+            this.pageTable.remove(new PageKey(frame.file, frame.pageNo));
+            frame.clear();
+            this.evictions++;
+         }
+         if (read) {
+            file.readPage(pageNo, frame.page);
+         } else {
+            Arrays.fill(frame.page.array(), (byte) 0);
+         }
+         frame.file = file;
+         frame.pageNo = pageNo;
+         this.pageTable.put(key, frame);
+      }
+      frame.pins++;
+      frame.referenced = true;
+      return frame;
+   }
+
+   // sweeps the clock hand to a free frame, or an unpinned one not used
+   // since the hand last passed it; waits if the only candidates are being
+   // written back
+   private Frame findVictim() {
+      while (true) {
+         boolean writing = false;
+         for (int step = 0; step < 2 * this.frames.length; step++) {
+            Frame frame = this.frames[this.hand];
+            this.hand = (this.hand + 1) % this.frames.length;
+            if (frame.file == null) {
+               return frame;
+            }
+            if (frame.pins > 0) {
+               continue;
+            }
+            if (frame.writing) {
+               writing = true;
+               continue;
+            }
+            if (frame.referenced) {
+               frame.referenced = false;
+               continue;
+            }
+            return frame;
+         }
+         if (!writing) {
+            System.out.println(allPinned);
+            throw new IllegalArgumentException();
+         }
+         awaitAnyWrite();
+      }
+   }
+
+   // must hold this pool's monitor, with no background write of the frame
+   private void writeFrame(Frame frame) throws IOException {
+      frame.file.writePage(frame.pageNo, frame.page);
+      frame.dirty = false;
+      this.writes++;
+   }
+
+   // must hold this pool's monitor
+   private void scheduleWriteBack() {
+      if (this.writeBackQueued || this.closed) {
+         return;
+      }
+      if (this.writer == null) {
+         this.writer = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "buffer-writer");
+            thread.setDaemon(true);
+            return thread;
+         });
+      }
+      this.writeBackQueued = true;
+      this.writer.execute(this::writeBack);
+   }
+
+   // writes dirty unpinned pages from copies, so that the pool can be used
+   // meanwhile; a page changed while it was written stays dirty
+   private void writeBack() {
+      while (true) {
+         Frame frame;
+         PageFile file;
+         int pageNo;
+         long version;
+         ByteBuffer copy;
+         synchronized (this) {
+            frame = nextToWrite();
+            if (frame == null) {
+               this.writeBackQueued = false;
+               return;
+            }
+            frame.writing = true;
+            file = frame.file;
+            pageNo = frame.pageNo;
+            version = frame.version;
+            copy = ByteBuffer.wrap(frame.page.array().clone());
+         }
+         IOException failure = null;
+         try {
+            file.writePage(pageNo, copy);
+         } catch (IOException e) {
+            failure = e;
+         }
+         synchronized (this) {
+            frame.writing = false;
+            notifyAll();
+            if (failure != null) {
+               // flush() writes the page again and reports the failure
+               if (this.writeFailure == null) {
+                  this.writeFailure = failure;
+               }
+               this.writeBackQueued = false;
+               return;
+            }
+            this.writes++;
+            if (frame.version == version) {
+               frame.dirty = false;
+            }
+         }
+      }
+   }
+
+   private Frame nextToWrite() {
+      if (this.closed) {
+         return null;
+      }
+      for (Frame frame : this.frames) {
+         if (frame.dirty && frame.pins == 0 && !frame.writing) {
+            return frame;
+         }
+      }
+      return null;
+   }
+
+   private void awaitWrites(PageFile file) {
+      boolean writing = true;
+      while (writing) {
+         writing = false;
+         for (Frame frame : this.frames) {
+            writing |= frame.file == file && frame.writing;
+         }
+         if (writing) {
+            awaitAnyWrite();
+         }
+      }
+   }
+
+   private void awaitAnyWrite() {
+      try {
+         wait();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private void checkIfOpen() {
+      if (this.closed) {
+         System.out.println(closedPool);
+         throw new IllegalArgumentException();
+      }
+   }
+
+   // a page of a file held in the pool
+   static class Frame {
+      private final ByteBuffer page = ByteBuffer.allocate(PageFile.PAGE_SIZE);
+      private PageFile file;
+      private int pageNo;
+      private int pins = 0;
+      private boolean referenced = false;
+      private boolean dirty = false;
+      private boolean writing = false;
+      private long version = 0;
+
+      ByteBuffer getPage() {
+         return this.page;
+      }
+
+      int getPageNo() {
+         return this.pageNo;
+      }
+
+      private void clear() {
+         this.file = null;
+         this.pins = 0;
+         this.referenced = false;
+         this.dirty = false;
+      }
+   }
+
+   // files are told apart by identity, as two may share a path over time
+   private static final class PageKey {
+      private final PageFile file;
+      private final int pageNo;
+
+      PageKey(PageFile file, int pageNo) {
+         this.file = file;
+         this.pageNo = pageNo;
+      }
+
+      @Override
+      public boolean equals(Object other) {
+         if (!(other instanceof PageKey)) {
+            return false;
+         }
+         PageKey key = (PageKey) other;
+         return key.file == this.file && key.pageNo == this.pageNo;
+      }
+
+      @Override
+      public int hashCode() {
+         return System.identityHashCode(this.file) * 31 + this.pageNo;
+      }
+   }
+
+   // --- testing ---
+
+   private static Table testSchema() {
+      return new Table("pooled", new ColumnID("key", true), new ColumnID("v"));
+   }
+
+   // a page file of pages data pages, each holding one record
+   private static PageFile testFile(Path dir, String name, BufferPool pool, int pages)
+         throws IOException {
+      PageFile file = new PageFile(dir.resolve(name).toString(), testSchema(), pool);
+      char[] wide = new char[PageFile.PAGE_SIZE / 2];
+      Arrays.fill(wide, 'w');
+      for (int i = 0; i < pages; i++) {
+         file.insert(new Record("k" + i, new String(wide)));
+      }
+      return file;
+   }
+
+   private void testClockEviction(Path dir) throws IOException {
+      BufferPool test = new BufferPool(4);
+      PageFile file = testFile(dir, "clock.dbp", test, 6);
+      file.flush();
+      assert(test.getDirtyCount() == 0);
+      long misses = test.getMisses();
+      Frame first = test.pin(file, 1);
+      assert(first.getPageNo() == 1);
+      assert(test.pin(file, 1) == first);
+      assert(test.getPinnedCount() == 1);
+      test.unpin(first, false);
+      test.unpin(first, false);
+      // reading every page through four frames evicts the older ones
+      for (int pageNo = 1; pageNo <= 6; pageNo++) {
+         test.unpin(test.pin(file, pageNo), false);
+      }
+      assert(test.getEvictions() > 0);
+      assert(test.getMisses() - misses <= 7);
+      long hits = test.getHits();
+      // a pinned page is never evicted
+      Frame kept = test.pin(file, 6);
+      assert(test.getHits() == hits + 1);
+      for (int pageNo = 1; pageNo <= 5; pageNo++) {
+         test.unpin(test.pin(file, pageNo), false);
+      }
+      assert(test.pin(file, 6) == kept);
+      test.unpin(kept, false);
+      test.unpin(kept, false);
+      file.close();
+      test.close();
+   }
+
+   private void testWriteBack(Path dir) throws IOException, InterruptedException {
+      BufferPool test = new BufferPool(2);
+      PageFile file = testFile(dir, "written.dbp", test, 4);
+      // changed pages are written in the background once unpinned
+      long rid = file.find("k3");
+      file.update(rid, new Record("k3", "changed"));
+      for (int wait = 0; wait < 500 && test.getDirtyCount() > 0; wait++) {
+         Thread.sleep(10);
+      }
+      assert(test.getDirtyCount() == 0);
+      assert(test.getWrites() > 0);
+      // and read back after being evicted
+      for (int pageNo = 1; pageNo <= 4; pageNo++) {
+         test.unpin(test.pin(file, pageNo), false);
+      }
+      assert(file.read(rid).getField(1).equals("changed"));
+      file.close();
+      PageFile reopened = new PageFile(dir.resolve("written.dbp").toString(), test);
+      assert(reopened.read(reopened.find("k3")).getField(1).equals("changed"));
+      assert(reopened.getRecordSize() == 4);
+      reopened.close();
+      test.close();
+   }
+
+   private void testBadUse(Path dir) throws IOException {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      boolean caught = false;
+      try { new BufferPool(0); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      BufferPool test = new BufferPool(1);
+      PageFile file = testFile(dir, "pinned.dbp", test, 2);
+      Frame pinned = test.pin(file, 1);
+      try { test.pin(file, 2); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      test.unpin(pinned, false);
+      try { test.unpin(pinned, false); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      file.close();
+      test.close();
+      try { test.pin(file, 1); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void runTests() throws IOException, InterruptedException {
+      Path dir = Files.createTempDirectory("bufferpool");
+      testClockEviction(dir);
+      testWriteBack(dir);
+      testBadUse(dir);
+      for (java.io.File entry : dir.toFile().listFiles()) {
+         entry.delete();
+      }
+      Files.delete(dir);
+   }
+
+   public static void main(String[] args) throws IOException, InterruptedException {
+      BufferPool program = new BufferPool();
+      program.runTests();
+   }
+}
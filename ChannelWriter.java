@@ -0,0 +1,190 @@
+/* This class is a Writer that encodes characters straight into a FileChannel
+ * through a pair of fixed-size buffers that are reused for the whole write,
+ * so the memory it needs stays the same however much is written. Characters
+ * collect in a char buffer; whenever it fills they are encoded into a byte 
+ * buffer which is written to the channel. Closing the writer flushes what is
+ * left, forces it to disk and closes the channel.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.io.*;
+
+class ChannelWriter extends Writer {
+   static final int BUFFER_SIZE = 8192;
+
+   private FileChannel channel;
+   private CharsetEncoder encoder;
+   private CharBuffer chars;
+   private ByteBuffer bytes;
+
+   ChannelWriter(FileChannel channel, String encoding) {
+      this(channel, encoding, BUFFER_SIZE);
+   }
+
+   ChannelWriter(FileChannel channel, String encoding, int bufferSize) {
+      this.channel = channel;
+      this.encoder = Charset.forName(encoding).newEncoder()
+         .onMalformedInput(CodingErrorAction.REPLACE)
+         .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      this.chars = CharBuffer.allocate(bufferSize);
+      int maxBytes = (int) Math.ceil(bufferSize * this.encoder.maxBytesPerChar());
+      this.bytes = ByteBuffer.allocate(maxBytes);
+   }
+
+   @Override
+   public void write(char[] cbuf, int off, int len) throws IOException {
+      checkIfOpen();
+      while (len > 0) {
+         int count = Math.min(len, this.chars.remaining());
+         this.chars.put(cbuf, off, count);
+         off += count;
+         len -= count;
+         if (!this.chars.hasRemaining()) {
+            encodeChars(false);
+         }
+      }
+   }
+
+   @Override
+   public void write(String str, int off, int len) throws IOException {
+      checkIfOpen();
+      while (len > 0) {
+         int count = Math.min(len, this.chars.remaining());
+         this.chars.put(str, off, off + count);
+         off += count;
+         len -= count;
+         if (!this.chars.hasRemaining()) {
+            encodeChars(false);
+         }
+      }
+   }
+
+   @Override
+   public void write(int c) throws IOException {
+      checkIfOpen();
+      this.chars.put((char) c);
+      if (!this.chars.hasRemaining()) {
+         encodeChars(false);
+      }
+   }
+
+   @Override
+   public void flush() throws IOException {
+      checkIfOpen();
+      encodeChars(false);
+   }
+
+   @Override
+   public void close() throws IOException {
+      if (this.channel == null) {
+         return;
+      }
+      try {
+         encodeChars(true);
+         this.bytes.clear();
+         this.encoder.flush(this.bytes);
+         writeBytes();
+         this.channel.force(false);
+      } finally {
+         this.channel.close();
+         this.channel = null;
+      }
+   }
+
+   // --- helper methods ---
+
+   // encodes buffered chars, keeping any trailing half of a surrogate pair
+   // for the next call unless this is the end of input
+   private void encodeChars(boolean endOfInput) throws IOException {
+      this.chars.flip();
+      while (true) {
+         this.bytes.clear();
+         CoderResult result = this.encoder.encode(this.chars, this.bytes, endOfInput);
+         writeBytes();
+         if (!result.isOverflow()) {
+            break;
+         }
+      }
+      this.chars.compact();
+   }
+
+   private void writeBytes() throws IOException {
+      this.bytes.flip();
+      while (this.bytes.hasRemaining()) {
+         this.channel.write(this.bytes);
+      }
+   }
+
+   private void checkIfOpen() throws IOException {
+      if (this.channel == null) {
+         throw new IOException("Writer is closed.");
+      }
+   }
+
+   // --- testing ---
+
+   private static String writeAndRead(String input, int bufferSize) throws IOException {
+      Path temp = Files.createTempFile("channel", ".dbf");
+      FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+      try (ChannelWriter out = new ChannelWriter(channel, "UTF-8", bufferSize)) {
+         // write in uneven pieces to cross buffer boundaries
+         int i = 0;
+         while (i < input.length()) {
+            int end = Math.min(input.length(), i + 1 + (i % 7));
+            out.write(input, i, end - i);
+            i = end;
+         }
+      }
+      String output = new String(Files.readAllBytes(temp), StandardCharsets.UTF_8);
+      Files.delete(temp);
+      return output;
+   }
+
+   private void testStreaming() throws IOException {
+      StringBuilder input = new StringBuilder();
+      for (int i = 0; i < 5000; i++) {
+         input.append("row" + i + "\t\u00e9\u4e2d\ud83d\ude00\n");
+      }
+      // tiny buffers split multi-byte and surrogate-pair characters
+      assert(writeAndRead(input.toString(), 3).equals(input.toString()));
+      assert(writeAndRead(input.toString(), BUFFER_SIZE).equals(input.toString()));
+      assert(writeAndRead("", 3).equals(""));
+   }
+
+   private void testClosed() throws IOException {
+      Path temp = Files.createTempFile("channel", ".dbf");
+      ChannelWriter out = new ChannelWriter(FileChannel.open(temp, StandardOpenOption.WRITE), "UTF-8");
+      out.write('a');
+      out.close();
+      out.close();
+      boolean caught = false;
+      try { out.write('b'); }
+      catch (IOException e) { caught = true; }
+      assert(caught == true);
+      assert(new String(Files.readAllBytes(temp), StandardCharsets.UTF_8).equals("a"));
+      Files.delete(temp);
+   }
+
+   private void runTests() throws IOException {
+      testStreaming();
+      testClosed();
+   }
+
+   public static void main(String[] args) throws IOException {
+      Path temp = Files.createTempFile("channel", ".dbf");
+      ChannelWriter program = new ChannelWriter(FileChannel.open(temp, StandardOpenOption.WRITE), "UTF-8");
+      program.close();
+      Files.delete(temp);
+      program.runTests();
+   }
+}
@@ -0,0 +1,478 @@
+/* This class holds a batch of rows from a table as column vectors: for each
+ * scanned column, a plain array of up to capacity values typed by the
+ * column's FieldType (long[] for INT, double[] for FLOAT, boolean[] for
+ * BOOLEAN and String[] for STRING), indexed by row within the batch. Batches
+ * are filled by Table.scanBatches, which reuses one batch for the whole scan,
+ * copying runs of rows straight out of a ColumnStore for COLUMNAR tables or
+ * parsing each record's fields otherwise. A selection vector holds the
+ * positions of the rows still in play: filter narrows it with one tight loop
+ * over a column's array, and the aggregates run over the selected rows
+ * (equalities on STRING columns the table interns compare references). The
+ * numeric loops branch on nothing but the loop itself, leaving the JIT free
+ * to unroll them.
+ */
+
+import java.io.*;
+
+class ColumnBatch {
+   static final int DEFAULT_CAPACITY = 1024;
+
+   private Table table;
+   private FieldType[] types;
+   private long[][] longs;
+   private double[][] doubles;
+   private boolean[][] booleans;
+   private String[][] strings;
+   private int capacity;
+   private int size = 0;
+   private int[] selection;
+   private int selected = 0;
+
+   private static final String typeMismatch = "Input data does not match column type.";
+   private static final String notScanned = "Column is not part of the batch.";
+
+   // a batch of the given columns of table, by column index
+   ColumnBatch(Table table, int capacity, int... columns) {
+      int colsz = table.getColumnSize();
+      this.table = table;
+      this.types = new FieldType[colsz];
+      this.longs = new long[colsz][];
+      this.doubles = new double[colsz][];
+      this.booleans = new boolean[colsz][];
+      this.strings = new String[colsz][];
+      this.capacity = capacity;
+      this.selection = new int[capacity];
+      for (int col : columns) {
+         FieldType type = table.getColumnType(col);
+         this.types[col] = type;
+         switch (type) {
+            case INT:
+               this.longs[col] = new long[capacity];
+               break;
+            case FLOAT:
+               this.doubles[col] = new double[capacity];
+               break;
+            case BOOLEAN:
+               this.booleans[col] = new boolean[capacity];
+               break;
+            default:
+               this.strings[col] = new String[capacity];
+         }
+      }
+   }
+
+   int capacity() {
+      return this.capacity;
+   }
+
+   // number of rows in the batch, selected or not
+   int size() {
+      return this.size;
+   }
+
+   long[] getLongs(int col) {
+      checkIfColumnOfType(col, FieldType.INT);
+      return this.longs[col];
+   }
+
+   double[] getDoubles(int col) {
+      checkIfColumnOfType(col, FieldType.FLOAT);
+      return this.doubles[col];
+   }
+
+   boolean[] getBooleans(int col) {
+      checkIfColumnOfType(col, FieldType.BOOLEAN);
+      return this.booleans[col];
+   }
+
+   String[] getStrings(int col) {
+      checkIfColumnOfType(col, FieldType.STRING);
+      return this.strings[col];
+   }
+
+   // positions of the selected rows; only the first getSelectedCount() count
+   int[] getSelection() {
+      return this.selection;
+   }
+
+   int getSelectedCount() {
+      return this.selected;
+   }
+
+   // --- filling ---
+
+   // replaces the batch with rows from..from+n-1 of store
+   void fill(ColumnStore store, int from, int n) {
+      for (int col = 0; col < this.types.length; col++) {
+         if (this.types[col] == null) {
+            continue;
+         }
+         switch (this.types[col]) {
+            case INT:
+               store.copyLongs(col, from, this.longs[col], n);
+               break;
+            case FLOAT:
+               store.copyDoubles(col, from, this.doubles[col], n);
+               break;
+            case BOOLEAN:
+               store.copyBooleans(col, from, this.booleans[col], n);
+               break;
+            default:
+               store.copyStrings(col, from, this.strings[col], n);
+         }
+      }
+      this.size = n;
+      selectAll();
+   }
+
+   // empties the batch for rows to be appended
+   void clear() {
+      this.size = 0;
+      this.selected = 0;
+   }
+
+   // appends the scanned fields of data as the next row
+   void append(Record data) {
+      int row = this.size;
+      try {
+         for (int col = 0; col < this.types.length; col++) {
+            if (this.types[col] == null) {
+               continue;
+            }
+            String field = data.getField(col);
+            switch (this.types[col]) {
+               case INT:
+                  this.longs[col][row] = Long.parseLong(field.trim());
+                  break;
+               case FLOAT:
+                  this.doubles[col][row] = Double.parseDouble(field.trim());
+                  break;
+               case BOOLEAN:
+                  checkIfBoolean(field);
+                  this.booleans[col][row] = Boolean.parseBoolean(field.trim());
+                  break;
+               default:
+                  this.strings[col][row] = field;
+            }
+         }
+      } catch (NumberFormatException e) {
+         System.out.println(typeMismatch);
+         throw new IllegalArgumentException();
+      }
+      this.selection[this.selected++] = row;
+      this.size++;
+   }
+
+   boolean isFull() {
+      return this.size == this.capacity;
+   }
+
+   void selectAll() {
+      for (int i = 0; i < this.size; i++) {
+         this.selection[i] = i;
+      }
+      this.selected = this.size;
+   }
+
+   // --- filters and aggregates over the selected rows ---
+
+   // keeps the selected rows whose field in col compares to value as op says,
+   // by the column's type
+   void filter(int col, Operator op, String value) {
+      FieldType type = checkIfColumnScanned(col);
+      if (type == FieldType.STRING && (op == Operator.EQ || op == Operator.NE)
+            && this.table.isInterned(col)) {
+         filterInterned(this.strings[col], this.table.internedValue(col, value),
+            op == Operator.NE);
+      } else if (type == FieldType.STRING) {
+         filterStrings(this.strings[col], op, value);
+      } else if (!type.isValid(value)) {
+         // every stored value is valid, and valid values sort first
+         boolean keepAll = op == Operator.NE || op == Operator.LT || op == Operator.LE;
+         this.selected = keepAll ? this.selected : 0;
+      } else if (type == FieldType.INT) {
+         long v = Long.parseLong(value.trim());
+         if ((op == Operator.GT && v == Long.MAX_VALUE) 
+               || (op == Operator.LT && v == Long.MIN_VALUE)) {
+            // nothing lies beyond the ends of long, and v +/- 1 would wrap
+            this.selected = 0;
+            return;
+         }
+         filterLongs(this.longs[col], lowerBound(op, v), upperBound(op, v), op == Operator.NE);
+      } else if (type == FieldType.FLOAT) {
+         double v = Double.parseDouble(value.trim());
+         double lo = op == Operator.GT ? Math.nextUp(v)
+            : (op == Operator.LT || op == Operator.LE) ? Double.NEGATIVE_INFINITY : v;
+         double hi = op == Operator.LT ? Math.nextDown(v)
+            : (op == Operator.GT || op == Operator.GE) ? Double.POSITIVE_INFINITY : v;
+         filterDoubles(this.doubles[col], lo, hi, op == Operator.NE);
+      } else {
+         long v = Boolean.parseBoolean(value.trim()) ? 1 : 0;
+         filterBooleans(this.booleans[col], lowerBound(op, v), upperBound(op, v), op == Operator.NE);
+      }
+   }
+
+   long sumInts(int col) {
+      long[] values = getLongs(col);
+      long sum = 0;
+      for (int i = 0; i < this.selected; i++) {
+         sum += values[this.selection[i]];
+      }
+      return sum;
+   }
+
+   double sumDoubles(int col) {
+      double[] values = getDoubles(col);
+      double sum = 0;
+      for (int i = 0; i < this.selected; i++) {
+         sum += values[this.selection[i]];
+      }
+      return sum;
+   }
+
+   // --- helper methods ---
+
+   // INT comparisons become the range lo..hi (kept unless negate)
+   private void filterLongs(long[] values, long lo, long hi, boolean negate) {
+      int kept = 0;
+      for (int i = 0; i < this.selected; i++) {
+         int row = this.selection[i];
+         long x = values[row];
+         this.selection[kept] = row;
+         kept += ((x >= lo & x <= hi) != negate) ? 1 : 0;
+      }
+      this.selected = kept;
+   }
+
+   private void filterDoubles(double[] values, double lo, double hi, boolean negate) {
+      int kept = 0;
+      for (int i = 0; i < this.selected; i++) {
+         int row = this.selection[i];
+         double x = values[row];
+         this.selection[kept] = row;
+         kept += ((x >= lo & x <= hi) != negate) ? 1 : 0;
+      }
+      this.selected = kept;
+   }
+
+   // false and true compare as 0 and 1
+   private void filterBooleans(boolean[] values, long lo, long hi, boolean negate) {
+      int kept = 0;
+      for (int i = 0; i < this.selected; i++) {
+         int row = this.selection[i];
+         long x = values[row] ? 1 : 0;
+         this.selection[kept] = row;
+         kept += ((x >= lo & x <= hi) != negate) ? 1 : 0;
+      }
+      this.selected = kept;
+   }
+
+   // equal fields of interned columns are the same String as value, which is
+   // null if no field equals it
+   private void filterInterned(String[] values, String value, boolean negate) {
+      if (value == null) {
+         this.selected = negate ? this.selected : 0;
+         return;
+      }
+      int kept = 0;
+      for (int i = 0; i < this.selected; i++) {
+         int row = this.selection[i];
+         this.selection[kept] = row;
+         kept += ((values[row] == value) != negate) ? 1 : 0;
+      }
+      this.selected = kept;
+   }
+
+   private void filterStrings(String[] values, Operator op, String value) {
+      int kept = 0;
+      for (int i = 0; i < this.selected; i++) {
+         int row = this.selection[i];
+         this.selection[kept] = row;
+         kept += op.test(FieldType.STRING, values[row], value) ? 1 : 0;
+      }
+      this.selected = kept;
+   }
+
+   private static long lowerBound(Operator op, long v) {
+      switch (op) {
+         case LT:
+         case LE:
+            return Long.MIN_VALUE;
+         case GT:
+            return v + 1;
+         default:
+            return v;
+      }
+   }
+
+   private static long upperBound(Operator op, long v) {
+      switch (op) {
+         case GT:
+         case GE:
+            return Long.MAX_VALUE;
+         case LT:
+            return v - 1;
+         default:
+            return v;
+      }
+   }
+
+   private void checkIfBoolean(String field) {
+      if (!FieldType.BOOLEAN.isValid(field)) {
+         throw new NumberFormatException();
+      }
+   }
+
+   private FieldType checkIfColumnScanned(int col) {
+      if (col < 0 || col >= this.types.length || this.types[col] == null) {
+         System.out.println(notScanned);
+         throw new IllegalArgumentException();
+      }
+      return this.types[col];
+   }
+
+   private void checkIfColumnOfType(int col, FieldType type) {
+      if (checkIfColumnScanned(col) != type) {
+         System.out.println(typeMismatch);
+         throw new IllegalArgumentException();
+      }
+   }
+
+   // --- testing ---
+
+   private static Table testTable() {
+      Table test = new Table(
+         "readings",
+         new ColumnID("key", true),
+         new ColumnID("count", false, FieldType.INT),
+         new ColumnID("level", false, FieldType.FLOAT),
+         new ColumnID("ok", false, FieldType.BOOLEAN)
+      );
+      for (int i = 0; i < 10; i++) {
+         test.add(new Record("r" + i, Integer.toString(i), i + ".5",
+            Boolean.toString(i % 2 == 0)));
+      }
+      return test;
+   }
+
+   private void testFilters() {
+      Table test = testTable();
+      ColumnBatch batch = new ColumnBatch(test, 16, 0, 1, 2, 3);
+      batch.clear();
+      for (Record entry : test.getRecords()) {
+         batch.append(entry);
+      }
+      assert(batch.size() == 10);
+      assert(batch.getSelectedCount() == 10);
+      assert(batch.sumInts(1) == 45);
+      batch.filter(1, Operator.GE, "3");
+      batch.filter(2, Operator.LT, "8.5");
+      assert(batch.getSelectedCount() == 5);
+      assert(batch.sumInts(1) == 3 + 4 + 5 + 6 + 7);
+      batch.filter(3, Operator.EQ, "true");
+      assert(batch.getSelectedCount() == 2);
+      assert(batch.sumDoubles(2) == 4.5 + 6.5);
+      batch.filter(0, Operator.NE, "r4");
+      assert(batch.getSelectedCount() == 1);
+      assert(batch.getStrings(0)[batch.getSelection()[0]].equals("r6"));
+      // invalid values sort after every valid one
+      batch.selectAll();
+      batch.filter(1, Operator.LT, "many");
+      assert(batch.getSelectedCount() == 10);
+      batch.filter(1, Operator.EQ, "many");
+      assert(batch.getSelectedCount() == 0);
+      batch.selectAll();
+      batch.filter(1, Operator.NE, "2");
+      batch.filter(1, Operator.GT, "7");
+      assert(batch.getSelectedCount() == 2);
+   }
+
+   private void testLongBounds() {
+      Table test = new Table("bounds", new ColumnID("key", true),
+         new ColumnID("n", false, FieldType.INT));
+      test.add(new Record("max", Long.toString(Long.MAX_VALUE)));
+      test.add(new Record("min", Long.toString(Long.MIN_VALUE)));
+      test.add(new Record("zero", "0"));
+      ColumnBatch batch = new ColumnBatch(test, 4, 1);
+      batch.clear();
+      for (Record entry : test.getRecords()) {
+         batch.append(entry);
+      }
+      String max = Long.toString(Long.MAX_VALUE);
+      String min = Long.toString(Long.MIN_VALUE);
+      batch.filter(1, Operator.GT, max);
+      assert(batch.getSelectedCount() == 0);
+      batch.selectAll();
+      batch.filter(1, Operator.LT, min);
+      assert(batch.getSelectedCount() == 0);
+      batch.selectAll();
+      batch.filter(1, Operator.GE, max);
+      assert(batch.getSelectedCount() == 1);
+      batch.selectAll();
+      batch.filter(1, Operator.LE, min);
+      assert(batch.getSelectedCount() == 1);
+      batch.selectAll();
+      batch.filter(1, Operator.LT, max);
+      assert(batch.getSelectedCount() == 2);
+      batch.selectAll();
+      batch.filter(1, Operator.GT, min);
+      assert(batch.getSelectedCount() == 2);
+      batch.selectAll();
+      batch.filter(1, Operator.NE, max);
+      assert(batch.getSelectedCount() == 2);
+      // and the same as a query
+      assert(new BatchScan(test, "n").where("n", Operator.GT, max).count() 
+         == new Query(test).where("n", Operator.GT, max).list().size());
+   }
+
+   private void testColumnStoreFill() {
+      Table test = testTable();
+      test.setStorageMode(StorageMode.COLUMNAR);
+      ColumnBatch batch = new ColumnBatch(test, 4, 1, 3);
+      batch.fill(test.getColumnStore(), 4, 4);
+      assert(batch.size() == 4);
+      assert(batch.getLongs(1)[0] == 4);
+      assert(batch.getBooleans(3)[1] == false);
+      batch.filter(3, Operator.EQ, "true");
+      assert(batch.sumInts(1) == 4 + 6);
+   }
+
+   private void testBadBatches() {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      Table test = testTable();
+      ColumnBatch batch = new ColumnBatch(test, 4, 1);
+      boolean caught = false;
+      try { batch.getDoubles(2); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      try { batch.getDoubles(1); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      try { batch.append(new Record("x", "one", "1", "true")); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void runTests() {
+      testFilters();
+      testLongBounds();
+      testColumnStoreFill();
+      testBadBatches();
+   }
+
+   public static void main(String[] args) {
+      ColumnBatch program = new ColumnBatch(new Table(), 1);
+      program.runTests();
+   }
+}
@@ -1,12 +1,22 @@
-/* This is a simple class to represent column data. Columns consist of names
- * and a boolean indicating whether that column contains the key for the table.
+/* This is a simple class to represent column data. Columns consist of names,
+ * a boolean indicating whether that column contains the key for the table,
+ * and the FieldType of the column's data (STRING unless specified).
  * Appropriate get and set methods are implemented. It is the responsibility
- * of the Table class to validate unique keys among columns.
+ * of the Table class to validate unique keys among columns. Columns can also
+ * be made from the header lines of table files: names (the key column's 
+ * prefixed with an asterisk) and, in files that have them, type names.
  */
 
+import java.util.List;
+import java.io.*;
+
 class ColumnID {
+   private static final String KEYATTRIB = "*";
+   private static final String unknownType = "Unknown column type in file.";
+
    private String name;
    private boolean containsKeys;
+   private FieldType type = FieldType.STRING;
 
    ColumnID() {
    }
@@ -21,6 +31,12 @@ class ColumnID {
       this.containsKeys = containsKeys;
    }
 
+   ColumnID(String name, boolean containsKeys, FieldType type) {
+      this.name = name;
+      this.containsKeys = containsKeys;
+      this.type = type;
+   }
+
    String getName() {
       return this.name;
    }
@@ -38,6 +54,38 @@ class ColumnID {
       this.containsKeys = status;
    }
 
+   FieldType getType() {
+      return this.type;
+   }
+
+   void setType(FieldType type) {
+      this.type = type;
+   }
+
+   // columns named by headers, typed by types (all STRING if types is null,
+   // as in files written before types were saved)
+   static ColumnID[] fromHeaders(List<String> headers, List<String> types) {
+      ColumnID[] columns = new ColumnID[headers.size()];
+      for (int i = 0; i < columns.length; i++) {
+         String header = headers.get(i);
+         FieldType type = FieldType.STRING;
+         if (types != null && i < types.size()) {
+            try {
+               type = FieldType.valueOf(types.get(i));
+            } catch (IllegalArgumentException e) {
+               System.out.println(unknownType);
+               throw e;
+            }
+         }
+         if (header.startsWith(KEYATTRIB)) {
+            columns[i] = new ColumnID(header.substring(KEYATTRIB.length()), true, type);
+         } else {
+            columns[i] = new ColumnID(header, false, type);
+         }
+      }
+      return columns;
+   }
+
    // --- testing ---
 
    void testColumnCreation() {
@@ -51,10 +99,39 @@ class ColumnID {
       assert(test1.containsKeys() == true);
       test1.setKeyStatus(false);
       assert(test1.containsKeys() == false);
+      assert(test1.getType() == FieldType.STRING);
+      ColumnID test2 = new ColumnID(testStr, false, FieldType.INT);
+      assert(test2.getType() == FieldType.INT);
+      test2.setType(FieldType.FLOAT);
+      assert(test2.getType() == FieldType.FLOAT);
+   }
+
+   private void testHeaders() {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      ColumnID[] columns = fromHeaders(List.of("a", "*b", "c"), List.of("STRING", "INT", "FLOAT"));
+      assert(columns[0].getName().equals("a") && columns[0].containsKeys() == false);
+      assert(columns[1].getName().equals("b") && columns[1].containsKeys() == true);
+      assert(columns[1].getType() == FieldType.INT);
+      assert(columns[2].getType() == FieldType.FLOAT);
+      columns = fromHeaders(List.of("*k", "v"), null);
+      assert(columns[1].getType() == FieldType.STRING);
+      boolean caught = false;
+      try { fromHeaders(List.of("*k"), List.of("NUMBER")); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
    }
 
    private void runTests() {
       testColumnCreation();
+      testHeaders();
    }
 
    public static void main(String[] args) {
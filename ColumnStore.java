@@ -0,0 +1,510 @@
+/* This class stores the records of a table column by column, with each column
+ * held in a container suited to its FieldType: INT columns in a long[], FLOAT
+ * columns in a double[], BOOLEAN columns in a BitSet and STRING columns as an
+ * int[] of codes into a StringDictionary. Rows are identified by their index
+ * and are kept densely packed; removing a row moves the last row into its 
+ * place. Callers see rows as Record objects which are lightweight views over
+ * a row index, so reading or setting a field goes straight to the column. 
+ * Values are validated against the column type when they are stored, and 
+ * numeric values are read back in their canonical form (e.g. "1.50" is read
+ * back as "1.5"), except in the key column, whose fields are also kept as
+ * given so that they go on matching the keys of the table. Runs of rows
+ * can also be copied out of a column in bulk into plain arrays, for batch
+ * scans (see ColumnBatch.java).
+ */
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.io.*;
+
+class ColumnStore {
+   private FieldType[] types;
+   private long[][] longs;
+   private int[][] codes;
+   private double[][] doubles;
+   private BitSet[] booleans;
+   private StringDictionary[] dictionaries;
+   private RowView[] views;
+   private int keyColumn;
+   private String[] keys;
+   private int size = 0;
+
+   private static final int INITIAL_CAPACITY = 16;
+   private static final String typeMismatch = "Input data does not match column type.";
+
+   ColumnStore(FieldType... types) {
+      this(-1, types);
+   }
+
+   // keeps the fields of keyColumn (if not -1) exactly as given
+   ColumnStore(int keyColumn, FieldType... types) {
+      this.types = types.clone();
+      this.keyColumn = keyColumn;
+      this.longs = new long[types.length][];
+      this.codes = new int[types.length][];
+      this.doubles = new double[types.length][];
+      this.booleans = new BitSet[types.length];
+      this.dictionaries = new StringDictionary[types.length];
+      this.views = new RowView[INITIAL_CAPACITY];
+      for (int i = 0; i < types.length; i++) {
+         switch (types[i]) {
+            case INT:
+               this.longs[i] = new long[INITIAL_CAPACITY];
+               break;
+            case FLOAT:
+               this.doubles[i] = new double[INITIAL_CAPACITY];
+               break;
+            case BOOLEAN:
+               this.booleans[i] = new BitSet();
+               break;
+            default:
+               this.codes[i] = new int[INITIAL_CAPACITY];
+               this.dictionaries[i] = new StringDictionary();
+         }
+      }
+      // STRING fields are decoded as given already
+      if (keyColumn >= 0 && types[keyColumn] != FieldType.STRING) {
+         this.keys = new String[INITIAL_CAPACITY];
+      }
+   }
+
+   int size() {
+      return this.size;
+   }
+
+   int getColumnSize() {
+      return this.types.length;
+   }
+
+   FieldType getType(int col) {
+      checkIfColumnExists(col);
+      return this.types[col];
+   }
+
+   // copies the fields of data into a new row and returns a view over it
+   Record add(Record data) {
+      checkIfRecordMatchesTypes(data);
+      ensureCapacity(this.size + 1);
+      int row = this.size;
+      for (int i = 0; i < this.types.length; i++) {
+         store(row, i, data.getField(i));
+      }
+      this.views[row] = new RowView(row);
+      this.size++;
+      return new Record(this.views[row]);
+   }
+
+   // checks that data could be added, without adding it
+   void validate(Record data) {
+      checkIfRecordMatchesTypes(data);
+   }
+
+   String get(int row, int col) {
+      checkIfRowExists(row);
+      checkIfColumnExists(col);
+      if (col == this.keyColumn && this.keys != null) {
+         return this.keys[row];
+      }
+      switch (this.types[col]) {
+         case INT:
+            return Long.toString(this.longs[col][row]);
+         case FLOAT:
+            return Double.toString(this.doubles[col][row]);
+         case BOOLEAN:
+            return Boolean.toString(this.booleans[col].get(row));
+         default:
+            return this.dictionaries[col].decode(this.codes[col][row]);
+      }
+   }
+
+   void set(int row, int col, String value) {
+      checkIfRowExists(row);
+      checkIfColumnExists(col);
+      checkIfValueMatchesType(this.types[col], value);
+      store(row, col, value);
+   }
+
+   long getLong(int row, int col) {
+      checkIfRowOfType(row, col, FieldType.INT);
+      return this.longs[col][row];
+   }
+
+   double getDouble(int row, int col) {
+      checkIfRowOfType(row, col, FieldType.FLOAT);
+      return this.doubles[col][row];
+   }
+
+   boolean getBoolean(int row, int col) {
+      checkIfRowOfType(row, col, FieldType.BOOLEAN);
+      return this.booleans[col].get(row);
+   }
+
+   // dictionary code of a STRING field
+   int getCode(int row, int col) {
+      checkIfRowOfType(row, col, FieldType.STRING);
+      return this.codes[col][row];
+   }
+
+   StringDictionary getDictionary(int col) {
+      checkIfColumnExists(col);
+      return this.dictionaries[col];
+   }
+
+   // --- bulk reads of rows from..from+n-1 into dest ---
+
+   void copyLongs(int col, int from, long[] dest, int n) {
+      checkIfRangeOfType(col, from, n, FieldType.INT);
+      System.arraycopy(this.longs[col], from, dest, 0, n);
+   }
+
+   void copyDoubles(int col, int from, double[] dest, int n) {
+      checkIfRangeOfType(col, from, n, FieldType.FLOAT);
+      System.arraycopy(this.doubles[col], from, dest, 0, n);
+   }
+
+   void copyBooleans(int col, int from, boolean[] dest, int n) {
+      checkIfRangeOfType(col, from, n, FieldType.BOOLEAN);
+      BitSet bits = this.booleans[col];
+      for (int i = 0; i < n; i++) {
+         dest[i] = bits.get(from + i);
+      }
+   }
+
+   void copyStrings(int col, int from, String[] dest, int n) {
+      checkIfRangeOfType(col, from, n, FieldType.STRING);
+      int[] codes = this.codes[col];
+      StringDictionary dictionary = this.dictionaries[col];
+      for (int i = 0; i < n; i++) {
+         dest[i] = dictionary.decode(codes[from + i]);
+      }
+   }
+
+   // returns the row index behind a record view, or -1 if it is not one of ours
+   int rowOf(Record data) {
+      if (data.getRow() instanceof RowView) {
+         RowView view = (RowView) data.getRow();
+         if (view.getStore() == this) {
+            return view.index;
+         }
+      }
+      return -1;
+   }
+
+   // removes a row by moving the last row into its place; views of the 
+   // removed row are invalidated, views of the moved row follow it
+   void remove(int row) {
+      checkIfRowExists(row);
+      int last = this.size - 1;
+      this.views[row].index = -1;
+      if (row != last) {
+         for (int i = 0; i < this.types.length; i++) {
+            if (this.types[i] == FieldType.FLOAT) {
+               this.doubles[i][row] = this.doubles[i][last];
+            } else if (this.types[i] == FieldType.BOOLEAN) {
+               this.booleans[i].set(row, this.booleans[i].get(last));
+            } else if (this.types[i] == FieldType.INT) {
+               this.longs[i][row] = this.longs[i][last];
+            } else {
+               this.codes[i][row] = this.codes[i][last];
+            }
+         }
+         if (this.keys != null) {
+            this.keys[row] = this.keys[last];
+         }
+         this.views[row] = this.views[last];
+         this.views[row].index = row;
+      }
+      for (int i = 0; i < this.types.length; i++) {
+         if (this.types[i] == FieldType.BOOLEAN) {
+            this.booleans[i].clear(last);
+         }
+      }
+      if (this.keys != null) {
+         this.keys[last] = null;
+      }
+      this.views[last] = null;
+      this.size--;
+   }
+
+   // --- helper methods ---
+
+   // assumes value has already been validated
+   private void store(int row, int col, String value) {
+      if (col == this.keyColumn && this.keys != null) {
+         this.keys[row] = value;
+      }
+      switch (this.types[col]) {
+         case INT:
+            this.longs[col][row] = Long.parseLong(value.trim());
+            break;
+         case FLOAT:
+            this.doubles[col][row] = Double.parseDouble(value.trim());
+            break;
+         case BOOLEAN:
+            this.booleans[col].set(row, Boolean.parseBoolean(value.trim()));
+            break;
+         default:
+            this.codes[col][row] = this.dictionaries[col].encode(value);
+      }
+   }
+
+   // grows every column to hold capacity rows
+   void ensureCapacity(int capacity) {
+      if (capacity <= this.views.length) {
+         return;
+      }
+      int newCapacity = Math.max(capacity, this.views.length * 2);
+      this.views = Arrays.copyOf(this.views, newCapacity);
+      if (this.keys != null) {
+         this.keys = Arrays.copyOf(this.keys, newCapacity);
+      }
+      for (int i = 0; i < this.types.length; i++) {
+         if (this.longs[i] != null) {
+            this.longs[i] = Arrays.copyOf(this.longs[i], newCapacity);
+         }
+         if (this.codes[i] != null) {
+            this.codes[i] = Arrays.copyOf(this.codes[i], newCapacity);
+         }
+         if (this.doubles[i] != null) {
+            this.doubles[i] = Arrays.copyOf(this.doubles[i], newCapacity);
+         }
+      }
+   }
+
+   private void checkIfRangeOfType(int col, int from, int n, FieldType type) {
+      if (from < 0 || n < 0 || from + n > this.size) {
+         System.out.println("No such row in column store.");
+         throw new IndexOutOfBoundsException();
+      }
+      checkIfColumnExists(col);
+      if (this.types[col] != type) {
+         System.out.println(typeMismatch);
+         throw new IllegalArgumentException();
+      }
+   }
+
+   private void checkIfRecordMatchesTypes(Record data) {
+      if (data.size() != this.types.length) {
+         System.out.println("Input data does not match table columns.");
+         throw new IllegalArgumentException();
+      }
+      for (int i = 0; i < this.types.length; i++) {
+         checkIfValueMatchesType(this.types[i], data.getField(i));
+      }
+   }
+
+   private void checkIfValueMatchesType(FieldType type, String value) {
+      if (value == null) {
+         System.out.println(typeMismatch);
+         throw new IllegalArgumentException();
+      }
+      try {
+         switch (type) {
+            case INT:
+               Long.parseLong(value.trim());
+               break;
+            case FLOAT:
+               Double.parseDouble(value.trim());
+               break;
+            case BOOLEAN:
+               String trimmed = value.trim();
+               if (!trimmed.equalsIgnoreCase("true") 
+                     && !trimmed.equalsIgnoreCase("false")) {
+                  throw new NumberFormatException();
+               }
+               break;
+            default:
+               break;
+         }
+      } catch (NumberFormatException e) {
+         System.out.println(typeMismatch);
+         throw new IllegalArgumentException();
+      }
+   }
+
+   private void checkIfRowExists(int row) {
+      if (row >= this.size || row < 0) {
+         System.out.println("No such row in column store.");
+         throw new IndexOutOfBoundsException();
+      }
+   }
+
+   private void checkIfColumnExists(int col) {
+      if (col >= this.types.length || col < 0) {
+         System.out.println("No such column in column store.");
+         throw new IndexOutOfBoundsException();
+      }
+   }
+
+   private void checkIfRowOfType(int row, int col, FieldType type) {
+      checkIfRowExists(row);
+      checkIfColumnExists(col);
+      if (this.types[col] != type) {
+         System.out.println(typeMismatch);
+         throw new IllegalArgumentException();
+      }
+   }
+
+   // the list behind a Record view; index is -1 once the row is removed
+   private class RowView extends AbstractList<String> {
+      private int index;
+
+      RowView(int index) {
+         this.index = index;
+      }
+
+      ColumnStore getStore() {
+         return ColumnStore.this;
+      }
+
+      @Override
+      public String get(int col) {
+         return ColumnStore.this.get(this.index, col);
+      }
+
+      @Override
+      public String set(int col, String value) {
+         String previous = ColumnStore.this.get(this.index, col);
+         ColumnStore.this.set(this.index, col, value);
+         return previous;
+      }
+
+      @Override
+      public int size() {
+         return ColumnStore.this.types.length;
+      }
+   }
+
+   // --- testing ---
+
+   private void testTypedStorage() {
+      ColumnStore test = new ColumnStore(
+         FieldType.STRING, FieldType.INT, FieldType.FLOAT, FieldType.BOOLEAN
+      );
+      Record r0 = test.add(new Record("a", "1", "1.50", "true"));
+      Record r1 = test.add(new Record("b", "-2", "3", "FALSE"));
+      assert(test.size() == 2);
+      assert(r0.getField(0).equals("a"));
+      assert(r0.getField(1).equals("1"));
+      assert(r0.getField(2).equals("1.5"));
+      assert(r0.getField(3).equals("true"));
+      assert(r1.getField(2).equals("3.0"));
+      assert(r1.getField(3).equals("false"));
+      assert(test.getLong(1, 1) == -2);
+      assert(test.getDouble(0, 2) == 1.5);
+      assert(test.getBoolean(0, 3) == true);
+      assert(test.getCode(1, 0) == test.getDictionary(0).lookup("b"));
+      r1.setField(1, "7");
+      assert(test.getLong(1, 1) == 7);
+      assert(test.rowOf(r1) == 1);
+      assert(test.rowOf(new Record("a")) == -1);
+      // grow past the initial capacity
+      for (int i = 0; i < 100; i++) {
+         test.add(new Record("x", Integer.toString(i), "0", "false"));
+      }
+      assert(test.size() == 102);
+      assert(test.getLong(101, 1) == 99);
+      // bulk copies of a run of rows
+      long[] longs = new long[3];
+      test.copyLongs(1, 99, longs, 3);
+      assert(longs[0] == 97 && longs[2] == 99);
+      double[] doubles = new double[2];
+      test.copyDoubles(2, 0, doubles, 2);
+      assert(doubles[0] == 1.5 && doubles[1] == 3.0);
+      boolean[] booleans = new boolean[2];
+      test.copyBooleans(3, 0, booleans, 2);
+      assert(booleans[0] && !booleans[1]);
+      String[] strings = new String[2];
+      test.copyStrings(0, 1, strings, 2);
+      assert(strings[0].equals("b") && strings[1].equals("x"));
+   }
+
+   private void testKeyColumn() {
+      ColumnStore test = new ColumnStore(0, FieldType.INT, FieldType.INT, FieldType.FLOAT);
+      // INT takes the same range as FieldType.isValid
+      Record r0 = test.add(new Record("01", "4294967296", "4"));
+      Record r1 = test.add(new Record(" 2", "02", "4"));
+      // key fields read back as given, others in canonical form
+      assert(r0.getField(0).equals("01"));
+      assert(r1.getField(0).equals(" 2"));
+      assert(r1.getField(1).equals("2"));
+      assert(r0.getField(2).equals("4.0"));
+      assert(test.getLong(0, 0) == 1);
+      assert(test.getLong(0, 1) == 4294967296L);
+      test.remove(0);
+      assert(r1.getField(0).equals(" 2"));
+      assert(test.getLong(0, 0) == 2);
+      r1.setField(0, "002");
+      assert(r1.getField(0).equals("002"));
+   }
+
+   private void testRemoval() {
+      ColumnStore test = new ColumnStore(FieldType.STRING, FieldType.BOOLEAN);
+      Record r0 = test.add(new Record("a", "false"));
+      Record r1 = test.add(new Record("b", "false"));
+      Record r2 = test.add(new Record("c", "true"));
+      test.remove(0);
+      assert(test.size() == 2);
+      // the last row moved into the hole and its view followed it
+      assert(test.rowOf(r2) == 0);
+      assert(r2.getField(0).equals("c"));
+      assert(r2.getField(1).equals("true"));
+      assert(r1.getField(0).equals("b"));
+      assert(test.getBoolean(1, 1) == false);
+      test.remove(1);
+      assert(test.size() == 1);
+      assert(r2.getField(0).equals("c"));
+   }
+
+   private void testBadValues() {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      ColumnStore test = new ColumnStore(FieldType.INT, FieldType.BOOLEAN);
+      boolean caught = false;
+      try { test.add(new Record("x", "true")); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      try { test.add(new Record("1", "yes")); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      // nothing is stored by a failed add
+      assert(test.size() == 0);
+      Record r0 = test.add(new Record("1", "true"));
+      try { r0.setField(0, "1.5"); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      assert(r0.getField(0).equals("1"));
+      try { test.getDouble(0, 0); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      test.remove(0);
+      try { r0.getField(0); }
+      catch (IndexOutOfBoundsException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void runTests() {
+      testTypedStorage();
+      testKeyColumn();
+      testRemoval();
+      testBadValues();
+   }
+
+   public static void main(String[] args) {
+      ColumnStore program = new ColumnStore();
+      program.runTests();
+   }
+}
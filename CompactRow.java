@@ -0,0 +1,163 @@
+/* This class stores the fields of a record in a single byte[], for tables in
+ * StorageMode.COMPACT. The array begins with the number of fields and a table
+ * of where each field ends, followed by the fields themselves in UTF-8, so a
+ * row costs one array rather than a list, its backing array and a String per
+ * field. Fields are decoded each time they are read; setting a field encodes
+ * the row again into a new array. Records wrap a CompactRow as a view, like
+ * ColumnStore rows (see Record.java).
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.io.*;
+
+class CompactRow extends AbstractList<String> implements RandomAccess {
+   private volatile byte[] data;
+
+   private static final int INT_BYTES = 4;
+
+   CompactRow(List<String> fields) {
+      this.data = encode(fields);
+   }
+
+   @Override
+   public String get(int idx) {
+      byte[] row = this.data;
+      checkIfFieldExists(row, idx);
+      int end = readInt(row, INT_BYTES * (idx + 1));
+      if (end < 0) {
+         return null;
+      }
+      int start = fieldStart(row, idx);
+      return new String(row, start, end - start, StandardCharsets.UTF_8);
+   }
+
+   @Override
+   public String set(int idx, String value) {
+      byte[] row = this.data;
+      checkIfFieldExists(row, idx);
+      String previous = get(idx);
+      String[] fields = new String[readInt(row, 0)];
+      for (int i = 0; i < fields.length; i++) {
+         fields[i] = i == idx ? value : get(i);
+      }
+      this.data = encode(Arrays.asList(fields));
+      return previous;
+   }
+
+   @Override
+   public int size() {
+      return readInt(this.data, 0);
+   }
+
+   // bytes used by the row's array
+   int getByteSize() {
+      return this.data.length;
+   }
+
+   // --- helper methods ---
+
+   // [count][end of each field, negated for null][UTF-8 of each field]
+   static byte[] encode(List<String> fields) {
+      int count = fields.size();
+      byte[][] encoded = new byte[count][];
+      int length = INT_BYTES * (count + 1);
+      for (int i = 0; i < count; i++) {
+         String field = fields.get(i);
+         encoded[i] = field == null ? new byte[0] : field.getBytes(StandardCharsets.UTF_8);
+         length += encoded[i].length;
+      }
+      byte[] row = new byte[length];
+      writeInt(row, 0, count);
+      int position = INT_BYTES * (count + 1);
+      for (int i = 0; i < count; i++) {
+         System.arraycopy(encoded[i], 0, row, position, encoded[i].length);
+         position += encoded[i].length;
+         writeInt(row, INT_BYTES * (i + 1), fields.get(i) == null ? ~position : position);
+      }
+      return row;
+   }
+
+   private static int fieldStart(byte[] row, int idx) {
+      if (idx == 0) {
+         return INT_BYTES * (readInt(row, 0) + 1);
+      }
+      int previousEnd = readInt(row, INT_BYTES * idx);
+      return previousEnd < 0 ? ~previousEnd : previousEnd;
+   }
+
+   private static int readInt(byte[] row, int position) {
+      return (row[position] & 0xff) << 24 | (row[position + 1] & 0xff) << 16
+         | (row[position + 2] & 0xff) << 8 | (row[position + 3] & 0xff);
+   }
+
+   private static void writeInt(byte[] row, int position, int value) {
+      row[position] = (byte) (value >>> 24);
+      row[position + 1] = (byte) (value >>> 16);
+      row[position + 2] = (byte) (value >>> 8);
+      row[position + 3] = (byte) value;
+   }
+
+   private void checkIfFieldExists(byte[] row, int idx) {
+      if (idx < 0 || idx >= readInt(row, 0)) {
+         System.out.println("No such field exists in record.");
+         throw new IndexOutOfBoundsException();
+      }
+   }
+
+   // --- testing ---
+
+   private void testEncoding() {
+      CompactRow test = new CompactRow(List.of("key", "", "caf\u00e9", "\ud83d\ude00x"));
+      assert(test.size() == 4);
+      assert(test.get(0).equals("key"));
+      assert(test.get(1).equals(""));
+      assert(test.get(2).equals("caf\u00e9"));
+      assert(test.get(3).equals("\ud83d\ude00x"));
+      // count, four ends, then 3 + 0 + 5 + 5 bytes of UTF-8
+      assert(test.getByteSize() == 4 * 5 + 13);
+      assert(test.set(2, "cafe").equals("caf\u00e9"));
+      assert(test.get(2).equals("cafe"));
+      assert(test.get(3).equals("\ud83d\ude00x"));
+      assert(test.getByteSize() == 4 * 5 + 12);
+      // nulls are kept apart from empty fields
+      test.set(1, null);
+      assert(test.get(1) == null);
+      assert(test.get(2).equals("cafe"));
+      Record wrapped = new Record(test);
+      wrapped.setField(0, "other");
+      assert(wrapped.getField(0).equals("other"));
+      assert(wrapped.getField(1) == null);
+   }
+
+   private void testBadFields() {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      CompactRow test = new CompactRow(List.of("a"));
+      boolean caught = false;
+      try { test.get(1); }
+      catch (IndexOutOfBoundsException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void runTests() {
+      testEncoding();
+      testBadFields();
+   }
+
+   public static void main(String[] args) {
+      CompactRow program = new CompactRow(List.of());
+      program.runTests();
+   }
+}
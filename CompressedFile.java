@@ -0,0 +1,553 @@
+/* This class reads and writes tables as block-compressed files (.dbz). The
+ * records are written as the same tab-delimited lines as a text table file
+ * (see File.java), grouped into blocks of about BLOCK_SIZE bytes, each of
+ * which is compressed on its own with Deflater. After the blocks comes an
+ * index giving every block's position, lengths, number of records and the
+ * smallest and largest record key in it, and the file ends with the index's
+ * position. Opening a file reads only its header and index: the whole table
+ * can then be read with its blocks decompressed in parallel (on the common
+ * ForkJoinPool), or a single record found by decompressing only the blocks
+ * whose key range holds its key, which is one block when records were saved
+ * in key order. Fields and column names are escaped as in text files (see
+ * DelimitedParser.java); files of the first version, written before that,
+ * are read unescaped. The column names are followed by a line of column
+ * types, except in files of the first two versions, whose columns are read
+ * as STRING.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.io.*;
+
+class CompressedFile implements Closeable {
+   static final int BLOCK_SIZE = 64 * 1024;
+
+   private static final int MAGIC = 0x44425A31; // "DBZ1"
+   private static final int VERSION = 3;
+   private static final int UNTYPED_VERSION = 2;
+   private static final int UNESCAPED_VERSION = 1;
+   private static final int TRAILER = 12;       // index position, magic
+   private static final String UNITDELIM = "\t";
+   private static final String RCRDDELIM = "\n";
+   private static final String KEYATTRIB = "*";
+
+   private static final String badFormat = "File is not a compressed table file.";
+
+   private FileChannel channel;
+   private String tableName;
+   private String columnLine;
+   private String typeLine;
+   private int keyColumn = -1;
+   private boolean escaped = true;
+   private List<Block> blocks = new ArrayList<Block>();
+
+   // opens a compressed table file, reading only its header and block index
+   CompressedFile(String filepath) throws IOException {
+      this.channel = FileChannel.open(Paths.get(filepath), StandardOpenOption.READ);
+      try {
+         readHeader();
+         readIndex();
+      } catch (IOException e) {
+         this.channel.close();
+         throw e;
+      }
+   }
+
+   // writes the table's name and columns and the given records to filepath
+   static void write(String filepath, Table table, Iterable<Record> records) throws IOException {
+      write(filepath, table, records, BLOCK_SIZE);
+   }
+
+   // as write(), with blocks of about blockSize bytes before compression
+   static void write(String filepath, Table table, Iterable<Record> records,
+         int blockSize) throws IOException {
+      Path path = Paths.get(filepath);
+      if (path.getParent() != null) {
+         Files.createDirectories(path.getParent());
+      }
+      try (DataOutputStream output = new DataOutputStream(
+            new BufferedOutputStream(Files.newOutputStream(path)))) {
+         BlockWriter writer = new BlockWriter(output, table.getKeyColumn(), table.getColumnSize());
+         output.writeInt(MAGIC);
+         output.writeInt(VERSION);
+         writer.position = 8;
+         writer.writeString(table.getName());
+         writer.writeString(columnLine(table));
+         writer.writeString(typeLine(table));
+         for (Record entry : records) {
+            writer.append(entry);
+            if (writer.pending.size() >= blockSize) {
+               writer.writeBlock();
+            }
+         }
+         writer.writeBlock();
+         writer.writeIndex();
+      }
+   }
+
+   int getBlockCount() {
+      return this.blocks.size();
+   }
+
+   // decompresses every block, in parallel when there are several, and
+   // parses the table from them
+   Table readTable() throws IOException {
+      Table outputTable = readColumns();
+      List<Callable<List<Record>>> tasks = new ArrayList<>();
+      for (Block block : this.blocks) {
+         tasks.add(() -> parseRecords(readBlock(block)));
+      }
+      ArrayList<Record> newRecords = new ArrayList<>();
+      if (tasks.size() < 2) {
+         for (Block block : this.blocks) {
+            newRecords.addAll(parseRecords(readBlock(block)));
+         }
+      } else {
+         for (Future<List<Record>> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+            newRecords.addAll(result(future));
+         }
+      }
+      outputTable.addAll(newRecords);
+      return outputTable;
+   }
+
+   // the record with the given key, or null if there is none; only blocks
+   // whose key range holds recordKey are decompressed
+   Record find(String recordKey) throws IOException {
+      for (Block block : this.blocks) {
+         if (block.count == 0 || recordKey.compareTo(block.minKey) < 0
+               || recordKey.compareTo(block.maxKey) > 0) {
+            continue;
+         }
+         for (Record entry : parseRecords(readBlock(block))) {
+            if (entry.getField(this.keyColumn).equals(recordKey)) {
+               return entry;
+            }
+         }
+      }
+      return null;
+   }
+
+   @Override
+   public void close() throws IOException {
+      this.channel.close();
+   }
+
+   // --- helper methods ---
+
+   private static class Block {
+      private long position;
+      private int compressedLength;
+      private int rawLength;
+      private int count;
+      private String minKey;
+      private String maxKey;
+   }
+
+   // collects lines for the current block and writes each block out with
+   // its index entry remembered, keeping count of the bytes written so far
+   private static class BlockWriter {
+      private DataOutputStream output;
+      private int keyColumn;
+      private int colsz;
+      private long position = 0;
+      private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+      private Block current = new Block();
+      private List<Block> written = new ArrayList<Block>();
+      private Deflater deflater = new Deflater();
+
+      BlockWriter(DataOutputStream output, int keyColumn, int colsz) {
+         this.output = output;
+         this.keyColumn = keyColumn;
+         this.colsz = colsz;
+      }
+
+      void append(Record entry) throws IOException {
+         StringBuilder line = new StringBuilder();
+         for (int i = 0; i < this.colsz; i++) {
+            DelimitedParser.escape(entry.getField(i), line);
+            if (i < this.colsz - 1) {
+               line.append(UNITDELIM);
+            }
+         }
+         line.append(RCRDDELIM);
+         byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+         this.pending.write(bytes, 0, bytes.length);
+         String recordKey = entry.getField(this.keyColumn);
+         if (this.current.count == 0 || recordKey.compareTo(this.current.minKey) < 0) {
+            this.current.minKey = recordKey;
+         }
+         if (this.current.count == 0 || recordKey.compareTo(this.current.maxKey) > 0) {
+            this.current.maxKey = recordKey;
+         }
+         this.current.count++;
+      }
+
+      void writeBlock() throws IOException {
+         if (this.current.count == 0) {
+            return;
+         }
+         byte[] raw = this.pending.toByteArray();
+         this.deflater.reset();
+         this.deflater.setInput(raw);
+         this.deflater.finish();
+         ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4 + 64);
+         byte[] buffer = new byte[8192];
+         while (!this.deflater.finished()) {
+            int n = this.deflater.deflate(buffer);
+            compressed.write(buffer, 0, n);
+         }
+         this.current.position = this.position;
+         this.current.compressedLength = compressed.size();
+         this.current.rawLength = raw.length;
+         compressed.writeTo(this.output);
+         this.position += compressed.size();
+         this.written.add(this.current);
+         this.current = new Block();
+         this.pending.reset();
+      }
+
+      // [block count] then per block [position][compressed length]
+      // [raw length][record count][min key][max key], then the trailer
+      void writeIndex() throws IOException {
+         this.deflater.end();
+         long indexPosition = this.position;
+         this.output.writeInt(this.written.size());
+         this.position += 4;
+         for (Block block : this.written) {
+            this.output.writeLong(block.position);
+            this.output.writeInt(block.compressedLength);
+            this.output.writeInt(block.rawLength);
+            this.output.writeInt(block.count);
+            this.position += 20;
+            writeString(block.minKey);
+            writeString(block.maxKey);
+         }
+         this.output.writeLong(indexPosition);
+         this.output.writeInt(MAGIC);
+      }
+
+      void writeString(String str) throws IOException {
+         byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+         this.output.writeInt(bytes.length);
+         this.output.write(bytes);
+         this.position += 4 + bytes.length;
+      }
+   }
+
+   private static String columnLine(Table table) throws IOException {
+      StringBuilder line = new StringBuilder();
+      int colsz = table.getColumnSize();
+      for (int i = 0; i < colsz; i++) {
+         if (i == table.getKeyColumn()) {
+            line.append(KEYATTRIB);
+         }
+         DelimitedParser.escape(table.getColumnName(i), line);
+         if (i < colsz - 1) {
+            line.append(UNITDELIM);
+         }
+      }
+      return line.toString();
+   }
+
+   private static String typeLine(Table table) {
+      StringBuilder line = new StringBuilder();
+      int colsz = table.getColumnSize();
+      for (int i = 0; i < colsz; i++) {
+         line.append(table.getColumnType(i).name());
+         if (i < colsz - 1) {
+            line.append(UNITDELIM);
+         }
+      }
+      return line.toString();
+   }
+
+   private void readHeader() throws IOException {
+      DataInputStream input = new DataInputStream(new ByteArrayInputStream(readBytes(0,
+         (int) Math.min(this.channel.size(), 8))));
+      int version = this.channel.size() < 8 + TRAILER || input.readInt() != MAGIC 
+         ? -1 : input.readInt();
+      if (version < UNESCAPED_VERSION || version > VERSION) {
+         System.out.println(badFormat);
+         throw new IOException(badFormat);
+      }
+      this.escaped = version != UNESCAPED_VERSION;
+      long[] position = { 8 };
+      this.tableName = readString(position);
+      this.columnLine = readString(position);
+      if (version == VERSION) {
+         this.typeLine = readString(position);
+      }
+      List<String> headers = parseRecords(this.columnLine).get(0).getRow();
+      for (int i = 0; i < headers.size(); i++) {
+         if (headers.get(i).startsWith(KEYATTRIB)) {
+            this.keyColumn = i;
+         }
+      }
+   }
+
+   private void readIndex() throws IOException {
+      long size = this.channel.size();
+      DataInputStream trailer = new DataInputStream(
+         new ByteArrayInputStream(readBytes(size - TRAILER, TRAILER)));
+      long indexPosition = trailer.readLong();
+      if (trailer.readInt() != MAGIC || indexPosition < 0 || indexPosition > size - TRAILER) {
+         System.out.println(badFormat);
+         throw new IOException(badFormat);
+      }
+      DataInputStream index = new DataInputStream(new ByteArrayInputStream(
+         readBytes(indexPosition, (int) (size - TRAILER - indexPosition))));
+      int count = index.readInt();
+      for (int i = 0; i < count; i++) {
+         Block block = new Block();
+         block.position = index.readLong();
+         block.compressedLength = index.readInt();
+         block.rawLength = index.readInt();
+         block.count = index.readInt();
+         block.minKey = readString(index);
+         block.maxKey = readString(index);
+         this.blocks.add(block);
+      }
+   }
+
+   private String readString(long[] position) throws IOException {
+      int length = ByteBuffer.wrap(readBytes(position[0], 4)).getInt();
+      String str = new String(readBytes(position[0] + 4, length), StandardCharsets.UTF_8);
+      position[0] += 4 + length;
+      return str;
+   }
+
+   private static String readString(DataInputStream input) throws IOException {
+      byte[] bytes = new byte[input.readInt()];
+      input.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   // reads length bytes at position; safe to call from several threads
+   private byte[] readBytes(long position, int length) throws IOException {
+      if (length < 0 || position + length > this.channel.size()) {
+         System.out.println(badFormat);
+         throw new IOException(badFormat);
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(length);
+      while (buffer.hasRemaining()) {
+         if (this.channel.read(buffer, position + buffer.position()) < 0) {
+            throw new EOFException();
+         }
+      }
+      return buffer.array();
+   }
+
+   private byte[] readBlock(Block block) throws IOException {
+      byte[] compressed = readBytes(block.position, block.compressedLength);
+      Inflater inflater = new Inflater();
+      try {
+         inflater.setInput(compressed);
+         byte[] raw = new byte[block.rawLength];
+         int n = 0;
+         while (n < raw.length && !inflater.finished()) {
+            n += inflater.inflate(raw, n, raw.length - n);
+            if (inflater.needsInput() && !inflater.finished() && n < raw.length) {
+               break;
+            }
+         }
+         if (n != raw.length) {
+            System.out.println(badFormat);
+            throw new IOException(badFormat);
+         }
+         return raw;
+      } catch (DataFormatException e) {
+         System.out.println(badFormat);
+         throw new IOException(badFormat, e);
+      } finally {
+         inflater.end();
+      }
+   }
+
+   private List<Record> parseRecords(byte[] raw) throws IOException {
+      return parseRecords(new String(raw, StandardCharsets.UTF_8));
+   }
+
+   // keeps empty last fields, which split would drop
+   private List<Record> parseRecords(String lines) throws IOException {
+      ArrayList<Record> records = new ArrayList<>();
+      try (DelimitedParser parser = new DelimitedParser(new StringReader(lines))) {
+         parser.setUnescaping(this.escaped);
+         List<String> row;
+         while ((row = parser.nextRow()) != null) {
+            records.add(new Record(row));
+         }
+      }
+      return records;
+   }
+
+   private static <T> T result(Future<T> future) throws IOException {
+      try {
+         return future.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException();
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+         }
+         throw new IOException(e.getCause());
+      }
+   }
+
+   private Table readColumns() throws IOException {
+      List<String> headers = parseRecords(this.columnLine).get(0).getRow();
+      List<String> types = this.typeLine == null ? null 
+         : parseRecords(this.typeLine).get(0).getRow();
+      return new Table(this.tableName, ColumnID.fromHeaders(headers, types));
+   }
+
+   // --- testing ---
+
+   private static Table testTable(int size) {
+      Table test = new Table("zipped", new ColumnID("key", true),
+         new ColumnID("status", false), new ColumnID("note", false));
+      test.enableKeyOrdering();
+      for (int i = 0; i < size; i++) {
+         test.add(new Record(String.format("k%05d", i), i % 4 == 0 ? "open" : "closed",
+            "caf\u00e9 " + i));
+      }
+      return test;
+   }
+
+   private void testRoundTrip(Path dir) throws IOException {
+      Table table = testTable(5000);
+      String path = dir.resolve("zipped.dbz").toString();
+      write(path, table, table.getRecords(), 4096);
+      try (CompressedFile test = new CompressedFile(path)) {
+         assert(test.getBlockCount() > 10);
+         Table out = test.readTable();
+         assert(out.getName().equals("zipped"));
+         assert(out.getKeyColumn() == 0);
+         assert(out.getColumnName(1).equals("status"));
+         assert(out.getRecordSize() == 5000);
+         assert(out.getKeyList().equals(table.getKeyList()));
+         assert(out.select("k04999").getField(2).equals("caf\u00e9 4999"));
+         // single records come from the one block that can hold them
+         assert(test.find("k01234").getField(2).equals("caf\u00e9 1234"));
+         assert(test.find("k00000").getField(1).equals("open"));
+         assert(test.find("k99999") == null);
+         assert(test.find("a") == null);
+      }
+      // repetitive text shrinks well
+      long text = 0;
+      for (Record entry : table.getRecords()) {
+         for (int i = 0; i < entry.size(); i++) {
+            text += entry.getField(i).getBytes(StandardCharsets.UTF_8).length + 1;
+         }
+      }
+      assert(Files.size(Paths.get(path)) < text / 2);
+      // fields holding delimiters, and empty last fields, come back whole
+      Table awkward = new Table("awk\tward", new ColumnID("key", true), 
+         new ColumnID("no\tte"), new ColumnID("last"));
+      awkward.add(new Record("tab", "a\tb", ""));
+      awkward.add(new Record("line", "one\ntwo", "C:\\temp"));
+      write(path, awkward, awkward.getRecords());
+      try (CompressedFile test = new CompressedFile(path)) {
+         Table out = test.readTable();
+         assert(out.getColumnSize() == 3);
+         assert(out.getColumnName(1).equals("no\tte"));
+         assert(out.select("tab").getField(1).equals("a\tb"));
+         assert(out.select("tab").getField(2).equals(""));
+         assert(out.select("line").getField(1).equals("one\ntwo"));
+         assert(out.select("line").getField(2).equals("C:\\temp"));
+         assert(out.getColumnType(1) == FieldType.STRING);
+         assert(test.find("tab").getField(2).equals(""));
+      }
+      // column types come back with the columns
+      Table typed = new Table("typed", new ColumnID("key", true, FieldType.INT),
+         new ColumnID("price", false, FieldType.FLOAT), new ColumnID("ok", false, FieldType.BOOLEAN));
+      typed.add(new Record("01", "2.5", "true"));
+      write(path, typed, typed.getRecords());
+      try (CompressedFile test = new CompressedFile(path)) {
+         Table out = test.readTable();
+         assert(out.getColumnType(0) == FieldType.INT);
+         assert(out.getColumnType(1) == FieldType.FLOAT);
+         assert(out.getColumnType(2) == FieldType.BOOLEAN);
+         assert(out.select("01").getField(1).equals("2.5"));
+      }
+      // empty tables have no blocks
+      Table empty = new Table("empty", new ColumnID("key", true));
+      write(path, empty, empty.getRecords());
+      try (CompressedFile test = new CompressedFile(path)) {
+         assert(test.getBlockCount() == 0);
+         assert(test.readTable().getRecordSize() == 0);
+         assert(test.find("k") == null);
+      }
+   }
+
+   private void testBadFiles(Path dir) throws IOException {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      Path path = dir.resolve("bad.dbz");
+      Files.write(path, "not\n*compressed\n".getBytes(StandardCharsets.UTF_8));
+      boolean caught = false;
+      try { new CompressedFile(path.toString()); }
+      catch (IOException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      // a damaged block is found when it is read
+      Table table = testTable(100);
+      write(path.toString(), table, table.getRecords());
+      byte[] bytes = Files.readAllBytes(path);
+      bytes[bytes.length / 2] ^= 0x5a;
+      bytes[bytes.length / 2 + 1] ^= 0x5a;
+      Files.write(path, bytes);
+      try (CompressedFile test = new CompressedFile(path.toString())) {
+         test.readTable();
+      } catch (IOException | IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void runTests() throws IOException {
+      Path dir = Files.createTempDirectory("compressed");
+      try {
+         testRoundTrip(dir);
+         testBadFiles(dir);
+      } finally {
+         for (java.io.File entry : dir.toFile().listFiles()) {
+            entry.delete();
+         }
+         Files.delete(dir);
+      }
+   }
+
+   public static void main(String[] args) throws IOException {
+      Path dir = Files.createTempDirectory("compressed");
+      Table empty = new Table("empty", new ColumnID("key", true));
+      String path = dir.resolve("main.dbz").toString();
+      write(path, empty, empty.getRecords());
+      CompressedFile program = new CompressedFile(path);
+      program.close();
+      Files.delete(Paths.get(path));
+      Files.delete(dir);
+      program.runTests();
+   }
+}
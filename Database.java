@@ -4,22 +4,68 @@
  * key (tables thus must have unique names). This is validated using helper 
  * methods which check for unique table names upon creation and adding. Tables
  * can be updated with new records, with unique record keys validated by the 
- * Table class.
+ * Table class. A WriteAheadLog can be attached to record every change to the
+ * database and its tables; tables added later are logged in full. Databases
+ * are safe to share between threads: selecting tables shares a read-write
+ * lock, while adding, dropping or replacing tables takes it exclusively.
+ * A Snapshot of the database sees the tables it held and their records as
+ * they were when it was opened; with a log attached, the log is marked at the
+ * same moment so a save through the snapshot can cut exactly what it saved.
+ * Changes to several records and tables can be grouped into a Transaction,
+ * which this class commits; updating a whole record is one transaction.
+ * Tables of a database can be joined with one another (see Join.java).
+ * Tables can also be added lazily, as a name and a way to load the table: it
+ * is loaded once, by the first select of it (other threads selecting it 
+ * meanwhile wait for that load), or ahead of time in the background with
+ * prefetch. Snapshots taken before a table is loaded see it as loaded.
+ * A memory budget can be set for the tables held: when the loaded tables are
+ * estimated to need more (see Table.estimateBytes), lazily added tables are
+ * evicted in least recently selected order, those changed since they were
+ * loaded first being saved through their saver, and go back to being loaded
+ * on their next select. Callers should select a table again rather than keep
+ * it, as changes to an evicted table are lost. Tables changed since loading
+ * are kept while a log is attached (the log holds their changes until the
+ * next save), as are tables without a saver and tables added with add().
  */
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.LinkedHashMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.io.*;
 
 class Database {
    private String name;
    private String folder = "/databases/";
+   // tables not loaded yet are held as null, with a loader in loaders
    private LinkedHashMap<String,Table> tables;
+   private HashMap<String,Loader> loaders = new HashMap<>();
+   // lazily added tables that are loaded, least recently selected first
+   private final LinkedHashMap<String,Loader> recency = new LinkedHashMap<>(16, 0.75f, true);
+   private volatile long memoryBudget = 0;
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+   private final AtomicLong evictions = new AtomicLong();
+   private WriteAheadLog log;
+   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
    private static final String noSuchTable = "No such table exists in database.";
    private static final String duplicateKey = "Duplicate table names in database.";
-   private static final String sizeMismatch = "Records are not the same size.";
+   private static final String conflict = "Transaction conflicts with a later change.";
+   private static final String loadFailed = "Table could not be loaded.";
 
    Database() {
       this.name = "untitled";
@@ -45,10 +91,45 @@ class Database {
    }
 
    void setTables(Table... tables) {
-      this.tables.clear();
-      for (Table entry : tables) {
-         checkIfDuplicateKeyAndClear(entry.getName(), true);
-         this.tables.put(entry.getName(), entry);
+      this.lock.writeLock().lock();
+      try {
+         for (String entry : new ArrayList<>(this.tables.keySet())) {
+            detachTable(entry);
+         }
+         this.tables.clear();
+         this.loaders.clear();
+         synchronized (this.recency) {
+            this.recency.clear();
+         }
+         for (Table entry : tables) {
+            checkIfDuplicateKeyAndClear(entry.getName(), true);
+            this.tables.put(entry.getName(), entry);
+         }
+         for (Table entry : tables) {
+            attachTable(entry);
+         }
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   WriteAheadLog getLog() {
+      return this.log;
+   }
+
+   // logs all later changes to log; current contents are not logged, so they 
+   // should already be saved
+   void setLog(WriteAheadLog log) {
+      this.lock.writeLock().lock();
+      try {
+         this.log = log;
+         for (Table entry : this.tables.values()) {
+            if (entry != null) {
+               entry.setLog(log);
+            }
+         }
+      } finally {
+         this.lock.writeLock().unlock();
       }
    }
 
@@ -69,41 +150,482 @@ class Database {
    }
 
    void add(Table table) {
-      String key = table.getName();
-      checkIfDuplicateKeyAndClear(table.getName(), false);
-      this.tables.put(key, table);
+      this.lock.writeLock().lock();
+      try {
+         String key = table.getName();
+         checkIfDuplicateKeyAndClear(table.getName(), false);
+         this.tables.put(key, table);
+         attachTable(table);
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   // adds a table under key which is only loaded, by loader, when it is 
+   // first selected; it should load a table named key that is already saved,
+   // as its records are not logged
+   void addLazy(String key, Callable<Table> loader) {
+      addLazy(key, loader, null);
+   }
+
+   // as addLazy(), with saver to write the table back where loader reads it
+   // from before the table is evicted, if it has changed
+   void addLazy(String key, Callable<Table> loader, Consumer<Table> saver) {
+      this.lock.writeLock().lock();
+      try {
+         checkIfDuplicateKeyAndClear(key, false);
+         this.tables.put(key, null);
+         this.loaders.put(key, new Loader(loader, saver));
+      } finally {
+         this.lock.writeLock().unlock();
+      }
    }
 
+   long getMemoryBudget() {
+      return this.memoryBudget;
+   }
+
+   // bytes the loaded tables may take before lazily added ones are evicted;
+   // 0 for no limit
+   void setMemoryBudget(long bytes) {
+      this.memoryBudget = bytes;
+      evictOverBudget(null);
+   }
+
+   // selects of loaded tables, selects which had to load the table, and 
+   // tables evicted
+   long getCacheHits() {
+      return this.hits.get();
+   }
+
+   long getCacheMisses() {
+      return this.misses.get();
+   }
+
+   long getEvictions() {
+      return this.evictions.get();
+   }
+
+   boolean isLoaded(String key) {
+      this.lock.readLock().lock();
+      try {
+         checkIfTableExists(key);
+         return this.tables.get(key) != null;
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // loads every table not loaded yet, one task per table on executor; a 
+   // table that fails to load is left to be loaded (or fail) when selected
+   void prefetch(Executor executor) {
+      for (String entry : getKeyList()) {
+         executor.execute(() -> {
+            try {
+               select(entry);
+            } catch (RuntimeException e) {
+               // reported by the select that needs it
+            }
+         });
+      }
+   }
+
+   // loads the table first if it has not been loaded yet
    Table select(String key) {
-      checkIfTableExists(key);
-      return this.tables.get(key);
+      Loader loader;
+      this.lock.readLock().lock();
+      try {
+         checkIfTableExists(key);
+         Table table = this.tables.get(key);
+         if (table != null) {
+            this.hits.incrementAndGet();
+            if (this.memoryBudget > 0) {
+               synchronized (this.recency) {
+                  this.recency.get(key);
+               }
+            }
+            return table;
+         }
+         loader = this.loaders.get(key);
+      } finally {
+         this.lock.readLock().unlock();
+      }
+      this.misses.incrementAndGet();
+      Table table = install(key, loader);
+      evictOverBudget(key);
+      return table;
    }
 
+   // drops the table, freeing its storage (see Table.free)
    void delete(String key) {
-      checkIfTableExists(key);
-      this.tables.remove(key);
+      this.lock.writeLock().lock();
+      try {
+         checkIfTableExists(key);
+         detachTable(key);
+         Table removed = this.tables.remove(key);
+         this.loaders.remove(key);
+         synchronized (this.recency) {
+            this.recency.remove(key);
+         }
+         if (removed != null) {
+            removed.free();
+         }
+      } finally {
+         this.lock.writeLock().unlock();
+      }
    }
 
+   // replaces every field of the record at once
    void update(String tableName, String recordName, Record newRecord) {
-      checkIfTableExists(tableName);
-      Record currRecord = select(tableName).select(recordName);
-      checkValidRecordUpdate(currRecord, newRecord);
-      for (int i = 0; i < currRecord.size(); i++) {
-         select(tableName).update(recordName, i, newRecord.getField(i));
+      select(tableName);
+      try (Transaction transaction = begin()) {
+         transaction.update(tableName, recordName, newRecord);
+         transaction.commit();
       }
    }
 
+   // joins two of the database's tables on equal values of a column of each
+   Join join(String leftTable, String leftColumn, String rightTable, String rightColumn) {
+      return new Join(select(leftTable), leftColumn, select(rightTable), rightColumn);
+   }
+
    List<String> getKeyList() {
-      ArrayList<String> keys = new ArrayList<>(tables.keySet());
-      return keys;
+      this.lock.readLock().lock();
+      try {
+         ArrayList<String> keys = new ArrayList<>(tables.keySet());
+         return keys;
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // --- transactions ---
+
+   Transaction begin() {
+      this.lock.readLock().lock();
+      try {
+         return new Transaction(this, new Snapshot(this.tables));
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // applies the changes of transaction, failing if any changed record or 
+   // table was changed by someone else since the transaction began
+   void commit(Transaction transaction) {
+      Map<String,LinkedHashMap<String,Record>> writes = transaction.getWrites();
+      if (writes.isEmpty()) {
+         return;
+      }
+      // loading takes the exclusive lock, so it can't happen under the shared one
+      for (String entry : writes.keySet()) {
+         if (getKeyList().contains(entry)) {
+            select(entry);
+         }
+      }
+      this.lock.readLock().lock();
+      try {
+         List<String> tableNames = new ArrayList<>(writes.keySet());
+         tableNames.sort(null);
+         List<Table> changed = new ArrayList<>();
+         for (String entry : tableNames) {
+            Table table = this.tables.get(entry);
+            if (table == null || table != select(entry, transaction.getSnapshot())) {
+               System.out.println(conflict);
+               throw new IllegalArgumentException();
+            }
+            changed.add(table);
+         }
+         if (this.log == null) {
+            commitQuietly(changed, 0, transaction);
+            return;
+         }
+         boolean logged = false;
+         this.log.beginBatch();
+         try {
+            commitQuietly(changed, 0, transaction);
+            logged = true;
+         } finally {
+            if (logged) {
+               this.log.endBatch();
+            } else {
+               this.log.abortBatch();
+            }
+         }
+         this.log.commit();
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // --- snapshot reads ---
+
+   Snapshot snapshot() {
+      this.lock.readLock().lock();
+      try {
+         if (this.log == null) {
+            return new Snapshot(this.tables);
+         }
+         // wait out changes in progress so the mark and the snapshot agree;
+         // tables not loaded yet have none
+         List<Table> quiet = new ArrayList<>();
+         for (Table entry : this.tables.values()) {
+            if (entry != null) {
+               quiet.add(entry);
+            }
+         }
+         quiet.sort(Comparator.comparing(Table::getName));
+         return markedSnapshot(quiet, 0);
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // a table the snapshot saw before it was loaded is loaded now; it must 
+   // not have been dropped since
+   Table select(String key, Snapshot snapshot) {
+      if (snapshot.getTables() == null || !snapshot.getTables().containsKey(key)) {
+         System.out.println(noSuchTable);
+         throw new IllegalArgumentException();
+      }
+      Table table = snapshot.getTables().get(key);
+      return table != null ? table : select(key);
+   }
+
+   List<String> getKeyList(Snapshot snapshot) {
+      if (snapshot.getTables() == null) {
+         return new ArrayList<String>();
+      }
+      return new ArrayList<String>(snapshot.getTables().keySet());
    }
 
    // --- helper methods ---
 
-   private void checkValidRecordUpdate(Record currRecord, Record newRecord) {
-      if (currRecord.size() != newRecord.size()) {
-         System.out.println(sizeMismatch);
-         throw new IndexOutOfBoundsException();
+   // loads a lazily added table once; threads asking meanwhile wait for it
+   private static class Loader {
+      private final Callable<Table> source;
+      private final Consumer<Table> saver;
+      private Table table;
+      private volatile long savedAt;
+
+      Loader(Callable<Table> source, Consumer<Table> saver) {
+         this.source = source;
+         this.saver = saver;
+      }
+
+      synchronized Table load() throws Exception {
+         if (this.table == null) {
+            Table loaded = this.source.call();
+            // snapshots opened before the load see the table as it was read
+            loaded.forgetVersions();
+            this.savedAt = Snapshot.nextStamp();
+            this.table = loaded;
+         }
+         return this.table;
+      }
+
+      // whether the table has changed since it was loaded or last saved
+      boolean isDirty() {
+         return this.table.getLastChange() > this.savedAt;
+      }
+
+      // writes the table back, holding off changes meanwhile
+      void save() {
+         this.table.whileQuiet(() -> {
+            long stamp = Snapshot.nextStamp();
+            this.saver.accept(this.table);
+            this.savedAt = stamp;
+            return null;
+         });
+      }
+   }
+
+   // evicts lazily added tables, least recently selected first and never
+   // keep, until the loaded tables fit the memory budget
+   private void evictOverBudget(String keep) {
+      long budget = this.memoryBudget;
+      if (budget <= 0) {
+         return;
+      }
+      List<String> candidates;
+      synchronized (this.recency) {
+         candidates = new ArrayList<>(this.recency.keySet());
+      }
+      long total = 0;
+      this.lock.readLock().lock();
+      try {
+         for (Table entry : this.tables.values()) {
+            total += entry == null ? 0 : entry.estimateBytes();
+         }
+      } finally {
+         this.lock.readLock().unlock();
+      }
+      for (String entry : candidates) {
+         if (total <= budget) {
+            return;
+         }
+         if (!entry.equals(keep)) {
+            total -= evict(entry);
+         }
+      }
+   }
+
+   // swaps a loaded table for a fresh loader, saving it first if needed;
+   // returns the bytes freed, or 0 if the table has to stay
+   private long evict(String key) {
+      Loader loader;
+      synchronized (this.recency) {
+         loader = this.recency.get(key);
+      }
+      if (loader == null) {
+         return 0;
+      }
+      if (loader.isDirty()) {
+         if (this.log != null || loader.saver == null) {
+            return 0;
+         }
+         loader.save();
+      }
+      this.lock.writeLock().lock();
+      try {
+         // changed or replaced while it was being saved
+         if (this.tables.get(key) != loader.table || loader.isDirty()) {
+            return 0;
+         }
+         long bytes = loader.table.estimateBytes();
+         this.tables.put(key, null);
+         this.loaders.put(key, new Loader(loader.source, loader.saver));
+         synchronized (this.recency) {
+            this.recency.remove(key);
+         }
+         loader.table.free();
+         this.evictions.incrementAndGet();
+         return bytes;
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   // loads a table through loader and puts it in place of its placeholder,
+   // unless the table was dropped or replaced meanwhile
+   private Table install(String key, Loader loader) {
+      Table table;
+      try {
+         table = loader.load();
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      } catch (RuntimeException e) {
+         throw e;
+      } catch (Exception e) {
+         System.out.println(loadFailed);
+         throw new IllegalArgumentException(e);
+      }
+      this.lock.writeLock().lock();
+      try {
+         if (this.loaders.get(key) == loader) {
+            this.loaders.remove(key);
+            this.tables.put(key, table);
+            table.setLog(this.log);
+            synchronized (this.recency) {
+               this.recency.put(key, loader);
+            }
+         }
+         return table;
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   // holds off changes to changed[next..] then checks for conflicts and 
+   // applies the transaction's changes
+   private Void commitQuietly(List<Table> changed, int next, Transaction transaction) {
+      if (next < changed.size()) {
+         return changed.get(next).whileQuiet(() -> 
+            commitQuietly(changed, next + 1, transaction));
+      }
+      long stamp = transaction.getSnapshot().getStamp();
+      for (Table table : changed) {
+         for (String entry : transaction.getWrites().get(table.getName()).keySet()) {
+            if (table.changedSince(entry, stamp)) {
+               System.out.println(conflict);
+               throw new IllegalArgumentException();
+            }
+         }
+      }
+      return Snapshot.atomically(() -> applyChanges(changed, transaction));
+   }
+
+   // undoes the changes already made if one fails
+   private Void applyChanges(List<Table> changed, Transaction transaction) {
+      Snapshot snapshot = transaction.getSnapshot();
+      ArrayList<Runnable> undo = new ArrayList<>();
+      try {
+         for (Table table : changed) {
+            Map<String,Record> changes = transaction.getWrites().get(table.getName());
+            for (Map.Entry<String,Record> entry : changes.entrySet()) {
+               String recordKey = entry.getKey();
+               Record newRecord = entry.getValue();
+               if (!table.contains(recordKey, snapshot)) {
+                  if (newRecord != null) {
+                     table.add(newRecord);
+                     undo.add(() -> table.delete(recordKey));
+                  }
+               } else if (newRecord == null) {
+                  Record removed = table.select(recordKey, snapshot);
+                  table.delete(recordKey);
+                  undo.add(() -> table.add(removed));
+               } else {
+                  Record currRecord = table.select(recordKey, snapshot);
+                  for (int i = 0; i < currRecord.size(); i++) {
+                     String previous = currRecord.getField(i);
+                     if (!previous.equals(newRecord.getField(i))) {
+                        final int idx = i;
+                        table.update(recordKey, idx, newRecord.getField(idx));
+                        undo.add(() -> table.update(recordKey, idx, previous));
+                     }
+                  }
+               }
+            }
+         }
+      } catch (RuntimeException e) {
+         for (int i = undo.size() - 1; i >= 0; i--) {
+            undo.get(i).run();
+         }
+         throw e;
+      }
+      return null;
+   }
+
+   // holds off changes to tables[next..] then opens the snapshot and marks 
+   // the log; must hold the read lock
+   private Snapshot markedSnapshot(List<Table> quiet, int next) {
+      if (next == quiet.size()) {
+         this.log.mark();
+         return new Snapshot(this.tables);
+      }
+      return quiet.get(next).whileQuiet(() -> markedSnapshot(quiet, next + 1));
+   }
+
+   // logs a new table with its records and starts logging its changes
+   private void attachTable(Table table) {
+      if (this.log != null) {
+         table.setLog(null);
+         this.log.logCreateTable(table);
+         for (Record entry : table.getRecords()) {
+            this.log.logAdd(table.getName(), entry);
+         }
+         table.setLog(this.log);
+      }
+   }
+
+   private void detachTable(String key) {
+      if (this.log != null) {
+         if (this.tables.get(key) != null) {
+            this.tables.get(key).setLog(null);
+         }
+         this.log.logDropTable(key);
       }
    }
 
@@ -172,6 +694,8 @@ class Database {
       List<String> testDBKeys = testDB.getKeyList();
       assert(testDBKeys.get(0) == testNameT1);
       assert(testDBKeys.get(1) == testNameT2);
+      // join tables
+      assert(testDB.join(testNameT1, "key", testNameT2, "key").toTable("j").getRecordSize() == 2);
       // update tables
       Record testUpdateR = new Record("key1", "3", "3");
       testDB.update(testTable1.getName(), "key1", testUpdateR);
@@ -193,11 +717,238 @@ class Database {
       System.setOut(console);
    }
 
-   private void runTests() {
+   private void testConcurrentAccess() throws InterruptedException {
+      Database testDB = new Database("concurrent");
+      testDB.add(new Table("shared", new ColumnID("key", true), new ColumnID("v")));
+      Thread[] workers = new Thread[8];
+      for (int t = 0; t < workers.length; t++) {
+         final int id = t;
+         workers[t] = new Thread(() -> {
+            // each worker creates and drops its own table while others read
+            for (int i = 0; i < 200; i++) {
+               String name = "t" + id + "_" + i;
+               testDB.add(new Table(name, new ColumnID("key", true)));
+               testDB.select("shared");
+               testDB.select(name).add(new Record("k"));
+               if (i % 2 == 0) {
+                  testDB.delete(name);
+               }
+            }
+         });
+         workers[t].start();
+      }
+      for (Thread worker : workers) {
+         worker.join();
+      }
+      assert(testDB.getKeyList().size() == 1 + 8 * 100);
+      assert(testDB.select("t3_199").getRecordSize() == 1);
+   }
+
+   private void testDatabaseSnapshot() {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      Database testDB = new Database("snapshots");
+      Table first = new Table("first", new ColumnID("key", true), new ColumnID("v"));
+      first.add(new Record("a", "1"));
+      testDB.add(first);
+      Snapshot snapshot = testDB.snapshot();
+      testDB.add(new Table("second", new ColumnID("key", true)));
+      testDB.delete("first");
+      first.update("a", 1, "2");
+      // dropped tables and old records are still there through the snapshot
+      assert(testDB.getKeyList(snapshot).size() == 1);
+      assert(testDB.select("first", snapshot).select("a", snapshot).getField(1).equals("1"));
+      boolean caught = false;
+      try { testDB.select("second", snapshot); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      snapshot.close();
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void testDeleteFreesStorage() {
+      Database testDB = new Database("offheap");
+      Table dropped = new Table("dropped", new ColumnID("key", true), new ColumnID("v"));
+      dropped.setStorageMode(StorageMode.OFF_HEAP);
+      dropped.add(new Record("a", "1"));
+      testDB.add(dropped);
+      testDB.delete("dropped");
+      assert(dropped.getOffHeapStore().isFreed() == true);
+      // a snapshot open at the time holds off the free until it closes
+      Table kept = new Table("kept", new ColumnID("key", true), new ColumnID("v"));
+      kept.setStorageMode(StorageMode.OFF_HEAP);
+      kept.add(new Record("a", "1"));
+      testDB.add(kept);
+      Snapshot snapshot = testDB.snapshot();
+      testDB.delete("kept");
+      assert(kept.getOffHeapStore().isFreed() == false);
+      assert(testDB.select("kept", snapshot).select("a", snapshot).getField(1).equals("1"));
+      snapshot.close();
+      Snapshot.collectVersions();
+      assert(kept.getOffHeapStore().isFreed() == true);
+   }
+
+   private void testLazyTables() throws InterruptedException {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      Database testDB = new Database("lazy");
+      AtomicInteger loads = new AtomicInteger();
+      testDB.addLazy("people", () -> {
+         loads.incrementAndGet();
+         Thread.sleep(20);
+         Table loaded = new Table("people", new ColumnID("key", true), new ColumnID("v"));
+         loaded.add(new Record("a", "1"));
+         return loaded;
+      });
+      assert(testDB.getKeyList().equals(List.of("people")));
+      assert(testDB.isLoaded("people") == false);
+      // a snapshot from before the load sees the loaded records
+      Snapshot snapshot = testDB.snapshot();
+      // many threads selecting at once share one load
+      Thread[] threads = new Thread[8];
+      Table[] seen = new Table[threads.length];
+      for (int t = 0; t < threads.length; t++) {
+         final int n = t;
+         threads[t] = new Thread(() -> seen[n] = testDB.select("people"));
+         threads[t].start();
+      }
+      for (Thread thread : threads) {
+         thread.join();
+      }
+      assert(loads.get() == 1);
+      for (Table entry : seen) {
+         assert(entry == seen[0]);
+      }
+      assert(testDB.isLoaded("people") == true);
+      testDB.select("people").update("a", 1, "2");
+      assert(testDB.select("people", snapshot).select("a", snapshot).getField(1).equals("1"));
+      snapshot.close();
+      // transactions load the tables they write to
+      testDB.addLazy("later", () -> new Table("later", new ColumnID("key", true)));
+      try (Transaction transaction = testDB.begin()) {
+         transaction.add("later", new Record("x"));
+         transaction.commit();
+      }
+      assert(testDB.select("later").select("x") != null);
+      // failed loads can be tried again, and dropped tables are never loaded
+      boolean[] fail = { true };
+      testDB.addLazy("flaky", () -> {
+         if (fail[0]) {
+            throw new IOException();
+         }
+         return new Table("flaky", new ColumnID("key", true));
+      });
+      boolean caught = false;
+      try { testDB.select("flaky"); }
+      catch (UncheckedIOException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      fail[0] = false;
+      assert(testDB.select("flaky").getName().equals("flaky"));
+      testDB.addLazy("dropped", () -> { throw new IllegalStateException(); });
+      testDB.delete("dropped");
+      try { testDB.addLazy("flaky", () -> null); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      // prefetching loads everything in the background
+      Database prefetched = new Database("prefetched");
+      for (int t = 0; t < 4; t++) {
+         String key = "t" + t;
+         prefetched.addLazy(key, () -> new Table(key, new ColumnID("key", true)));
+      }
+      ExecutorService service = Executors.newFixedThreadPool(2);
+      prefetched.prefetch(service);
+      service.shutdown();
+      service.awaitTermination(10, TimeUnit.SECONDS);
+      for (int t = 0; t < 4; t++) {
+         assert(prefetched.isLoaded("t" + t) == true);
+      }
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void testMemoryBudget() throws IOException {
+      Database testDB = new Database("budget");
+      Map<String,Integer> loads = new HashMap<>();
+      Map<String,Table> saved = new HashMap<>();
+      for (String key : List.of("a", "b", "c")) {
+         testDB.addLazy(key, () -> {
+            loads.merge(key, 1, Integer::sum);
+            Table loaded = new Table(key, new ColumnID("key", true), new ColumnID("v"));
+            Table copy = saved.get(key);
+            for (int i = 0; i < 100; i++) {
+               String value = copy == null ? "0" : copy.select("k" + i).getField(1);
+               loaded.add(new Record("k" + i, value));
+            }
+            return loaded;
+         }, table -> saved.put(key, table));
+      }
+      long size = testDB.select("a").estimateBytes();
+      assert(size > 0);
+      // room for two of the three tables
+      testDB.setMemoryBudget(size * 2 + size / 2);
+      testDB.select("b");
+      testDB.select("a");
+      assert(testDB.getEvictions() == 0);
+      testDB.select("c");
+      // b was selected least recently
+      assert(testDB.getEvictions() == 1);
+      assert(testDB.isLoaded("b") == false);
+      assert(testDB.isLoaded("a") == true);
+      assert(testDB.isLoaded("c") == true);
+      assert(testDB.getCacheMisses() == 3);
+      assert(testDB.getCacheHits() == 1);
+      // changed tables are saved before they are evicted, and read back
+      testDB.select("a").update("k1", 1, "changed");
+      testDB.select("c");
+      testDB.select("b");
+      assert(testDB.isLoaded("a") == false);
+      assert(saved.containsKey("a") == true);
+      assert(saved.containsKey("c") == false);
+      assert(testDB.select("a").select("k1").getField(1).equals("changed"));
+      assert(loads.get("a") == 2);
+      // while logging, changed tables stay until they are saved
+      Database logged = new Database("logged");
+      for (String key : List.of("x", "y")) {
+         logged.addLazy(key, () -> new Table(key, new ColumnID("key", true)), table -> {});
+      }
+      Path dir = Files.createTempDirectory("budget");
+      try (WriteAheadLog log = new WriteAheadLog(dir.resolve("logged.wal").toString())) {
+         logged.setLog(log);
+         logged.select("x").add(new Record("1"));
+         logged.setMemoryBudget(1);
+         logged.select("y");
+         assert(logged.isLoaded("x") == true);
+         assert(logged.getEvictions() == 0);
+         logged.setLog(null);
+      }
+      logged.setMemoryBudget(0);
+      assert(logged.getMemoryBudget() == 0);
+   }
+
+   private void runTests() throws InterruptedException, IOException {
       testDatabaseCreation();
+      testConcurrentAccess();
+      testDatabaseSnapshot();
+      testDeleteFreesStorage();
+      testLazyTables();
+      testMemoryBudget();
    }
 
-   public static void main(String[] args) {
+   public static void main(String[] args) throws InterruptedException, IOException {
       Database program = new Database();
       program.runTests();
    }
@@ -1,3 +1,73 @@
+import java.util.Comparator;
+
 public enum FieldType {
-    STRING, INT, FLOAT, BOOLEAN
+    STRING, INT, FLOAT, BOOLEAN;
+
+    // orders values by what they mean for this type (numerically for INT and
+    // FLOAT, false before true for BOOLEAN); values that do not parse as this
+    // type sort after those that do, in string order
+    int compare(String a, String b) {
+        if (this == STRING) {
+            return a.compareTo(b);
+        }
+        boolean aValid = isValid(a);
+        boolean bValid = isValid(b);
+        if (aValid && bValid) {
+            switch (this) {
+                case INT:
+                    return Long.compare(
+                        Long.parseLong(a.trim()), Long.parseLong(b.trim()));
+                case FLOAT:
+                    return Double.compare(
+                        Double.parseDouble(a.trim()), Double.parseDouble(b.trim()));
+                default:
+                    return Boolean.compare(
+                        Boolean.parseBoolean(a.trim()), Boolean.parseBoolean(b.trim()));
+            }
+        } else if (aValid != bValid) {
+            return aValid ? -1 : 1;
+        }
+        return a.compareTo(b);
+    }
+
+    // one spelling for all the values that compare equal as this type (e.g.
+    // "09" and " 9" are both "9" for INT); invalid values are left as they are
+    String canonical(String value) {
+        if (this == STRING || !isValid(value)) {
+            return value;
+        }
+        switch (this) {
+            case INT:
+                return Long.toString(Long.parseLong(value.trim()));
+            case FLOAT:
+                return Double.toString(Double.parseDouble(value.trim()));
+            default:
+                return Boolean.toString(Boolean.parseBoolean(value.trim()));
+        }
+    }
+
+    Comparator<String> comparator() {
+        return this::compare;
+    }
+
+    boolean isValid(String value) {
+        try {
+            switch (this) {
+                case INT:
+                    Long.parseLong(value.trim());
+                    return true;
+                case FLOAT:
+                    Double.parseDouble(value.trim());
+                    return true;
+                case BOOLEAN:
+                    String trimmed = value.trim();
+                    return trimmed.equalsIgnoreCase("true")
+                        || trimmed.equalsIgnoreCase("false");
+                default:
+                    return true;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
 }
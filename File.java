@@ -2,34 +2,79 @@
  * include writing tables and databases to files along with reading files for 
  * databases and tables and parsing/returning them as objects. Tables are saved
  * as tab-delimited text files with their names, columns (key column prefixed 
- * with an asterisk), and records. Databases are stored with their name, 
+ * with an asterisk), column types and records; files written before types
+ * were saved are read with every column as STRING. Databases are stored with their name, 
  * relative folder, and any/all table file names. File objects can be 
  * constructed with database file names (without extension) and directories.
  * Constructor arguments are important to set when determining where databases
- * will be saved (can be taken from database objects or set by user). 
+ * will be saved (can be taken from database objects or set by user). Tables
+ * can also be saved in a binary page file (see PageFile.java) next to the 
+ * text file, which can be opened without parsing every record. For large,
+ * read-mostly tables, files can instead be read through a memory mapping (see
+ * MappedFile.java) which decodes fields lazily. Files are written by 
+ * streaming through a ChannelWriter into a temporary file which then replaces
+ * the target, so saving uses constant memory and never leaves a half-written
+ * file behind. Databases can keep a write-ahead log (see WriteAheadLog.java)
+ * next to their database file: once logging is enabled, saving a database
+ * only rewrites the tables changed since the last save, and reading it 
+ * replays any changes logged since then. Changes are durable once the log 
+ * commits them; the database is saved again in the background whenever its
+ * log grows past the log's checkpoint size or entry count. In parallel mode the table files of
+ * a database are read and written concurrently on an executor (by default 
+ * one using virtual threads where the runtime has them). Databases can also
+ * be saved with their tables as block-compressed .dbz files (see 
+ * CompressedFile.java) rather than text; the database file names each
+ * table's file, so reading picks the right format for each table. In lazy
+ * mode reading a database only reads the database file, and each table file
+ * is read when the table is first selected (see Database.addLazy), or ahead
+ * of time in the background if prefetching is on; tables the database 
+ * evicts to stay within its memory budget are written back to their files.
  */
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 class File {
    private static final String UNITDELIM = "\t";
    private static final String RCRDDELIM = "\n";
    private static final String KEYATTRIB = "*";
    private static final String EXTENSION = ".dbf";
+   private static final String PAGEEXTEN = ".dbp";
+   private static final String COMPEXTEN = ".dbz";
    private static final String DEF_FNAME = "untitled";
    private static final String DEF_FPATH = "/databases/";
    private static final String CENCODING = "UTF-8";
    private static final String USER_PATH = System.getProperty("user.dir");
+   private static final String TEMPEXTEN = ".tmp";
+   private static final String LOGEXTENS = ".wal";
 
    private String filename;
    private String dirpath;
    private String filepath;
-   private int lineCnt = 0;
+   private boolean memoryMapped = false;
+   private boolean parallel = false;
+   private boolean compressed = false;
+   private boolean lazy = false;
+   private boolean prefetch = false;
+   private ExecutorService executor;
+
+   private static ExecutorService defaultExecutor;
 
    File() {
       this.filename = DEF_FNAME + EXTENSION;
@@ -64,6 +109,57 @@ class File {
       return this.filepath;
    }
 
+   boolean isMemoryMapped() {
+      return this.memoryMapped;
+   }
+
+   // whether readDatabaseFiles() reads table files through memory mappings
+   void setMemoryMapped(boolean memoryMapped) {
+      this.memoryMapped = memoryMapped;
+   }
+
+   boolean isParallel() {
+      return this.parallel;
+   }
+
+   // whether table files of a database are read and written concurrently
+   void setParallel(boolean parallel) {
+      this.parallel = parallel;
+   }
+
+   boolean isCompressed() {
+      return this.compressed;
+   }
+
+   // whether writeDatabaseToFiles() saves tables as compressed .dbz files
+   void setCompressed(boolean compressed) {
+      this.compressed = compressed;
+   }
+
+   boolean isLazy() {
+      return this.lazy;
+   }
+
+   // whether readDatabaseFiles() leaves each table to be read on first use
+   void setLazy(boolean lazy) {
+      this.lazy = lazy;
+   }
+
+   boolean isPrefetching() {
+      return this.prefetch;
+   }
+
+   // whether lazily read databases start reading every table in the 
+   // background straight away, on the executor
+   void setPrefetching(boolean prefetch) {
+      this.prefetch = prefetch;
+   }
+
+   // executor for parallel reads and writes; null for the default one
+   void setExecutor(ExecutorService executor) {
+      this.executor = executor;
+   }
+
    /* no validation: to completely validate file paths is a lot of work; 
     * make this the user's responsibility
     */
@@ -71,64 +167,317 @@ class File {
       this.filepath = name;
    }
 
+   // writes the database as it was at one snapshot, so writers are never 
+   // held up by the save. With a log attached, only tables changed since the
+   // last save are written, after which the entries the snapshot saw are cut 
+   // from the log
    void writeDatabaseToFiles(Database database) {
-      String databaseInfo = writeDatabaseInfoToString(database);
-      writeStringToFile(databaseInfo);
-      List<String> tableKeys = database.getKeyList();
-      for (String entry : tableKeys) {
-         File newTableFile = new File(entry, database.getFolder());
-         newTableFile.writeTableToFile(database.select(entry));
+      writeDatabaseToFiles(database, this.compressed);
+   }
+
+   // as writeDatabaseToFiles(), choosing text or compressed table files for
+   // this save only; a table whose file is in the other format is rewritten 
+   // even if unchanged. The table files are written first and the database
+   // file, which names them, last, so a save that fails partway leaves the
+   // database file naming the files of the last complete save
+   void writeDatabaseToFiles(Database database, boolean compressed) {
+      String extension = compressed ? COMPEXTEN : EXTENSION;
+      WriteAheadLog log = database.getLog();
+      try (Snapshot snapshot = database.snapshot()) {
+         List<String> allKeys = database.getKeyList(snapshot);
+         List<String> tableKeys = allKeys;
+         if (log != null) {
+            tableKeys = new ArrayList<String>(log.getMarkedTables());
+            for (String entry : allKeys) {
+               if (!tableKeys.contains(entry) && !Files.exists(tablePath(database, entry, extension))) {
+                  tableKeys.add(entry);
+               }
+            }
+         }
+         List<Callable<Void>> tasks = new ArrayList<>();
+         Set<String> currentKeys = new HashSet<>(database.getKeyList());
+         for (String entry : tableKeys) {
+            // a lazy table never loaded is unchanged, and already saved in 
+            // this format; loading it only to rewrite it would undo laziness
+            if (currentKeys.contains(entry) && !database.isLoaded(entry) 
+                  && Files.exists(tablePath(database, entry, extension))) {
+               continue;
+            }
+            Table table = database.select(entry, snapshot);
+            tasks.add(() -> {
+               File newTableFile = new File(entry, database.getFolder());
+               if (compressed) {
+                  newTableFile.writeTableToCompressedFile(table, snapshot);
+               } else {
+                  newTableFile.writeTableText(table, snapshot);
+               }
+               return null;
+            });
+         }
+         runTasks(tasks);
+         writeStringToFile(writeDatabaseInfoToString(database, allKeys, extension));
+         // the database file no longer names the other format's files
+         for (String entry : allKeys) {
+            Files.deleteIfExists(tablePath(database, entry, compressed ? EXTENSION : COMPEXTEN));
+         }
+      } catch (Exception e) {
+         e.printStackTrace();
+         return;
       }
+      if (log != null) {
+         try {
+            log.truncateToMark();
+         } catch (IOException e) {
+            e.printStackTrace();
+         }
+      }
+   }
+
+   // saves the database in full, then logs its changes from here on
+   void enableLogging(Database database) throws IOException {
+      if (database.getLog() == null) {
+         writeDatabaseToFiles(database);
+         WriteAheadLog log = new WriteAheadLog(getLogPath());
+         database.setLog(log);
+         attachCheckpoint(database, log, this.compressed);
+      }
+   }
+
+   // saves the database if its log has grown past its checkpoint size
+   void checkpointIfNeeded(Database database) {
+      checkpointIfNeeded(database, this.compressed);
+   }
+
+   // as checkpointIfNeeded(), saving text or compressed table files
+   void checkpointIfNeeded(Database database, boolean compressed) {
+      WriteAheadLog log = database.getLog();
+      if (log != null && log.needsCheckpoint()) {
+         writeDatabaseToFiles(database, compressed);
+      }
+   }
+
+   String getLogPath() {
+      return this.dirpath + removeExtensionFromString(this.filename) + LOGEXTENS;
    }
 
    void writeTableToFile(Table table) {
-      String tableString = writeTableToString(table);
-      writeStringToFile(tableString);
+      try (Snapshot snapshot = table.snapshot()) {
+         writeTableToFile(table, snapshot);
+      }
+   }
+
+   // writes the table as it was when snapshot was opened
+   void writeTableToFile(Table table, Snapshot snapshot) {
+      try {
+         writeTableText(table, snapshot);
+      } catch (IOException e) {
+         e.printStackTrace(); 
+      }
+   }
+
+   // writes the table as it was when snapshot was opened to a compressed file
+   // named after this file's .dbf name
+   void writeTableToCompressedFile(Table table, Snapshot snapshot) throws IOException {
+      createDirectory();
+      String compressedPath = getCompressedPath();
+      Path temp = Paths.get(compressedPath + TEMPEXTEN);
+      CompressedFile.write(temp.toString(), table, table.getRecords(snapshot));
+      replaceFile(temp, Paths.get(compressedPath));
+   }
+
+   Table readCompressedFileToTable(String filepath) throws IOException {
+      try (CompressedFile blocks = new CompressedFile(filepath)) {
+         return blocks.readTable();
+      }
+   }
+
+   String getCompressedPath() {
+      return this.dirpath + removeExtensionFromString(this.filename) + COMPEXTEN;
+   }
+
+   // writes the table to a page file named after this file's .dbf name
+   void writeTableToPageFile(Table table) throws IOException {
+      String pagePath = this.dirpath + removeExtensionFromString(this.filename) + PAGEEXTEN;
+      try (PageFile pages = new PageFile(pagePath, table)) {
+         for (Record entry : table.getRecords()) {
+            pages.insert(entry);
+         }
+      }
+   }
+
+   Table readPageFileToTable(String filepath) throws IOException {
+      try (PageFile pages = new PageFile(filepath)) {
+         return pages.readTable();
+      }
    }
 
    // takes file path from class fields generated by constructor arguments
    Database readDatabaseFiles() throws Exception {
-      BufferedReader bReader = new BufferedReader(new FileReader(this.filepath));
+      BufferedReader bReader = new BufferedReader(
+         new InputStreamReader(new FileInputStream(this.filepath), CENCODING));
       String line;
       Database outputDB = new Database();
-      this.lineCnt = 0;
+      List<Callable<Table>> tasks = new ArrayList<>();
+      boolean compressedTables = false;
+      int lineCnt = 0;
       while ((line = bReader.readLine()) != null) {
-         if (this.lineCnt == 0) {
+         if (lineCnt == 0) {
             outputDB.setName(removeExtensionFromString(line));
-         } else if (this.lineCnt == 1) {
+         } else if (lineCnt == 1) {
             outputDB.setFolder(line);
          } else {
-            outputDB.add(readFileToTable(this.dirpath + line));
+            String tablePath = this.dirpath + line;
+            Callable<Table> task;
+            if (line.endsWith(COMPEXTEN)) {
+               compressedTables = true;
+               task = () -> readCompressedFileToTable(tablePath);
+            } else if (this.memoryMapped) {
+               task = () -> readMappedFileToTable(tablePath);
+            } else {
+               task = () -> readFileToTable(tablePath);
+            }
+            if (this.lazy) {
+               // table files are named after their tables; evicted tables
+               // are written back in the format they were read in
+               String key = removeExtensionFromString(line);
+               boolean compressedTable = line.endsWith(COMPEXTEN);
+               outputDB.addLazy(key, task, table -> {
+                  File tableFile = new File(key, outputDB.getFolder());
+                  try (Snapshot snapshot = table.snapshot()) {
+                     if (compressedTable) {
+                        tableFile.writeTableToCompressedFile(table, snapshot);
+                     } else {
+                        tableFile.writeTableText(table, snapshot);
+                     }
+                  } catch (IOException e) {
+                     throw new UncheckedIOException(e);
+                  }
+               });
+            } else {
+               tasks.add(task);
+            }
          }
-         this.lineCnt++;
+         lineCnt++;
       }
       bReader.close();
+      for (Table entry : runTasks(tasks)) {
+         outputDB.add(entry);
+      }
+      if (Files.exists(Paths.get(getLogPath()))) {
+         WriteAheadLog log = new WriteAheadLog(getLogPath());
+         log.replay(outputDB);
+         outputDB.setLog(log);
+         // checkpoints keep the tables in the format they were read in
+         attachCheckpoint(outputDB, log, compressedTables);
+      }
+      if (this.lazy && this.prefetch) {
+         outputDB.prefetch(this.executor != null ? this.executor : getDefaultExecutor());
+      }
       return outputDB;
    }
 
    // takes file path from database file called from readDatabaseFiles()
    Table readFileToTable(String filepath) throws Exception {
-      BufferedReader bReader = new BufferedReader(new FileReader(filepath));
-      String line;
+      DelimitedParser parser = new DelimitedParser(
+         new InputStreamReader(new FileInputStream(filepath), CENCODING));
+      // files written before fields were escaped have no format line, and
+      // are read as they stand
+      parser.setUnescaping(false);
+      List<String> row = parser.nextRow();
+      int version = row == null ? 0 : DelimitedParser.formatVersion(row);
+      if (version > 0) {
+         parser.setUnescaping(true);
+         row = parser.nextRow();
+      }
+      // files before TYPED_FORMAT have no line of column types
+      boolean typed = version >= DelimitedParser.TYPED_FORMAT;
       String tableName = new String();
-      Table outputTable = new Table();
-      this.lineCnt = 0;
-      while ((line = bReader.readLine()) != null) {
-         if (this.lineCnt == 0) {
-            tableName = line;
-         } else if (this.lineCnt == 1) {
-            outputTable = readColumnsToTable(outputTable, line, tableName);
+      List<String> headers = null;
+      List<String> types = null;
+      ArrayList<Record> newRecords = new ArrayList<>();
+      int lineCnt = 0;
+      for (; row != null; row = parser.nextRow()) {
+         if (lineCnt == 0) {
+            tableName = row.get(0);
+         } else if (lineCnt == 1) {
+            headers = row;
+         } else if (lineCnt == 2 && typed) {
+            types = row;
          } else {
-            addTableRecords(outputTable, line);
+            newRecords.add(new Record(row));
          }
-         this.lineCnt++;
+         lineCnt++;
       }
-      bReader.close();
+      parser.close();
+      Table outputTable = headers == null ? new Table() 
+         : new Table(tableName, ColumnID.fromHeaders(headers, types));
+      // checked and inserted as one batch rather than record by record
+      outputTable.addAll(newRecords);
       return outputTable;
    }
 
+   // same as readFileToTable(), but parses the file off a memory mapping
+   Table readMappedFileToTable(String filepath) throws IOException {
+      return new MappedFile(filepath).readTable();
+   }
+
    // --- helper functions ---
 
+   // runs tasks one after another, or all at once in parallel mode, 
+   // returning their results in order
+   private <T> List<T> runTasks(List<Callable<T>> tasks) throws Exception {
+      List<T> results = new ArrayList<>();
+      if (!this.parallel || tasks.size() < 2) {
+         for (Callable<T> task : tasks) {
+            results.add(task.call());
+         }
+         return results;
+      }
+      ExecutorService service = this.executor != null ? this.executor : getDefaultExecutor();
+      List<Future<T>> futures = new ArrayList<>();
+      for (Callable<T> task : tasks) {
+         futures.add(service.submit(task));
+      }
+      try {
+         for (Future<T> future : futures) {
+            results.add(future.get());
+         }
+      } catch (ExecutionException e) {
+         for (Future<T> future : futures) {
+            future.cancel(true);
+         }
+         if (e.getCause() instanceof Exception) {
+            throw (Exception) e.getCause();
+         }
+         throw e;
+      }
+      return results;
+   }
+
+   // virtual threads where available (Java 21+), else a pool of daemon threads
+   private static synchronized ExecutorService getDefaultExecutor() {
+      if (defaultExecutor == null) {
+         try {
+            defaultExecutor = (ExecutorService) Executors.class
+               .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+         } catch (ReflectiveOperationException e) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            defaultExecutor = Executors.newFixedThreadPool(threads, task -> {
+               Thread thread = new Thread(task, "dbf-io");
+               thread.setDaemon(true);
+               return thread;
+            });
+         }
+      }
+      return defaultExecutor;
+   }
+
+   // saves the database in the background once its log grows too long
+   private void attachCheckpoint(Database database, WriteAheadLog log, boolean compressed) {
+      ExecutorService service = this.executor != null ? this.executor : getDefaultExecutor();
+      log.setCheckpoint(service, () -> checkpointIfNeeded(database, compressed));
+   }
+
    private String removeExtensionFromString(String str) {
       if (str != null && str.contains(".")) {
          return str.substring(0, str.lastIndexOf('.'));
@@ -136,7 +485,32 @@ class File {
       return str;
    }
 
+   private void writeTableText(Table table, Snapshot snapshot) throws IOException {
+      createDirectory();
+      Path temp = Paths.get(this.filepath + TEMPEXTEN);
+      try (Writer output = openFileWriter(temp)) {
+         output.append(DelimitedParser.FORMAT_LINE + RCRDDELIM);
+         DelimitedParser.escape(table.getName(), output);
+         output.append(RCRDDELIM);
+         appendTableColumns(table, output);
+         appendTableRecords(table, table.getRecords(snapshot), output);
+      }
+      replaceFile(temp);
+   }
+
    private void writeStringToFile(String input) {
+      createDirectory();
+      Path temp = Paths.get(this.filepath + TEMPEXTEN);
+      try (Writer output = openFileWriter(temp)) {
+         output.write(input);
+      } catch (IOException e) {
+         e.printStackTrace(); 
+         return;
+      }
+      replaceFile(temp);
+   }
+
+   private void createDirectory() {
       Path path = Paths.get(this.dirpath);
       if (!Files.exists(path)) {
          try {
@@ -145,8 +519,27 @@ class File {
             e.printStackTrace(); 
          }
       }
+   }
+
+   private Writer openFileWriter(Path path) throws IOException {
+      FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, 
+         StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+      return new ChannelWriter(channel, CENCODING);
+   }
+
+   // moves a fully written temporary file over this file's path
+   private void replaceFile(Path temp) {
+      replaceFile(temp, Paths.get(this.filepath));
+   }
+
+   private void replaceFile(Path temp, Path target) {
       try {
-         Files.write(Paths.get(this.filepath), input.getBytes(CENCODING)); 
+         try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+         } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+         }
       } catch (IOException e) {
          e.printStackTrace(); 
       }
@@ -166,20 +559,35 @@ class File {
 
    private String writeTableToString(Table table) {
       StringBuilder output = new StringBuilder();
-      output.append(table.getName() + RCRDDELIM);
-      appendTableColumns(table, output);
-      appendTableRecords(table, output);
+      output.append(DelimitedParser.FORMAT_LINE + RCRDDELIM);
+      try {
+         DelimitedParser.escape(table.getName(), output);
+         output.append(RCRDDELIM);
+         appendTableColumns(table, output);
+         appendTableRecords(table, table.getRecords(), output);
+      } catch (IOException e) {
+         // StringBuilder never throws
+         throw new UncheckedIOException(e);
+      }
       return output.toString();
    }
 
-   private void appendTableColumns(Table table, StringBuilder output) {
+   // the column names line, then the column types line
+   private void appendTableColumns(Table table, Appendable output) throws IOException {
       int colsz = table.getColumnSize();
       int keyColumn = table.getKeyColumn();
       for (int i = 0; i < colsz; i++) {
          if (i == keyColumn) {
                output.append(KEYATTRIB);
          }
-         output.append(table.getColumnName(i));
+         DelimitedParser.escape(table.getColumnName(i), output);
+         if (i < colsz - 1) {
+            output.append(UNITDELIM);
+         }
+      }
+      output.append(RCRDDELIM);
+      for (int i = 0; i < colsz; i++) {
+         output.append(table.getColumnType(i).name());
          if (i < colsz - 1) {
             output.append(UNITDELIM);
          }
@@ -187,12 +595,12 @@ class File {
       output.append(RCRDDELIM);
    }
 
-   private void appendTableRecords(Table table, StringBuilder output) {
+   private void appendTableRecords(Table table, Iterable<Record> records, 
+         Appendable output) throws IOException {
       int colsz = table.getColumnSize();
-      List<String> recordKeys = table.getKeyList();
-      for (String entry : recordKeys) {
+      for (Record entry : records) {
          for (int i = 0; i < colsz; i++) {
-            output.append(table.select(entry).getField(i));
+            DelimitedParser.escape(entry.getField(i), output);
             if (i < colsz - 1) {
                output.append(UNITDELIM);
             }
@@ -201,45 +609,34 @@ class File {
       }
    }
 
-   private Table readColumnsToTable(Table outputTable, String line, String tableName) {
-      String[] headers = line.split(UNITDELIM);
-      ColumnID[] columns = new ColumnID[headers.length];
-      for (int i = 0; i < headers.length; i++) {
-         if (headers[i].startsWith("*")) {
-            columns[i] = new ColumnID(headers[i].replace(KEYATTRIB, ""), true);
-         } else {
-            columns[i] = new ColumnID(headers[i], false);
-         }
-      }
-      return new Table(tableName, columns);
-   }
-
-   private void addTableRecords(Table outputTable, String line) {
-      Record newRecord = new Record();
-      String[] fields = line.split(UNITDELIM);
-      for (String entry : fields) {
-         newRecord.add(entry);
-      }
-      outputTable.add(newRecord);
-   }
-
    // --- database handling ---
    
    private String writeDatabaseInfoToString(Database database) {
+      return writeDatabaseInfoToString(database, database.getKeyList(), EXTENSION);
+   }
+
+   // tables are listed with the extension of the format they are saved in
+   private String writeDatabaseInfoToString(Database database, List<String> tableKeys,
+         String extension) {
       StringBuilder output = new StringBuilder();
       output.append(database.getName() + EXTENSION + RCRDDELIM);
       output.append(checkFolderFormatting(database.getFolder()) + RCRDDELIM);
-      appendDatabaseTables(database, output);
+      appendDatabaseTables(tableKeys, extension, output);
       return output.toString();
    }
 
-   private void appendDatabaseTables(Database database, StringBuilder output) {
-      List<String> tableKeys = database.getKeyList();
+   private void appendDatabaseTables(List<String> tableKeys, String extension,
+         StringBuilder output) {
       for (String entry : tableKeys) {
-         output.append(entry + EXTENSION + RCRDDELIM);
+         output.append(entry + extension + RCRDDELIM);
       }
    }
 
+   private Path tablePath(Database database, String tableKey, String extension) {
+      return Paths.get(USER_PATH + checkFolderFormatting(database.getFolder()) 
+         + tableKey + extension);
+   }
+
    // --- testing ---
 
    private void testTableFileCreation() {
@@ -262,8 +659,10 @@ class File {
       testTable.add(testR2);
       String testOutputStr = testFile.writeTableToString(testTable);
       assert(testOutputStr.equals(
+         DelimitedParser.FORMAT_LINE + RCRDDELIM +
          testStr + RCRDDELIM +
          KEYATTRIB + "1" + UNITDELIM + "2" + UNITDELIM + "3" + RCRDDELIM +
+         "STRING" + UNITDELIM + "STRING" + UNITDELIM + "STRING" + RCRDDELIM +
          "a" + UNITDELIM + "b" + UNITDELIM + "c" + RCRDDELIM +
          "x" + UNITDELIM + "y" + UNITDELIM + "z" + RCRDDELIM
       ));
@@ -281,13 +680,91 @@ class File {
       assert(testFile.getFileName().equals(testStr + EXTENSION));
       String testInputFile = testFile.writeTableToString(testOut);
       assert(testInputFile.equals(
+         DelimitedParser.FORMAT_LINE + RCRDDELIM +
          testStr + RCRDDELIM +
          KEYATTRIB + "1" + UNITDELIM + "2" + UNITDELIM + "3" + RCRDDELIM +
+         "STRING" + UNITDELIM + "STRING" + UNITDELIM + "STRING" + RCRDDELIM +
          "a" + UNITDELIM + "b" + UNITDELIM + "c" + RCRDDELIM +
          "x" + UNITDELIM + "y" + UNITDELIM + "z" + RCRDDELIM)
       );
    }
 
+   private void testEscapedFields() {
+      String testStr = "test_escaped";
+      Table testTable = new Table(testStr, new ColumnID("key", true), new ColumnID("note"));
+      testTable.add(new Record("tab", "a\tb"));
+      testTable.add(new Record("lines", "one\ntwo\r\n"));
+      testTable.add(new Record("path", "C:\\temp\\"));
+      testTable.add(new Record("empty", ""));
+      File testFile = new File(testStr);
+      testFile.writeTableToFile(testTable);
+      Table testOut = new Table();
+      Table testMapped = new Table();
+      boolean caught = false;
+      try {
+         testOut = testFile.readFileToTable(testFile.getFilePath());
+         testMapped = testFile.readMappedFileToTable(testFile.getFilePath());
+      } catch (Exception e) { caught = true; }
+      assert(caught == false);
+      for (Table entry : List.of(testOut, testMapped)) {
+         assert(entry.getRecordSize() == 4);
+         assert(entry.select("tab").getField(1).equals("a\tb"));
+         assert(entry.select("lines").getField(1).equals("one\ntwo\r\n"));
+         assert(entry.select("path").getField(1).equals("C:\\temp\\"));
+         assert(entry.select("empty").getField(1).equals(""));
+      }
+      // files from before escaping, without the format line, read unchanged
+      testFile.writeStringToFile(testStr + RCRDDELIM + KEYATTRIB + "key" + UNITDELIM 
+         + "note" + RCRDDELIM + "path" + UNITDELIM + "C:\\temp\\new" + RCRDDELIM);
+      try {
+         testOut = testFile.readFileToTable(testFile.getFilePath());
+         testMapped = testFile.readMappedFileToTable(testFile.getFilePath());
+      } catch (Exception e) { caught = true; }
+      assert(caught == false);
+      assert(testOut.select("path").getField(1).equals("C:\\temp\\new"));
+      assert(testMapped.select("path").getField(1).equals("C:\\temp\\new"));
+   }
+
+   private void testTypedColumns() {
+      String testStr = "test_typed";
+      Table testTable = new Table(testStr, new ColumnID("key", true, FieldType.INT),
+         new ColumnID("count", false, FieldType.INT), new ColumnID("price", false, FieldType.FLOAT),
+         new ColumnID("note"));
+      testTable.add(new Record("01", "4294967296", "2.5", "a"));
+      testTable.setStorageMode(StorageMode.COLUMNAR);
+      File testFile = new File(testStr);
+      testFile.writeTableToFile(testTable);
+      Table testOut = new Table();
+      Table testMapped = new Table();
+      boolean caught = false;
+      try {
+         testOut = testFile.readFileToTable(testFile.getFilePath());
+         testMapped = testFile.readMappedFileToTable(testFile.getFilePath());
+      } catch (Exception e) { caught = true; }
+      assert(caught == false);
+      for (Table entry : List.of(testOut, testMapped)) {
+         assert(entry.getColumnType(0) == FieldType.INT);
+         assert(entry.getColumnType(1) == FieldType.INT);
+         assert(entry.getColumnType(2) == FieldType.FLOAT);
+         assert(entry.getColumnType(3) == FieldType.STRING);
+         assert(entry.select("01").getField(1).equals("4294967296"));
+      }
+      testOut.setStorageMode(StorageMode.COLUMNAR);
+      assert(testOut.getColumnStore().getLong(0, 1) == 4294967296L);
+      // files of the version before types read every column as STRING
+      testFile.writeStringToFile("#dbf" + UNITDELIM + "2" + RCRDDELIM + testStr + RCRDDELIM
+         + KEYATTRIB + "key" + UNITDELIM + "count" + RCRDDELIM + "1" + UNITDELIM + "x" + RCRDDELIM);
+      try {
+         testOut = testFile.readFileToTable(testFile.getFilePath());
+         testMapped = testFile.readMappedFileToTable(testFile.getFilePath());
+      } catch (Exception e) { caught = true; }
+      assert(caught == false);
+      for (Table entry : List.of(testOut, testMapped)) {
+         assert(entry.getColumnType(1) == FieldType.STRING);
+         assert(entry.select("1").getField(1).equals("x"));
+      }
+   }
+
    private void testDatabaseFileCreation() {
       // create database
       Database testDB = new Database();   
@@ -380,13 +857,375 @@ class File {
       assert(testOutDB.getFolder().equals(checkFolderFormatting(testFolderDB)));
       assert(testOutDB.select(testNameT1).select("key1").getField(1).equals("1"));
       assert(testOutDB.select(testNameT2).select("key2").getField(2).equals("2"));
+      // and again through memory mappings
+      testDBFile.setMemoryMapped(true);
+      assert(testDBFile.isMemoryMapped());
+      try { testOutDB = testDBFile.readDatabaseFiles(); }
+      catch (Exception e) { caught = true; e.printStackTrace(); }
+      assert(caught == false);
+      assert(testOutDB.select(testNameT1).select("key1").getField(1).equals("1"));
+      assert(testOutDB.select(testNameT2).select("key2").getField(2).equals("2"));
+   }
+
+   // test_folder/test_legacy.dbf is kept as written before format lines,
+   // so it is only ever read here
+   private void testLegacyTableFile() {
+      File testFile = new File("test_legacy", "test_folder");
+      Table testOut = null;
+      Table testMapped = null;
+      boolean caught = false;
+      try {
+         testOut = testFile.readFileToTable(testFile.getFilePath());
+         testMapped = testFile.readMappedFileToTable(testFile.getFilePath());
+      } catch (Exception e) { caught = true; e.printStackTrace(); }
+      assert(caught == false);
+      for (Table entry : List.of(testOut, testMapped)) {
+         assert(entry.getName().equals("test_legacy"));
+         assert(entry.getColumnType(2) == FieldType.STRING);
+         // backslashes are not escapes in files without a format line
+         assert(entry.select("key1").getField(2).equals("C:\\data"));
+         assert(entry.select("key2").getField(2).equals("2"));
+      }
+   }
+
+   private void testPageFileRoundTrip() {
+      String testStr = "test_paged";
+      File testFile = new File(testStr);
+      Table testTable = new Table(
+         testStr,
+         new ColumnID("1", true),
+         new ColumnID("2", false, FieldType.INT),
+         new ColumnID("3")
+      );
+      testTable.add(new Record("a", "1", "c"));
+      testTable.add(new Record("x", "2", "z"));
+      Table testOut = new Table();
+      boolean caught = false;
+      try {
+         testFile.writeTableToPageFile(testTable);
+         testOut = testFile.readPageFileToTable(this.dirpath + testStr + PAGEEXTEN);
+      } catch (IOException e) { caught = true; }
+      assert(caught == false);
+      assert(testOut.getName().equals(testStr));
+      assert(testOut.getColumnType(1) == FieldType.INT);
+      assert(testFile.writeTableToString(testOut).equals(
+         testFile.writeTableToString(testTable)));
+   }
+
+   private void testStreamingTableWrite() {
+      String testStr = "test_stream";
+      File testFile = new File(testStr);
+      Table testTable = new Table(testStr, new ColumnID("k", true), new ColumnID("v"));
+      for (int i = 0; i < 20000; i++) {
+         testTable.add(new Record("key" + i, "value\u00e9" + i));
+      }
+      testFile.writeTableToFile(testTable);
+      // nothing is left behind but the finished file
+      assert(!Files.exists(Paths.get(testFile.getFilePath() + TEMPEXTEN)));
+      Table testOut = new Table();
+      boolean caught = false;
+      try { testOut = testFile.readFileToTable(testFile.getFilePath()); }
+      catch (Exception e) { caught = true; }
+      assert(caught == false);
+      assert(testOut.getRecordSize() == 20000);
+      assert(testOut.select("key19999").getField(1).equals("value\u00e919999"));
+      // overwriting replaces the old contents
+      testTable = new Table(testStr, new ColumnID("k", true), new ColumnID("v"));
+      testTable.add(new Record("only", "one"));
+      testFile.writeTableToFile(testTable);
+      try { testOut = testFile.readFileToTable(testFile.getFilePath()); }
+      catch (Exception e) { caught = true; }
+      assert(caught == false);
+      assert(testOut.getRecordSize() == 1);
+   }
+
+   private void testLoggedDatabase() {
+      String testNameDB = "test_logged";
+      File testDBFile = new File(testNameDB);
+      try { Files.deleteIfExists(Paths.get(testDBFile.getLogPath())); }
+      catch (IOException e) { assert(false); }
+      Database testDB = new Database(testNameDB, DEF_FPATH);
+      Table testTable1 = new Table("test_logged1", new ColumnID("k", true), new ColumnID("v"));
+      Table testTable2 = new Table("test_logged2", new ColumnID("k", true), new ColumnID("v"));
+      testTable1.add(new Record("a", "1"));
+      testTable2.add(new Record("b", "2"));
+      testDB.add(testTable1);
+      testDB.add(testTable2);
+      boolean caught = false;
+      try { testDBFile.enableLogging(testDB); }
+      catch (IOException e) { caught = true; }
+      assert(caught == false);
+      // changes only reach the log until the next save
+      testTable1.add(new Record("c", "3"));
+      testTable1.update("a", 1, "10");
+      try { testDB.getLog().commit(); }
+      catch (IOException e) { caught = true; }
+      assert(caught == false);
+      Database testOutDB = new Database();
+      try { testOutDB = testDBFile.readDatabaseFiles(); }
+      catch (Exception e) { caught = true; }
+      assert(caught == false);
+      assert(testOutDB.select("test_logged1").select("a").getField(1).equals("10"));
+      assert(testOutDB.select("test_logged1").select("c").getField(1).equals("3"));
+      assert(testOutDB.getLog() != null);
+      // saving rewrites only the changed table and empties the log
+      assert(testDB.getLog().getDirtyTables().size() == 1);
+      testDBFile.writeDatabaseToFiles(testDB);
+      assert(testDB.getLog().getSize() == 0);
+      try {
+         testOutDB.getLog().close();
+         testOutDB = testDBFile.readDatabaseFiles();
+         assert(testOutDB.select("test_logged1").select("c").getField(1).equals("3"));
+         assert(testOutDB.select("test_logged2").select("b").getField(1).equals("2"));
+         // changes replayed from the log are written by the next save
+         testDB.select("test_logged2").add(new Record("d", "4"));
+         testDB.getLog().commit();
+         testOutDB.getLog().close();
+         testOutDB = testDBFile.readDatabaseFiles();
+         assert(testOutDB.getLog().getDirtyTables().equals(List.of("test_logged2")));
+         testDBFile.writeDatabaseToFiles(testOutDB);
+         assert(testOutDB.getLog().getSize() == 0);
+         testOutDB.getLog().close();
+         testOutDB = testDBFile.readDatabaseFiles();
+         assert(testOutDB.select("test_logged2").select("d").getField(1).equals("4"));
+         // a crash after saving the tables but before cutting the log leaves
+         // entries the files already hold, which replay again harmlessly
+         testOutDB.select("test_logged2").delete("d");
+         testOutDB.select("test_logged2").add(new Record("d", "5"));
+         testOutDB.select("test_logged2").add(new Record("e", "6"));
+         testOutDB.select("test_logged2").delete("b");
+         testOutDB.getLog().commit();
+         byte[] logged = Files.readAllBytes(Paths.get(testDBFile.getLogPath()));
+         testDBFile.writeDatabaseToFiles(testOutDB);
+         testOutDB.getLog().close();
+         Files.write(Paths.get(testDBFile.getLogPath()), logged);
+         testOutDB = testDBFile.readDatabaseFiles();
+         assert(testOutDB.select("test_logged2").getRecordSize() == 2);
+         assert(testOutDB.select("test_logged2").select("d").getField(1).equals("5"));
+         assert(testOutDB.select("test_logged2").select("e").getField(1).equals("6"));
+         // long logs are checkpointed from the write path
+         testOutDB.getLog().setCheckpointEntries(2);
+         testOutDB.select("test_logged1").add(new Record("f", "7"));
+         testOutDB.select("test_logged1").add(new Record("g", "8"));
+         for (int i = 0; i < 100 && testOutDB.getLog().getSize() > 0; i++) {
+            Thread.sleep(10);
+         }
+         assert(testOutDB.getLog().getSize() == 0);
+         testOutDB.getLog().close();
+         testOutDB = testDBFile.readDatabaseFiles();
+         assert(testOutDB.select("test_logged1").select("g").getField(1).equals("8"));
+         testOutDB.getLog().close();
+         testDB.getLog().close();
+         Files.delete(Paths.get(testDBFile.getLogPath()));
+      } catch (Exception e) { caught = true; }
+      assert(caught == false);
+   }
+
+   private void testParallelDatabaseFiles() {
+      String testNameDB = "test_parallel";
+      Database testDB = new Database(testNameDB, DEF_FPATH);
+      for (int t = 0; t < 6; t++) {
+         Table testTable = new Table("test_parallel" + t, new ColumnID("k", true), new ColumnID("v"));
+         for (int i = 0; i < 500; i++) {
+            testTable.add(new Record("key" + i, t + "_" + i));
+         }
+         testDB.add(testTable);
+      }
+      File testDBFile = new File(testNameDB);
+      testDBFile.setParallel(true);
+      assert(testDBFile.isParallel());
+      testDBFile.writeDatabaseToFiles(testDB);
+      Database testOutDB = new Database();
+      boolean caught = false;
+      try { testOutDB = testDBFile.readDatabaseFiles(); }
+      catch (Exception e) { caught = true; }
+      assert(caught == false);
+      // tables keep their order regardless of which finished first
+      List<String> keys = testOutDB.getKeyList();
+      assert(keys.size() == 6);
+      for (int t = 0; t < 6; t++) {
+         assert(keys.get(t).equals("test_parallel" + t));
+         assert(testOutDB.select(keys.get(t)).select("key499").getField(1).equals(t + "_499"));
+      }
+      // a user-supplied executor works the same, and failures come back
+      ExecutorService service = Executors.newFixedThreadPool(2);
+      testDBFile.setExecutor(service);
+      testDBFile.setMemoryMapped(true);
+      try { testOutDB = testDBFile.readDatabaseFiles(); }
+      catch (Exception e) { caught = true; }
+      assert(caught == false);
+      assert(testOutDB.select("test_parallel5").getRecordSize() == 500);
+      try {
+         Files.delete(Paths.get(USER_PATH + DEF_FPATH + "test_parallel3" + EXTENSION));
+         testDBFile.readDatabaseFiles();
+      } catch (Exception e) { caught = true; }
+      assert(caught == true);
+      service.shutdown();
+   }
+
+   private void testCompressedDatabaseFiles() {
+      String testNameDB = "test_compressed";
+      Database testDB = new Database(testNameDB, DEF_FPATH);
+      for (int t = 0; t < 2; t++) {
+         Table testTable = new Table("test_compressed" + t, new ColumnID("k", true), new ColumnID("v"));
+         for (int i = 0; i < 3000; i++) {
+            testTable.add(new Record("key" + i, i % 2 == 0 ? "even" : "odd"));
+         }
+         testDB.add(testTable);
+      }
+      File testDBFile = new File(testNameDB);
+      testDBFile.setParallel(true);
+      testDBFile.writeDatabaseToFiles(testDB, true);
+      // the mode is for that save only
+      assert(testDBFile.isCompressed() == false);
+      Path text = Paths.get(USER_PATH + DEF_FPATH + "test_compressed0" + EXTENSION);
+      Path zipped = Paths.get(USER_PATH + DEF_FPATH + "test_compressed0" + COMPEXTEN);
+      assert(Files.exists(zipped));
+      assert(!Files.exists(text));
+      Database testOutDB = new Database();
+      File readFile = new File(testNameDB);
+      boolean caught = false;
+      try { testOutDB = readFile.readDatabaseFiles(); }
+      catch (Exception e) { caught = true; }
+      assert(caught == false);
+      assert(readFile.isCompressed() == false);
+      assert(testOutDB.select("test_compressed1").getRecordSize() == 3000);
+      assert(testOutDB.select("test_compressed1").select("key2999").getField(1).equals("odd"));
+      // single records without reading the whole table
+      try (CompressedFile blocks = new CompressedFile(zipped.toString())) {
+         assert(blocks.find("key1500").getField(1).equals("even"));
+      } catch (IOException e) { caught = true; }
+      assert(caught == false);
+      // saving as text again replaces the compressed files
+      testDBFile.writeDatabaseToFiles(testDB, false);
+      assert(Files.exists(text));
+      assert(!Files.exists(zipped));
+      try { testOutDB = testDBFile.readDatabaseFiles(); }
+      catch (Exception e) { caught = true; }
+      assert(caught == false);
+      assert(testOutDB.select("test_compressed0").select("key7").getField(1).equals("odd"));
+      // a save that fails partway leaves the database file naming the last
+      // complete save's files
+      Path blocked = Paths.get(USER_PATH + DEF_FPATH + "test_compressed1" + COMPEXTEN + TEMPEXTEN);
+      PrintStream console = System.err;
+      System.setErr(new PrintStream(new ByteArrayOutputStream()));
+      try {
+         Files.createDirectories(blocked);
+         testDBFile.writeDatabaseToFiles(testDB, true);
+         Files.delete(blocked);
+         testOutDB = testDBFile.readDatabaseFiles();
+      } catch (Exception e) { caught = true; }
+      System.setErr(console);
+      assert(caught == false);
+      assert(Files.exists(text));
+      assert(testOutDB.select("test_compressed1").select("key2999").getField(1).equals("odd"));
+      // a logged save rewrites unchanged tables whose format changed
+      try {
+         Files.deleteIfExists(Paths.get(testDBFile.getLogPath()));
+         testDBFile.enableLogging(testDB);
+         testDB.select("test_compressed0").update("key0", 1, "zero");
+         testDBFile.writeDatabaseToFiles(testDB, true);
+         assert(Files.exists(zipped));
+         assert(Files.exists(Paths.get(USER_PATH + DEF_FPATH + "test_compressed1" + COMPEXTEN)));
+         testDB.getLog().close();
+         testOutDB = testDBFile.readDatabaseFiles();
+         testOutDB.getLog().close();
+         Files.delete(Paths.get(testDBFile.getLogPath()));
+      } catch (Exception e) { caught = true; }
+      assert(caught == false);
+      assert(testOutDB.select("test_compressed0").select("key0").getField(1).equals("zero"));
+      assert(testOutDB.select("test_compressed1").select("key0").getField(1).equals("even"));
+   }
+
+   private void testLazyDatabaseFiles() {
+      String testNameDB = "test_lazy";
+      Database testDB = new Database(testNameDB, DEF_FPATH);
+      for (int t = 0; t < 3; t++) {
+         Table testTable = new Table("test_lazy" + t, new ColumnID("k", true), new ColumnID("v"));
+         testTable.add(new Record("a", "value" + t));
+         testDB.add(testTable);
+      }
+      File testDBFile = new File(testNameDB);
+      testDBFile.writeDatabaseToFiles(testDB);
+      testDBFile.setLazy(true);
+      assert(testDBFile.isLazy());
+      Database testOutDB = new Database();
+      boolean caught = false;
+      try { testOutDB = testDBFile.readDatabaseFiles(); }
+      catch (Exception e) { caught = true; }
+      assert(caught == false);
+      // only the database file has been read
+      assert(testOutDB.getKeyList().size() == 3);
+      assert(testOutDB.isLoaded("test_lazy1") == false);
+      assert(testOutDB.select("test_lazy1").select("a").getField(1).equals("value1"));
+      assert(testOutDB.isLoaded("test_lazy1") == true);
+      assert(testOutDB.isLoaded("test_lazy2") == false);
+      // missing files only fail when their table is wanted
+      try {
+         Files.delete(Paths.get(USER_PATH + DEF_FPATH + "test_lazy2" + EXTENSION));
+         testOutDB = testDBFile.readDatabaseFiles();
+      } catch (Exception e) { caught = true; }
+      assert(caught == false);
+      assert(testOutDB.select("test_lazy0").getRecordSize() == 1);
+      try { testOutDB.select("test_lazy2"); }
+      catch (RuntimeException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      // prefetching reads the rest in the background
+      testDBFile.writeDatabaseToFiles(testDB);
+      ExecutorService service = Executors.newFixedThreadPool(2);
+      testDBFile.setExecutor(service);
+      testDBFile.setPrefetching(true);
+      try {
+         testOutDB = testDBFile.readDatabaseFiles();
+         service.shutdown();
+         service.awaitTermination(10, TimeUnit.SECONDS);
+      } catch (Exception e) { caught = true; }
+      assert(caught == false);
+      for (int t = 0; t < 3; t++) {
+         assert(testOutDB.isLoaded("test_lazy" + t) == true);
+      }
+      // saving leaves tables that were never loaded alone
+      testDBFile.setPrefetching(false);
+      try { testOutDB = testDBFile.readDatabaseFiles(); }
+      catch (Exception e) { caught = true; }
+      assert(caught == false);
+      testOutDB.select("test_lazy2").update("a", 1, "saved");
+      testDBFile.writeDatabaseToFiles(testOutDB);
+      assert(testOutDB.isLoaded("test_lazy0") == false);
+      assert(testOutDB.isLoaded("test_lazy1") == false);
+      try { testOutDB = testDBFile.readDatabaseFiles(); }
+      catch (Exception e) { caught = true; }
+      assert(caught == false);
+      assert(testOutDB.select("test_lazy2").select("a").getField(1).equals("saved"));
+      assert(testOutDB.select("test_lazy0").select("a").getField(1).equals("value0"));
+      // changed tables evicted over the memory budget are written back
+      try { testOutDB = testDBFile.readDatabaseFiles(); }
+      catch (Exception e) { caught = true; }
+      assert(caught == false);
+      testOutDB.select("test_lazy0").update("a", 1, "changed");
+      testOutDB.setMemoryBudget(1);
+      testOutDB.select("test_lazy1");
+      assert(testOutDB.isLoaded("test_lazy0") == false);
+      assert(testOutDB.getEvictions() == 1);
+      assert(testOutDB.select("test_lazy0").select("a").getField(1).equals("changed"));
+      assert(testOutDB.getCacheMisses() == 3);
    }
 
    private void runTests() {
       testTableFileCreation();
+      testStreamingTableWrite();
       testTableFileParsing();
+      testEscapedFields();
+      testTypedColumns();
+      testLegacyTableFile();
+      testPageFileRoundTrip();
       testDatabaseFileCreation();
       testDatabaseFileParsing();
+      testLoggedDatabase();
+      testParallelDatabaseFiles();
+      testCompressedDatabaseFiles();
+      testLazyDatabaseFiles();
    }
 
    public static void main(String[] args) {
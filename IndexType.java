@@ -0,0 +1,3 @@
+public enum IndexType {
+    HASH, SORTED
+}
@@ -0,0 +1,580 @@
+/* This class joins the records of two tables on equal values of a column
+ * from each, producing records made of the left record's fields followed by
+ * the right record's. Joined records stream out of an iterator, or can be
+ * collected into a new Table. The way the join runs is chosen when it runs:
+ *  - SORT_MERGE when both join columns have a SORTED SecondaryIndex and the
+ *    same FieldType, walking both indexes in order and pairing up runs of
+ *    equal values;
+ *  - HASH otherwise, building a hash table of the smaller table's records by
+ *    join value and probing it with each record of the other;
+ *  - GRACE_HASH when the smaller table is estimated to need more memory than
+ *    the join's budget: both tables are streamed through a snapshot and split
+ *    by hash of the join value into partition files on disk, then each pair
+ *    of partitions is hash joined in turn, so only one build partition is
+ *    held in memory at once.
+ * Join values are compared by the left column's FieldType, so "1" and "1.0"
+ * join on FLOAT columns. Each table's records are read as they are when the
+ * join starts running.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.io.*;
+
+class Join implements Iterable<Record> {
+   static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+   private Table left;
+   private Table right;
+   private int leftColumn;
+   private int rightColumn;
+   private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+   private static final int MAX_PARTITIONS = 256;
+   private static final String noSuchColumn = "No such column exists in table.";
+
+   Join(Table left, String leftColumn, Table right, String rightColumn) {
+      this.left = left;
+      this.right = right;
+      this.leftColumn = columnIndex(left, leftColumn);
+      this.rightColumn = columnIndex(right, rightColumn);
+   }
+
+   long getMemoryBudget() {
+      return this.memoryBudget;
+   }
+
+   // estimated bytes the build side may take before the join spills to disk
+   void setMemoryBudget(long memoryBudget) {
+      this.memoryBudget = memoryBudget;
+   }
+
+   JoinStrategy getStrategy() {
+      // merging walks both indexes in one order, which only agree on a 
+      // common type; otherwise the hash join compares by the left type
+      if (hasSortedIndex(this.left, this.leftColumn) 
+            && hasSortedIndex(this.right, this.rightColumn)
+            && this.left.getColumnType(this.leftColumn) 
+               == this.right.getColumnType(this.rightColumn)) {
+         return JoinStrategy.SORT_MERGE;
+      }
+      Table build = buildLeft() ? this.left : this.right;
+      try (Snapshot snapshot = build.snapshot()) {
+         if (estimateBytes(build.getRecords(snapshot), this.memoryBudget) > this.memoryBudget) {
+            return JoinStrategy.GRACE_HASH;
+         }
+      }
+      return JoinStrategy.HASH;
+   }
+
+   @Override
+   public Iterator<Record> iterator() {
+      switch (getStrategy()) {
+         case SORT_MERGE:
+            return new MergeIterator();
+         case GRACE_HASH:
+            return new GraceIterator();
+         default:
+            boolean buildLeft = buildLeft();
+            List<Record> build = rows(buildLeft ? this.left : this.right);
+            List<Record> probe = rows(buildLeft ? this.right : this.left);
+            return new HashIterator(buildTable(build, buildLeft), probe.iterator(), buildLeft);
+      }
+   }
+
+   // collects the joined records into a new table keyed by row number, with
+   // columns named after the table and column they came from
+   Table toTable(String name) {
+      ArrayList<ColumnID> columns = new ArrayList<>();
+      columns.add(new ColumnID("row", true, FieldType.INT));
+      for (Table side : new Table[] {this.left, this.right}) {
+         for (int i = 0; i < side.getColumnSize(); i++) {
+            columns.add(new ColumnID(side.getName() + "." + side.getColumnName(i),
+               false, side.getColumnType(i)));
+         }
+      }
+      Table result = new Table(name, columns.toArray(new ColumnID[0]));
+      int row = 0;
+      for (Record entry : this) {
+         Record keyed = new Record(Integer.toString(row++));
+         for (int i = 0; i < entry.size(); i++) {
+            keyed.add(entry.getField(i));
+         }
+         result.add(keyed);
+      }
+      return result;
+   }
+
+   // --- helper methods ---
+
+   private boolean buildLeft() {
+      return this.left.getRecordSize() < this.right.getRecordSize();
+   }
+
+   private boolean hasSortedIndex(Table table, int column) {
+      return table.hasIndex(column) && table.getIndexType(column) == IndexType.SORTED;
+   }
+
+   private List<Record> rows(Table table) {
+      return table.scan(data -> true, Integer.MAX_VALUE);
+   }
+
+   // the value records are joined on, in a form equal for equal values
+   private String joinKey(String field) {
+      return this.left.getColumnType(this.leftColumn).canonical(field);
+   }
+
+   private HashMap<String,List<Record>> buildTable(Iterable<Record> build, boolean buildLeft) {
+      int column = buildLeft ? this.leftColumn : this.rightColumn;
+      HashMap<String,List<Record>> table = new HashMap<>();
+      for (Record entry : build) {
+         table.computeIfAbsent(joinKey(entry.getField(column)),
+            key -> new ArrayList<Record>()).add(entry);
+      }
+      return table;
+   }
+
+   private Record combine(Record leftRecord, Record rightRecord) {
+      Record joined = new Record();
+      for (int i = 0; i < leftRecord.size(); i++) {
+         joined.add(leftRecord.getField(i));
+      }
+      for (int i = 0; i < rightRecord.size(); i++) {
+         joined.add(rightRecord.getField(i));
+      }
+      return joined;
+   }
+
+   // rough heap size of records: object headers plus two bytes per char;
+   // the records are only counted, not kept, and counting stops once past 
+   // limit
+   private static long estimateBytes(Iterable<Record> records, long limit) {
+      long bytes = 0;
+      for (Record entry : records) {
+         bytes += 48;
+         for (int i = 0; i < entry.size(); i++) {
+            bytes += 48 + 2L * entry.getField(i).length();
+         }
+         if (bytes > limit) {
+            break;
+         }
+      }
+      return bytes;
+   }
+
+   private static int columnIndex(Table table, String column) {
+      for (int i = 0; i < table.getColumnSize(); i++) {
+         if (table.getColumnName(i).equals(column)) {
+            return i;
+         }
+      }
+      System.out.println(noSuchColumn);
+      throw new IllegalArgumentException();
+   }
+
+   // an iterator handing out joined records a batch at a time
+   private abstract class JoinIterator implements Iterator<Record> {
+      protected final ArrayDeque<Record> ready = new ArrayDeque<>();
+
+      // adds the next joined records to ready; false once there are none
+      protected abstract boolean refill();
+
+      @Override
+      public boolean hasNext() {
+         while (this.ready.isEmpty()) {
+            if (!refill()) {
+               return false;
+            }
+         }
+         return true;
+      }
+
+      @Override
+      public Record next() {
+         if (!hasNext()) {
+            throw new NoSuchElementException();
+         }
+         return this.ready.poll();
+      }
+   }
+
+   private class HashIterator extends JoinIterator {
+      private final HashMap<String,List<Record>> build;
+      private final Iterator<Record> probe;
+      private final boolean buildLeft;
+
+      HashIterator(HashMap<String,List<Record>> build, Iterator<Record> probe, boolean buildLeft) {
+         this.build = build;
+         this.probe = probe;
+         this.buildLeft = buildLeft;
+      }
+
+      @Override
+      protected boolean refill() {
+         if (!this.probe.hasNext()) {
+            return false;
+         }
+         Record entry = this.probe.next();
+         int column = this.buildLeft ? rightColumn : leftColumn;
+         List<Record> matches = this.build.get(joinKey(entry.getField(column)));
+         if (matches != null) {
+            for (Record match : matches) {
+               this.ready.add(this.buildLeft ? combine(match, entry) : combine(entry, match));
+            }
+         }
+         return true;
+      }
+   }
+
+   // pairs up runs of equal join values read from both sorted indexes
+   private class MergeIterator extends JoinIterator {
+      private final List<String> leftKeys;
+      private final List<String> rightKeys;
+      private final FieldType type;
+      private int nextLeft = 0;
+      private int nextRight = 0;
+
+      MergeIterator() {
+         this.leftKeys = left.lookupRange(leftColumn, null, null);
+         this.rightKeys = right.lookupRange(rightColumn, null, null);
+         this.type = left.getColumnType(leftColumn);
+      }
+
+      @Override
+      protected boolean refill() {
+         while (this.nextLeft < this.leftKeys.size() && this.nextRight < this.rightKeys.size()) {
+            Record leftRecord = left.find(this.leftKeys.get(this.nextLeft));
+            Record rightRecord = right.find(this.rightKeys.get(this.nextRight));
+            if (leftRecord == null) {
+               this.nextLeft++;
+               continue;
+            }
+            if (rightRecord == null) {
+               this.nextRight++;
+               continue;
+            }
+            String value = leftRecord.getField(leftColumn);
+            int cmp = this.type.compare(value, rightRecord.getField(rightColumn));
+            if (cmp < 0) {
+               this.nextLeft++;
+            } else if (cmp > 0) {
+               this.nextRight++;
+            } else {
+               List<Record> leftRun = run(left, this.leftKeys, leftColumn, value, true);
+               List<Record> rightRun = run(right, this.rightKeys, rightColumn, value, false);
+               for (Record leftMatch : leftRun) {
+                  for (Record rightMatch : rightRun) {
+                     this.ready.add(combine(leftMatch, rightMatch));
+                  }
+               }
+               return true;
+            }
+         }
+         return false;
+      }
+
+      // the records from the current position whose join value equals value
+      private List<Record> run(Table table, List<String> keys, int column,
+            String value, boolean isLeft) {
+         ArrayList<Record> run = new ArrayList<>();
+         int next = isLeft ? this.nextLeft : this.nextRight;
+         while (next < keys.size()) {
+            Record entry = table.find(keys.get(next));
+            if (entry != null) {
+               if (this.type.compare(value, entry.getField(column)) != 0) {
+                  break;
+               }
+               run.add(entry);
+            }
+            next++;
+         }
+         if (isLeft) {
+            this.nextLeft = next;
+         } else {
+            this.nextRight = next;
+         }
+         return run;
+      }
+   }
+
+   // splits both tables into partition files, then hash joins them in pairs;
+   // both tables are streamed through one snapshot, record by record, so 
+   // neither is ever held in memory whole
+   private class GraceIterator extends JoinIterator {
+      private final boolean buildLeft = buildLeft();
+      private Path dir;
+      private int partitions;
+      private int nextPartition = 0;
+      private HashIterator current;
+
+      GraceIterator() {
+         Table build = this.buildLeft ? left : right;
+         Table probe = this.buildLeft ? right : left;
+         try (Snapshot snapshot = build.snapshot()) {
+            long estimate = estimateBytes(build.getRecords(snapshot), Long.MAX_VALUE);
+            this.partitions = (int) Math.min(MAX_PARTITIONS,
+               2 * (estimate / Math.max(1, memoryBudget)) + 2);
+            this.dir = Files.createTempDirectory("join");
+            spill(build.getRecords(snapshot), this.buildLeft ? leftColumn : rightColumn, "build");
+            spill(probe.getRecords(snapshot), this.buildLeft ? rightColumn : leftColumn, "probe");
+         } catch (IOException e) {
+            cleanUp();
+            throw new UncheckedIOException(e);
+         }
+      }
+
+      @Override
+      protected boolean refill() {
+         try {
+            while (this.current == null || !this.current.refill()) {
+               if (this.nextPartition == this.partitions) {
+                  cleanUp();
+                  return false;
+               }
+               int p = this.nextPartition++;
+               List<Record> build = readPartition("build", p);
+               List<Record> probe = readPartition("probe", p);
+               this.current = new HashIterator(buildTable(build, this.buildLeft),
+                  probe.iterator(), this.buildLeft);
+            }
+            this.ready.addAll(this.current.ready);
+            this.current.ready.clear();
+            return true;
+         } catch (IOException e) {
+            cleanUp();
+            throw new UncheckedIOException(e);
+         }
+      }
+
+      private void spill(Iterable<Record> records, int column, String side) throws IOException {
+         DataOutputStream[] outputs = new DataOutputStream[this.partitions];
+         try {
+            for (int p = 0; p < this.partitions; p++) {
+               outputs[p] = new DataOutputStream(new BufferedOutputStream(
+                  Files.newOutputStream(partitionPath(side, p))));
+            }
+            for (Record entry : records) {
+               String key = joinKey(entry.getField(column));
+               DataOutputStream output = outputs[Math.floorMod(key.hashCode(), this.partitions)];
+               output.writeInt(entry.size());
+               for (int i = 0; i < entry.size(); i++) {
+                  byte[] bytes = entry.getField(i).getBytes(StandardCharsets.UTF_8);
+                  output.writeInt(bytes.length);
+                  output.write(bytes);
+               }
+            }
+         } finally {
+            for (DataOutputStream output : outputs) {
+               if (output != null) {
+                  output.close();
+               }
+            }
+         }
+      }
+
+      private List<Record> readPartition(String side, int p) throws IOException {
+         ArrayList<Record> records = new ArrayList<>();
+         Path path = partitionPath(side, p);
+         try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+               Files.newInputStream(path)))) {
+            while (true) {
+               int fields;
+               try {
+                  fields = input.readInt();
+               } catch (EOFException e) {
+                  // every record was written whole, so the file ends here
+                  break;
+               }
+               Record entry = new Record();
+               for (int i = 0; i < fields; i++) {
+                  byte[] bytes = new byte[input.readInt()];
+                  input.readFully(bytes);
+                  entry.add(new String(bytes, StandardCharsets.UTF_8));
+               }
+               records.add(entry);
+            }
+         }
+         Files.delete(path);
+         return records;
+      }
+
+      private Path partitionPath(String side, int p) {
+         return this.dir.resolve(side + p);
+      }
+
+      private void cleanUp() {
+         if (this.dir == null) {
+            return;
+         }
+         for (java.io.File entry : this.dir.toFile().listFiles()) {
+            entry.delete();
+         }
+         this.dir.toFile().delete();
+         this.dir = null;
+      }
+   }
+
+   // --- testing ---
+
+   private static Table testCustomers() {
+      Table test = new Table(
+         "customers",
+         new ColumnID("id", true, FieldType.INT),
+         new ColumnID("name", false)
+      );
+      test.add(new Record("1", "ann"));
+      test.add(new Record("2", "bob"));
+      test.add(new Record("3", "cat"));
+      return test;
+   }
+
+   private static Table testOrders() {
+      Table test = new Table(
+         "orders",
+         new ColumnID("order", true),
+         new ColumnID("customer", false, FieldType.INT),
+         new ColumnID("total", false, FieldType.FLOAT)
+      );
+      test.add(new Record("o1", "1", "10"));
+      test.add(new Record("o2", "3", "5"));
+      test.add(new Record("o3", "1", "7.5"));
+      test.add(new Record("o4", "9", "1"));
+      test.add(new Record("o5", "01", "2"));
+      return test;
+   }
+
+   private static List<String> pairs(Iterable<Record> joined) {
+      ArrayList<String> pairs = new ArrayList<>();
+      for (Record entry : joined) {
+         pairs.add(entry.getField(1) + ":" + entry.getField(2));
+      }
+      pairs.sort(null);
+      return pairs;
+   }
+
+   private void testHashJoin() {
+      Join test = new Join(testCustomers(), "id", testOrders(), "customer");
+      assert(test.getStrategy() == JoinStrategy.HASH);
+      // "01" joins with 1, and unmatched records drop out
+      List<String> expected = List.of("ann:o1", "ann:o3", "ann:o5", "cat:o2");
+      assert(pairs(test).equals(expected));
+      // the same result building on the other side
+      Table fewOrders = new Table("few", new ColumnID("order", true),
+         new ColumnID("customer", false, FieldType.INT), new ColumnID("total"));
+      fewOrders.add(new Record("o1", "1", "10"));
+      assert(pairs(new Join(testCustomers(), "id", fewOrders, "customer"))
+         .equals(List.of("ann:o1")));
+      Table result = test.toTable("joined");
+      assert(result.getRecordSize() == 4);
+      assert(result.getColumnName(2).equals("customers.name"));
+      assert(result.getColumnType(5) == FieldType.FLOAT);
+   }
+
+   private void testSortMergeJoin() {
+      Table customers = testCustomers();
+      Table orders = testOrders();
+      customers.createIndex(0, IndexType.SORTED);
+      orders.createIndex(1, IndexType.SORTED);
+      Join test = new Join(customers, "id", orders, "customer");
+      assert(test.getStrategy() == JoinStrategy.SORT_MERGE);
+      assert(pairs(test).equals(List.of("ann:o1", "ann:o3", "ann:o5", "cat:o2")));
+      // streamed in join value order
+      Iterator<Record> rows = test.iterator();
+      assert(rows.next().getField(0).equals("1"));
+      rows.next();
+      rows.next();
+      assert(rows.next().getField(0).equals("3"));
+      assert(!rows.hasNext());
+      // indexes on columns of different types are not merged: "01" sorts 
+      // apart from "1" as a STRING but joins with it by the left INT type
+      Table names = new Table("names", new ColumnID("name", true),
+         new ColumnID("customer", false));
+      names.add(new Record("x", "01"));
+      names.add(new Record("y", "10"));
+      names.add(new Record("z", "3"));
+      names.createIndex(1, IndexType.SORTED);
+      Join mixed = new Join(customers, "id", names, "customer");
+      assert(mixed.getStrategy() == JoinStrategy.HASH);
+      assert(pairs(mixed).equals(List.of("ann:x", "cat:z")));
+   }
+
+   private void testGraceHashJoin() {
+      Table left = new Table("l", new ColumnID("k", true), new ColumnID("v"));
+      Table right = new Table("r", new ColumnID("k", true), new ColumnID("v"));
+      for (int i = 0; i < 2000; i++) {
+         left.add(new Record("l" + i, Integer.toString(i % 500)));
+         right.add(new Record("r" + i, Integer.toString(i)));
+      }
+      Join test = new Join(left, "v", right, "v");
+      long inMemory = 0;
+      for (Record entry : test) {
+         inMemory++;
+      }
+      test.setMemoryBudget(10000);
+      assert(test.getStrategy() == JoinStrategy.GRACE_HASH);
+      long spilled = 0;
+      for (Record entry : test) {
+         assert(entry.getField(1).equals(entry.getField(3)));
+         spilled++;
+      }
+      assert(inMemory == 2000);
+      assert(spilled == inMemory);
+      // long fields fill partition files well past a read buffer, and a 
+      // change made after the iterator starts is not seen by it
+      String padding = "p".repeat(5000);
+      Table wide = new Table("w", new ColumnID("k", true), new ColumnID("v"), 
+         new ColumnID("pad"));
+      for (int i = 0; i < 200; i++) {
+         wide.add(new Record("w" + i, Integer.toString(i % 10), padding));
+      }
+      Join spill = new Join(wide, "v", right, "v");
+      spill.setMemoryBudget(100000);
+      assert(spill.getStrategy() == JoinStrategy.GRACE_HASH);
+      Iterator<Record> rows = spill.iterator();
+      wide.add(new Record("late", "1", padding));
+      long joined = 0;
+      while (rows.hasNext()) {
+         Record entry = rows.next();
+         assert(entry.getField(2).length() == 5000);
+         assert(!entry.getField(0).equals("late"));
+         joined++;
+      }
+      assert(joined == 200);
+   }
+
+   private void testInvalidJoins() {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      boolean caught = false;
+      try { new Join(testCustomers(), "id", testOrders(), "client"); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void runTests() {
+      testHashJoin();
+      testSortMergeJoin();
+      testGraceHashJoin();
+      testInvalidJoins();
+   }
+
+   public static void main(String[] args) {
+      Join program = new Join(testCustomers(), "id", testOrders(), "customer");
+      program.runTests();
+   }
+}
@@ -0,0 +1,3 @@
+public enum JoinStrategy {
+    HASH, GRACE_HASH, SORT_MERGE
+}
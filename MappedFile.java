@@ -0,0 +1,266 @@
+/* This class reads a tab-delimited table file (as written by File.java) by
+ * memory-mapping it rather than reading it through character streams. Lines
+ * and fields are found by scanning the mapped bytes for newline and tab bytes,
+ * which cannot occur inside multi-byte UTF-8 characters. Files are mapped in
+ * segments of at most MAX_SEGMENT bytes, each ending on a line boundary, so
+ * files larger than 2GB can be read. Records are returned as views over the
+ * mapped bytes that only decode a field into a String the first time it is
+ * asked for; the mapping stays alive for as long as any of its records do.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.io.*;
+
+class MappedFile {
+   static final int MAX_SEGMENT = Integer.MAX_VALUE;
+
+   private static final byte UNITDELIM = '\t';
+   private static final byte RCRDDELIM = '\n';
+   private static final byte RETURN = '\r';
+
+   private List<MappedByteBuffer> segments;
+
+   MappedFile(String filepath) throws IOException {
+      this(filepath, MAX_SEGMENT);
+   }
+
+   // maps the file in segments no longer than maxSegment bytes
+   MappedFile(String filepath, int maxSegment) throws IOException {
+      this.segments = new ArrayList<MappedByteBuffer>();
+      try (FileChannel channel = FileChannel.open(Paths.get(filepath), StandardOpenOption.READ)) {
+         long size = channel.size();
+         long position = 0;
+         while (position < size) {
+            long length = Math.min(maxSegment, size - position);
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            if (position + length < size) {
+               length = lastLineEnd(segment, (int) length);
+               segment.limit((int) length);
+            }
+            this.segments.add(segment);
+            position += length;
+         }
+      }
+   }
+
+   int getSegmentCount() {
+      return this.segments.size();
+   }
+
+   // parses the table name, columns and records from the mapped bytes
+   Table readTable() {
+      String tableName = null;
+      List<String> headers = null;
+      List<String> types = null;
+      ArrayList<Record> newRecords = new ArrayList<>();
+      int lineCnt = 0;
+      // files written before fields were escaped have no format line, and
+      // files written before types were saved have no types line
+      boolean escaped = false;
+      boolean typed = false;
+      for (MappedByteBuffer segment : this.segments) {
+         int limit = segment.limit();
+         int start = 0;
+         while (start < limit) {
+            int end = start;
+            while (end < limit && segment.get(end) != RCRDDELIM) {
+               end++;
+            }
+            int lineEnd = end;
+            if (lineEnd > start && segment.get(lineEnd - 1) == RETURN) {
+               lineEnd--;
+            }
+            int version = lineCnt == 0 && !escaped 
+               ? DelimitedParser.formatVersion(new MappedRow(segment, start, lineEnd, false)) : 0;
+            if (version > 0) {
+               // the format line isn't counted as the table name
+               escaped = true;
+               typed = version >= DelimitedParser.TYPED_FORMAT;
+               lineCnt--;
+            } else if (lineCnt == 0) {
+               tableName = decode(segment, start, lineEnd, escaped);
+            } else if (lineCnt == 1) {
+               // split on the raw tabs before unescaping, like any row
+               headers = new MappedRow(segment, start, lineEnd, escaped);
+            } else if (lineCnt == 2 && typed) {
+               types = new MappedRow(segment, start, lineEnd, escaped);
+            } else {
+               newRecords.add(new Record(new MappedRow(segment, start, lineEnd, escaped)));
+            }
+            lineCnt++;
+            start = end + 1;
+         }
+      }
+      Table outputTable = headers == null ? new Table() 
+         : new Table(tableName, ColumnID.fromHeaders(headers, types));
+      outputTable.addAll(newRecords);
+      return outputTable;
+   }
+
+   // --- helper methods ---
+
+   // length of the segment up to and including its last newline
+   private static int lastLineEnd(ByteBuffer segment, int length) throws IOException {
+      for (int i = length - 1; i >= 0; i--) {
+         if (segment.get(i) == RCRDDELIM) {
+            return i + 1;
+         }
+      }
+      System.out.println("Line is too long to map.");
+      throw new IOException();
+   }
+
+   // fields are written escaped (see DelimitedParser.java), so tabs and 
+   // newlines in the mapping are always delimiters
+   private static String decode(ByteBuffer segment, int start, int end, boolean escaped) {
+      byte[] bytes = new byte[end - start];
+      segment.duplicate().position(start).get(bytes);
+      String field = new String(bytes, StandardCharsets.UTF_8);
+      return escaped ? DelimitedParser.unescape(field) : field;
+   }
+
+   // a line of the mapped file whose fields are decoded on first access
+   private static class MappedRow extends AbstractList<String> {
+      private ByteBuffer segment;
+      private int[] starts;
+      private String[] fields;
+      private boolean escaped;
+
+      MappedRow(ByteBuffer segment, int start, int end, boolean escaped) {
+         this.segment = segment;
+         this.escaped = escaped;
+         int count = 1;
+         for (int i = start; i < end; i++) {
+            if (segment.get(i) == UNITDELIM) {
+               count++;
+            }
+         }
+         // starts[i] is where field i begins; starts[count] is one past the
+         // end of the line, as if it were followed by a delimiter
+         this.starts = new int[count + 1];
+         int field = 1;
+         this.starts[0] = start;
+         for (int i = start; i < end; i++) {
+            if (segment.get(i) == UNITDELIM) {
+               this.starts[field++] = i + 1;
+            }
+         }
+         this.starts[count] = end + 1;
+      }
+
+      @Override
+      public String get(int idx) {
+         if (this.fields == null) {
+            this.fields = new String[size()];
+         }
+         if (this.fields[idx] == null) {
+            this.fields[idx] = decode(this.segment, this.starts[idx], 
+               this.starts[idx + 1] - 1, this.escaped);
+         }
+         return this.fields[idx];
+      }
+
+      @Override
+      public String set(int idx, String value) {
+         String previous = get(idx);
+         this.fields[idx] = value;
+         return previous;
+      }
+
+      @Override
+      public int size() {
+         return this.starts.length - 1;
+      }
+   }
+
+   // --- testing ---
+
+   private static String writeTestFile(String contents) throws IOException {
+      java.io.File temp = java.io.File.createTempFile("mapped", ".dbf");
+      temp.deleteOnExit();
+      try (FileOutputStream out = new FileOutputStream(temp)) {
+         out.write(contents.getBytes(StandardCharsets.UTF_8));
+      }
+      return temp.getPath();
+   }
+
+   private void testMappedParsing() throws IOException {
+      String path = writeTestFile(
+         "test\n*1\t2\t3\na\tb\tc\nx\t\tz\u00e9\n");
+      MappedFile test = new MappedFile(path);
+      assert(test.getSegmentCount() == 1);
+      Table table = test.readTable();
+      assert(table.getName().equals("test"));
+      assert(table.getKeyColumn() == 0);
+      assert(table.getColumnName(2).equals("3"));
+      assert(table.getRecordSize() == 2);
+      Record row = table.select("x");
+      assert(row.size() == 3);
+      assert(row.getField(1).equals(""));
+      assert(row.getField(2).equals("z\u00e9"));
+      table.update("a", 1, "B");
+      assert(table.select("a").getField(1).equals("B"));
+      assert(table.select("a").getField(2).equals("c"));
+      // escaped tabs in names stay inside their column
+      table = new MappedFile(writeTestFile(DelimitedParser.FORMAT_LINE 
+         + "\nt\\tab\n*k\tcol\\tumn\nSTRING\tINT\na\t01\n")).readTable();
+      assert(table.getName().equals("t\tab"));
+      assert(table.getColumnSize() == 2);
+      assert(table.getColumnName(1).equals("col\tumn"));
+      assert(table.getColumnType(1) == FieldType.INT);
+      assert(table.select("a").getField(1).equals("01"));
+   }
+
+   private void testSegmentedParsing() throws IOException {
+      StringBuilder contents = new StringBuilder("seg\n*key\tvalue\r\n");
+      for (int i = 0; i < 100; i++) {
+         contents.append("k" + i + "\tv" + i + "\r\n");
+      }
+      String path = writeTestFile(contents.toString());
+      // small segments force many mappings split on line boundaries
+      MappedFile test = new MappedFile(path, 32);
+      assert(test.getSegmentCount() > 10);
+      Table table = test.readTable();
+      assert(table.getColumnName(1).equals("value"));
+      assert(table.getRecordSize() == 100);
+      assert(table.select("k0").getField(1).equals("v0"));
+      assert(table.select("k57").getField(1).equals("v57"));
+      assert(table.select("k99").getField(1).equals("v99"));
+   }
+
+   private void testLongLines() throws IOException {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      String path = writeTestFile("a very long table name\n*k\nv\n");
+      boolean caught = false;
+      try { new MappedFile(path, 8); }
+      catch (IOException e) { caught = true; }
+      assert(caught == true);
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void runTests() throws IOException {
+      testMappedParsing();
+      testSegmentedParsing();
+      testLongLines();
+   }
+
+   public static void main(String[] args) throws IOException {
+      MappedFile program = new MappedFile(writeTestFile(""));
+      program.runTests();
+   }
+}
@@ -0,0 +1,500 @@
+/* This class stores the records of a table outside the Java heap, for tables
+ * in StorageMode.OFF_HEAP, so that very large tables add little for the
+ * garbage collector to trace. Rows are encoded as by CompactRow.java and
+ * appended to direct ByteBuffers allocated in blocks; callers see each row as
+ * a Record which is a lightweight view holding only the row's position, and
+ * whose fields are decoded from the buffer as they are read. Setting a field
+ * appends the row again and leaves the old bytes unused, as does removing a
+ * row; a removed row's view first copies its fields onto the heap, so 
+ * versions kept for snapshots and records held by callers stay readable.
+ * Once more than COMPACT_RATIO of the bytes written are unused, and at least
+ * a block's worth, the current rows are copied into fresh buffers, their
+ * views moved over, and the old buffers released, so the store stays in
+ * proportion to its rows however often they change. Freeing the store 
+ * releases its buffers at once rather than whenever the collector gets to 
+ * them, after which its rows can't be read.
+ */
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.io.*;
+
+class OffHeapStore {
+   static final int BLOCK_SIZE = 1 << 20;
+   static final double COMPACT_RATIO = 0.5;
+
+   private volatile ByteBuffer[] blocks = new ByteBuffer[0];
+   private int position = 0;
+   private long allocated = 0;
+   private long written = 0;
+   private long live = 0;
+   private boolean freed = false;
+   // views of the current rows, which compacting moves
+   private final Set<RowView> views = 
+      Collections.newSetFromMap(new IdentityHashMap<RowView,Boolean>());
+   // reads share it, so freeing and compacting wait for them and no read
+   // sees freed or moved memory
+   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+   private static final int INT_BYTES = 4;
+   private static final Object unsafe = findUnsafe();
+
+   private static final String freedStore = "Storage has been freed.";
+   private static final String noSuchField = "No such field exists in record.";
+   private static final String notStored = "Record is not stored here.";
+
+   // copies data into the store, returning a view over the stored row
+   Record add(Record data) {
+      byte[] row = CompactRow.encode(data.getRow());
+      this.lock.readLock().lock();
+      try {
+         synchronized (this) {
+            checkIfNotFreed();
+            RowView view = new RowView(append(row));
+            this.views.add(view);
+            return new Record(view);
+         }
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // marks the bytes of a stored row as unused; its view keeps a copy of
+   // the fields on the heap
+   void remove(Record data) {
+      if (!(data.getRow() instanceof RowView) || ((RowView) data.getRow()).store() != this) {
+         System.out.println(notStored);
+         throw new IllegalArgumentException();
+      }
+      RowView view = (RowView) data.getRow();
+      synchronized (view) {
+         this.lock.readLock().lock();
+         try {
+            if (view.detached != null) {
+               return;
+            }
+            checkIfNotFreed();
+            String[] fields = new String[fieldCount(view.handle)];
+            for (int i = 0; i < fields.length; i++) {
+               fields[i] = readField(view.handle, i);
+            }
+            int length = length(view.handle);
+            view.detached = fields;
+            synchronized (this) {
+               this.views.remove(view);
+               this.live -= length;
+            }
+         } finally {
+            this.lock.readLock().unlock();
+         }
+      }
+      compactIfNeeded();
+   }
+
+   // bytes of buffers allocated, and the part of them holding current rows
+   synchronized long getAllocatedBytes() {
+      return this.allocated;
+   }
+
+   synchronized long getLiveBytes() {
+      return this.live;
+   }
+
+   boolean isFreed() {
+      this.lock.readLock().lock();
+      try {
+         return this.freed;
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // releases every buffer now; waits for reads in progress to finish
+   void free() {
+      this.lock.writeLock().lock();
+      try {
+         if (this.freed) {
+            return;
+         }
+         this.freed = true;
+         for (ByteBuffer block : this.blocks) {
+            release(block);
+         }
+         this.blocks = new ByteBuffer[0];
+         synchronized (this) {
+            this.allocated = 0;
+            this.written = 0;
+            this.live = 0;
+         }
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   // --- helper methods ---
+
+   // copies the current rows into new buffers once enough of the bytes
+   // written are unused, and releases the old buffers
+   private void compactIfNeeded() {
+      synchronized (this) {
+         if (!needsCompaction()) {
+            return;
+         }
+      }
+      this.lock.writeLock().lock();
+      try {
+         ByteBuffer[] old;
+         synchronized (this) {
+            if (this.freed || !needsCompaction()) {
+               return;
+            }
+            old = this.blocks;
+            this.blocks = new ByteBuffer[0];
+            this.allocated = 0;
+            this.written = 0;
+            this.live = 0;
+            for (RowView view : this.views) {
+               ByteBuffer block = old[(int) (view.handle >>> 32)];
+               int offset = (int) view.handle;
+               byte[] row = new byte[length(block, offset)];
+               block.get(offset, row);
+               view.handle = append(row);
+            }
+         }
+         for (ByteBuffer block : old) {
+            release(block);
+         }
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   // must hold this store's monitor
+   private boolean needsCompaction() {
+      long dead = this.written - this.live;
+      return dead >= BLOCK_SIZE && dead > this.written * COMPACT_RATIO;
+   }
+
+   // a row's position: the block in the high half, the offset in the low;
+   // must hold the read or write lock and this store's monitor
+   private long append(byte[] row) {
+      ByteBuffer[] current = this.blocks;
+      if (current.length == 0 || this.position + row.length > current[current.length - 1].capacity()) {
+         ByteBuffer block = ByteBuffer.allocateDirect(Math.max(BLOCK_SIZE, row.length));
+         current = Arrays.copyOf(current, current.length + 1);
+         current[current.length - 1] = block;
+         this.blocks = current;
+         this.position = 0;
+         this.allocated += block.capacity();
+      }
+      int offset = this.position;
+      current[current.length - 1].put(offset, row);
+      this.position += row.length;
+      this.written += row.length;
+      this.live += row.length;
+      return (long) (current.length - 1) << 32 | offset;
+   }
+
+   // the helpers reading a row by handle must be called holding the read 
+   // lock, or the handle may have been moved by compacting
+   private String readField(long handle, int idx) {
+      this.lock.readLock().lock();
+      try {
+         checkIfNotFreed();
+         ByteBuffer block = this.blocks[(int) (handle >>> 32)];
+         int offset = (int) handle;
+         checkIfFieldExists(block, offset, idx);
+         int end = block.getInt(offset + INT_BYTES * (idx + 1));
+         if (end < 0) {
+            return null;
+         }
+         int start = idx == 0 ? INT_BYTES * (block.getInt(offset) + 1)
+            : block.getInt(offset + INT_BYTES * idx);
+         start = start < 0 ? ~start : start;
+         byte[] field = new byte[end - start];
+         block.get(offset + start, field);
+         return new String(field, StandardCharsets.UTF_8);
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   private int fieldCount(long handle) {
+      this.lock.readLock().lock();
+      try {
+         checkIfNotFreed();
+         return this.blocks[(int) (handle >>> 32)].getInt((int) handle);
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   private int length(long handle) {
+      this.lock.readLock().lock();
+      try {
+         checkIfNotFreed();
+         return length(this.blocks[(int) (handle >>> 32)], (int) handle);
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // a row's length is where its last field ends
+   private static int length(ByteBuffer block, int offset) {
+      int count = block.getInt(offset);
+      if (count == 0) {
+         return INT_BYTES;
+      }
+      int end = block.getInt(offset + INT_BYTES * count);
+      return end < 0 ? ~end : end;
+   }
+
+   // Unsafe.invokeCleaner frees a direct buffer's memory at once; without
+   // it the buffer is freed once the garbage collector finds it unreachable
+   private static void release(ByteBuffer block) {
+      if (unsafe == null) {
+         return;
+      }
+      try {
+         Method invokeCleaner = unsafe.getClass().getMethod("invokeCleaner", ByteBuffer.class);
+         invokeCleaner.invoke(unsafe, block);
+      } catch (ReflectiveOperationException e) {
+         // left to the garbage collector
+      }
+   }
+
+   private static Object findUnsafe() {
+      try {
+         Field theUnsafe = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+         theUnsafe.setAccessible(true);
+         return theUnsafe.get(null);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+         return null;
+      }
+   }
+
+   private void checkIfNotFreed() {
+      if (this.freed) {
+         System.out.println(freedStore);
+         throw new IllegalArgumentException();
+      }
+   }
+
+   private void checkIfFieldExists(ByteBuffer block, int offset, int idx) {
+      if (idx < 0 || idx >= block.getInt(offset)) {
+         System.out.println(noSuchField);
+         throw new IndexOutOfBoundsException();
+      }
+   }
+
+   // a stored row, read from the buffer field by field; once removed, read
+   // from the copy of its fields taken then
+   private class RowView extends AbstractList<String> implements RandomAccess {
+      private volatile long handle;
+      private volatile String[] detached;
+
+      RowView(long handle) {
+         this.handle = handle;
+      }
+
+      OffHeapStore store() {
+         return OffHeapStore.this;
+      }
+
+      // detached is checked under the read lock, so the buffers a view 
+      // removed meanwhile still points into can't be released mid-read
+      @Override
+      public String get(int idx) {
+         lock.readLock().lock();
+         try {
+            String[] fields = this.detached;
+            if (fields != null) {
+               checkIndex(idx, fields.length);
+               return fields[idx];
+            }
+            return readField(this.handle, idx);
+         } finally {
+            lock.readLock().unlock();
+         }
+      }
+
+      // appends the row again with the field changed
+      @Override
+      public synchronized String set(int idx, String value) {
+         String previous;
+         lock.readLock().lock();
+         try {
+            if (this.detached != null) {
+               checkIndex(idx, this.detached.length);
+               previous = this.detached[idx];
+               this.detached[idx] = value;
+               return previous;
+            }
+            long old = this.handle;
+            String[] fields = new String[fieldCount(old)];
+            checkIndex(idx, fields.length);
+            for (int i = 0; i < fields.length; i++) {
+               fields[i] = readField(old, i);
+            }
+            previous = fields[idx];
+            fields[idx] = value;
+            byte[] row = CompactRow.encode(Arrays.asList(fields));
+            int oldLength = length(old);
+            synchronized (OffHeapStore.this) {
+               checkIfNotFreed();
+               this.handle = append(row);
+               OffHeapStore.this.live -= oldLength;
+            }
+         } finally {
+            lock.readLock().unlock();
+         }
+         compactIfNeeded();
+         return previous;
+      }
+
+      @Override
+      public int size() {
+         lock.readLock().lock();
+         try {
+            String[] fields = this.detached;
+            if (fields != null) {
+               return fields.length;
+            }
+            return fieldCount(this.handle);
+         } finally {
+            lock.readLock().unlock();
+         }
+      }
+
+      private void checkIndex(int idx, int size) {
+         if (idx < 0 || idx >= size) {
+            System.out.println(noSuchField);
+            throw new IndexOutOfBoundsException();
+         }
+      }
+   }
+
+   // --- testing ---
+
+   private void testStorage() {
+      OffHeapStore test = new OffHeapStore();
+      Record first = test.add(new Record("key", "", "caf\u00e9", null));
+      assert(first.size() == 4);
+      assert(first.getField(0).equals("key"));
+      assert(first.getField(1).equals(""));
+      assert(first.getField(2).equals("caf\u00e9"));
+      assert(first.getField(3) == null);
+      // same layout as CompactRow
+      long size = new CompactRow(List.of("key", "", "caf\u00e9", "")).getByteSize();
+      assert(test.getLiveBytes() == size);
+      assert(test.getAllocatedBytes() == BLOCK_SIZE);
+      Record second = test.add(new Record("other", "1"));
+      first.setField(2, "cafe");
+      assert(first.getField(2).equals("cafe"));
+      assert(first.getField(0).equals("key"));
+      assert(second.getField(0).equals("other"));
+      test.remove(second);
+      assert(test.getLiveBytes() == size - 1);
+      // rows bigger than a block get a block of their own
+      char[] wide = new char[BLOCK_SIZE + 10];
+      Arrays.fill(wide, 'w');
+      Record big = test.add(new Record(new String(wide)));
+      assert(big.getField(0).length() == BLOCK_SIZE + 10);
+      assert(test.getAllocatedBytes() > 2L * BLOCK_SIZE);
+      assert(first.getField(2).equals("cafe"));
+   }
+
+   private void testCompaction() {
+      OffHeapStore test = new OffHeapStore();
+      String padding = "p".repeat(1000);
+      Record[] rows = new Record[100];
+      for (int i = 0; i < rows.length; i++) {
+         rows[i] = test.add(new Record("k" + i, "0", padding));
+      }
+      Record removed = test.add(new Record("gone", "x", padding));
+      test.remove(removed);
+      long live = test.getLiveBytes();
+      // rewriting every row many times over stays within a few blocks
+      for (int round = 1; round <= 100; round++) {
+         for (Record entry : rows) {
+            entry.setField(1, Integer.toString(round % 10));
+         }
+         assert(test.getAllocatedBytes() <= 3L * BLOCK_SIZE);
+      }
+      assert(test.getLiveBytes() == live);
+      // moved rows and the removed one read as before
+      for (int i = 0; i < rows.length; i++) {
+         assert(rows[i].getField(0).equals("k" + i));
+         assert(rows[i].getField(1).equals("0"));
+         assert(rows[i].getField(2).equals(padding));
+      }
+      assert(removed.getField(1).equals("x"));
+      assert(removed.size() == 3);
+      // removing rows frees their space too
+      for (Record entry : rows) {
+         test.remove(entry);
+      }
+      assert(test.getLiveBytes() == 0);
+      for (int i = 0; i < 2000; i++) {
+         test.remove(test.add(new Record("t" + i, padding)));
+      }
+      assert(test.getAllocatedBytes() <= 2L * BLOCK_SIZE);
+      assert(rows[5].getField(0).equals("k5"));
+   }
+
+   private void testFreedStore() {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      OffHeapStore test = new OffHeapStore();
+      Record data = test.add(new Record("a", "b"));
+      boolean caught = false;
+      try { data.getField(2); }
+      catch (IndexOutOfBoundsException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      try { new OffHeapStore().remove(data); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      test.free();
+      assert(test.isFreed() == true);
+      assert(test.getAllocatedBytes() == 0);
+      try { data.getField(0); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      try { test.add(new Record("c")); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      test.free();
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void runTests() {
+      testStorage();
+      testCompaction();
+      testFreedStore();
+   }
+
+   public static void main(String[] args) {
+      OffHeapStore program = new OffHeapStore();
+      program.runTests();
+   }
+}
@@ -0,0 +1,23 @@
+public enum Operator {
+    EQ, NE, LT, LE, GT, GE;
+
+    // whether field compares to value as this operator says, ordering both 
+    // by the column's type
+    boolean test(FieldType type, String field, String value) {
+        int cmp = type.compare(field, value);
+        switch (this) {
+            case EQ:
+                return cmp == 0;
+            case NE:
+                return cmp != 0;
+            case LT:
+                return cmp < 0;
+            case LE:
+                return cmp <= 0;
+            case GT:
+                return cmp > 0;
+            default:
+                return cmp >= 0;
+        }
+    }
+}
@@ -0,0 +1,779 @@
+/* This class stores a single table in a binary file made of fixed-size pages,
+ * so that a table can be opened without reading its records and individual
+ * records can be read, updated and deleted in place. Page 0 is a header with
+ * the table's schema, row count and the first page of the page directory. The
+ * directory is a chain of pages listing every data page with its free space,
+ * used to find room for new records. Data pages are slotted: a small header
+ * and an array of (offset, length) slots grow from the front of the page while
+ * record bytes grow from the back. Records are addressed by a record id made
+ * of their page and slot numbers, which stays the same across in-place 
+ * updates. A record must fit within one page. Data pages are read and 
+ * changed through a buffer pool (see BufferPool.java), either one of the 
+ * file's own or one shared with other files, so that only the pages a lookup
+ * touches are read and a bounded number are kept; changed pages are written 
+ * back by the pool. The header and directory are written back by flush and 
+ * close, along with every changed page.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.io.*;
+
+class PageFile implements Closeable {
+   static final int PAGE_SIZE = 4096;
+   static final int OWN_FRAMES = 16;
+
+   private static final int MAGIC = 0x44425031; // "DBP1"
+   private static final int VERSION = 1;
+   private static final int PAGE_HEADER = 4;    // slot count, free end
+   private static final int SLOT_SIZE = 4;      // offset, length
+   private static final int DIR_HEADER = 8;     // next page, entry count
+   private static final int DIR_ENTRY = 8;      // page number, free bytes
+   private static final int DIR_CAPACITY = (PAGE_SIZE - DIR_HEADER) / DIR_ENTRY;
+   private static final int NO_PAGE = -1;
+
+   private static final String badFormat = "File is not a page file.";
+   private static final String tooLarge = "Record is too large for a page.";
+   private static final String noSuchRecord = "No such record exists in file.";
+
+   private FileChannel channel;
+   private final BufferPool pool;
+   private final boolean ownsPool;
+   private Table schema;
+   private int pageCount;
+   private int rowCount;
+   private List<Integer> dataPages = new ArrayList<>();
+   private List<Integer> freeSpace = new ArrayList<>();
+   private List<Integer> directoryPages = new ArrayList<>();
+   private HashMap<Integer,Integer> directoryIndex = new HashMap<>();
+   private HashMap<String,Long> keyMap;
+   private int insertHint = 0;
+
+   // opens an existing page file, reading only its header and directory
+   PageFile(String filepath) throws IOException {
+      this(filepath, (BufferPool) null);
+   }
+
+   // as above, caching pages in pool; null for a pool of the file's own
+   PageFile(String filepath, BufferPool pool) throws IOException {
+      this.pool = pool != null ? pool : new BufferPool(OWN_FRAMES);
+      this.ownsPool = pool == null;
+      this.channel = FileChannel.open(Paths.get(filepath),
+         StandardOpenOption.READ, StandardOpenOption.WRITE);
+      readHeader();
+      readDirectory();
+   }
+
+   // creates an empty page file (replacing any existing one) for the columns 
+   // and name of schema; records of schema are not copied
+   PageFile(String filepath, Table schema) throws IOException {
+      this(filepath, schema, null);
+   }
+
+   PageFile(String filepath, Table schema, BufferPool pool) throws IOException {
+      this.pool = pool != null ? pool : new BufferPool(OWN_FRAMES);
+      this.ownsPool = pool == null;
+      Path path = Paths.get(filepath);
+      if (path.getParent() != null) {
+         Files.createDirectories(path.getParent());
+      }
+      this.channel = FileChannel.open(path, StandardOpenOption.READ, 
+         StandardOpenOption.WRITE, StandardOpenOption.CREATE, 
+         StandardOpenOption.TRUNCATE_EXISTING);
+      this.schema = copySchema(schema);
+      this.pageCount = 1;
+      this.rowCount = 0;
+      this.keyMap = new HashMap<String,Long>();
+      flush();
+   }
+
+   // an empty table with the file's name and columns
+   Table getSchema() {
+      return copySchema(this.schema);
+   }
+
+   int getRecordSize() {
+      return this.rowCount;
+   }
+
+   int getPageCount() {
+      return this.pageCount;
+   }
+
+   BufferPool getBufferPool() {
+      return this.pool;
+   }
+
+   long insert(Record data) throws IOException {
+      checkIfRecordMatchesSchema(data);
+      byte[] bytes = encode(data);
+      long rid = insertBytes(bytes);
+      this.rowCount++;
+      if (this.keyMap != null) {
+         this.keyMap.put(data.getField(this.schema.getKeyColumn()), rid);
+      }
+      return rid;
+   }
+
+   Record read(long rid) throws IOException {
+      BufferPool.Frame frame = this.pool.pin(this, pageOf(rid));
+      try {
+         ByteBuffer page = frame.getPage();
+         int slot = slotOf(rid);
+         checkIfSlotUsed(page, slot);
+         return decode(page, slotOffset(page, slot), slotLength(page, slot));
+      } finally {
+         this.pool.unpin(frame, false);
+      }
+   }
+
+   // rewrites a record in place if it still fits in its page, otherwise moves
+   // it; returns the record's (possibly new) id
+   long update(long rid, Record data) throws IOException {
+      checkIfRecordMatchesSchema(data);
+      byte[] bytes = encode(data);
+      int pageNo = pageOf(rid);
+      int slot = slotOf(rid);
+      BufferPool.Frame frame = this.pool.pin(this, pageNo);
+      boolean changed = false;
+      String oldKey;
+      long newRid = rid;
+      try {
+         ByteBuffer page = frame.getPage();
+         checkIfSlotUsed(page, slot);
+         oldKey = decode(page, slotOffset(page, slot), slotLength(page, slot))
+            .getField(this.schema.getKeyColumn());
+         changed = true;
+         if (bytes.length <= slotLength(page, slot)) {
+            putRecord(page, slot, slotOffset(page, slot), bytes);
+         } else {
+            setSlot(page, slot, 0, 0);
+            if (contiguousFree(page) < bytes.length) {
+               compactPage(page);
+            }
+            if (contiguousFree(page) >= bytes.length) {
+               putRecord(page, slot, freeEnd(page) - bytes.length, bytes);
+               setFreeEnd(page, freeEnd(page) - bytes.length);
+            } else {
+               removeTrailingSlots(page);
+               newRid = -1;
+            }
+         }
+         setFreeSpace(pageNo, page);
+      } finally {
+         this.pool.unpin(frame, changed);
+      }
+      if (newRid == -1) {
+         newRid = insertBytes(bytes);
+      }
+      if (this.keyMap != null) {
+         this.keyMap.remove(oldKey);
+         this.keyMap.put(data.getField(this.schema.getKeyColumn()), newRid);
+      }
+      return newRid;
+   }
+
+   void delete(long rid) throws IOException {
+      int pageNo = pageOf(rid);
+      int slot = slotOf(rid);
+      BufferPool.Frame frame = this.pool.pin(this, pageNo);
+      boolean changed = false;
+      try {
+         ByteBuffer page = frame.getPage();
+         checkIfSlotUsed(page, slot);
+         if (this.keyMap != null) {
+            Record old = decode(page, slotOffset(page, slot), slotLength(page, slot));
+            this.keyMap.remove(old.getField(this.schema.getKeyColumn()));
+         }
+         changed = true;
+         setSlot(page, slot, 0, 0);
+         removeTrailingSlots(page);
+         setFreeSpace(pageNo, page);
+      } finally {
+         this.pool.unpin(frame, changed);
+      }
+      this.rowCount--;
+   }
+
+   // ids of all records, in page and slot order
+   List<Long> getRecordIds() throws IOException {
+      List<Long> rids = new ArrayList<Long>();
+      for (int pageNo : this.dataPages) {
+         BufferPool.Frame frame = this.pool.pin(this, pageNo);
+         try {
+            ByteBuffer page = frame.getPage();
+            for (int slot = 0; slot < slotCount(page); slot++) {
+               if (slotLength(page, slot) > 0) {
+                  rids.add(recordId(pageNo, slot));
+               }
+            }
+         } finally {
+            this.pool.unpin(frame, false);
+         }
+      }
+      return rids;
+   }
+
+   // id of the record with the given key, or -1; the first call scans the
+   // file to learn where every key is
+   long find(String recordKey) throws IOException {
+      if (this.keyMap == null) {
+         HashMap<String,Long> keys = new HashMap<String,Long>();
+         for (long rid : getRecordIds()) {
+            keys.put(read(rid).getField(this.schema.getKeyColumn()), rid);
+         }
+         this.keyMap = keys;
+      }
+      Long rid = this.keyMap.get(recordKey);
+      return rid == null ? -1 : rid;
+   }
+
+   // loads every record into a new table
+   Table readTable() throws IOException {
+      Table output = getSchema();
+      List<Long> rids = getRecordIds();
+      ArrayList<Record> records = new ArrayList<>(rids.size());
+      for (long rid : rids) {
+         records.add(read(rid));
+      }
+      output.addAll(records);
+      return output;
+   }
+
+   // writes changed pages, the header and the directory to disk
+   void flush() throws IOException {
+      this.pool.flush(this);
+      writeDirectory();
+      writeHeader();
+      this.channel.force(false);
+   }
+
+   @Override
+   public void close() throws IOException {
+      if (this.channel.isOpen()) {
+         flush();
+         this.pool.discard(this);
+         if (this.ownsPool) {
+            this.pool.close();
+         }
+         this.channel.close();
+      }
+   }
+
+   // --- page access ---
+
+   // pages straight from and to disk; data pages go through the pool
+   ByteBuffer readPage(int pageNo) throws IOException {
+      return readPage(pageNo, ByteBuffer.allocate(PAGE_SIZE));
+   }
+
+   ByteBuffer readPage(int pageNo, ByteBuffer page) throws IOException {
+      page.clear();
+      long position = (long) pageNo * PAGE_SIZE;
+      while (page.hasRemaining()) {
+         if (this.channel.read(page, position + page.position()) < 0) {
+            break;
+         }
+      }
+      page.clear();
+      return page;
+   }
+
+   void writePage(int pageNo, ByteBuffer page) throws IOException {
+      ByteBuffer source = page.duplicate();
+      source.clear();
+      long position = (long) pageNo * PAGE_SIZE;
+      while (source.hasRemaining()) {
+         this.channel.write(source, position + source.position());
+      }
+   }
+
+   private int allocatePage() {
+      return this.pageCount++;
+   }
+
+   // --- slotted pages ---
+
+   private long insertBytes(byte[] bytes) throws IOException {
+      if (bytes.length + SLOT_SIZE > PAGE_SIZE - PAGE_HEADER) {
+         System.out.println(tooLarge);
+         throw new IllegalArgumentException();
+      }
+      int idx = findPageWithSpace(bytes.length + SLOT_SIZE);
+      BufferPool.Frame frame;
+      ByteBuffer page;
+      int pageNo;
+      if (idx == -1) {
+         pageNo = allocatePage();
+         frame = this.pool.pinNew(this, pageNo);
+         page = frame.getPage();
+         setSlotCount(page, 0);
+         setFreeEnd(page, PAGE_SIZE);
+         this.directoryIndex.put(pageNo, this.dataPages.size());
+         this.dataPages.add(pageNo);
+         this.freeSpace.add(0);
+         this.insertHint = this.dataPages.size() - 1;
+      } else {
+         pageNo = this.dataPages.get(idx);
+         frame = this.pool.pin(this, pageNo);
+         page = frame.getPage();
+      }
+      try {
+         int slot = findFreeSlot(page);
+         int needed = bytes.length + (slot == slotCount(page) ? SLOT_SIZE : 0);
+         if (contiguousFree(page) < needed) {
+            compactPage(page);
+         }
+         if (slot == slotCount(page)) {
+            setSlotCount(page, slot + 1);
+         }
+         int offset = freeEnd(page) - bytes.length;
+         putRecord(page, slot, offset, bytes);
+         setFreeEnd(page, offset);
+         setFreeSpace(pageNo, page);
+         return recordId(pageNo, slot);
+      } finally {
+         this.pool.unpin(frame, true);
+      }
+   }
+
+   // index into dataPages of a page with at least needed free bytes, or -1
+   private int findPageWithSpace(int needed) {
+      int pages = this.dataPages.size();
+      for (int i = 0; i < pages; i++) {
+         int idx = (this.insertHint + i) % pages;
+         if (this.freeSpace.get(idx) >= needed) {
+            this.insertHint = idx;
+            return idx;
+         }
+      }
+      return -1;
+   }
+
+   private int findFreeSlot(ByteBuffer page) {
+      int slots = slotCount(page);
+      for (int slot = 0; slot < slots; slot++) {
+         if (slotLength(page, slot) == 0) {
+            return slot;
+         }
+      }
+      return slots;
+   }
+
+   private void putRecord(ByteBuffer page, int slot, int offset, byte[] bytes) {
+      ByteBuffer target = page.duplicate();
+      target.position(offset);
+      target.put(bytes);
+      setSlot(page, slot, offset, bytes.length);
+   }
+
+   // moves all live records to the back of the page, leaving one free gap
+   private void compactPage(ByteBuffer page) {
+      int slots = slotCount(page);
+      byte[][] live = new byte[slots][];
+      for (int slot = 0; slot < slots; slot++) {
+         int length = slotLength(page, slot);
+         if (length > 0) {
+            live[slot] = new byte[length];
+            ByteBuffer source = page.duplicate();
+            source.position(slotOffset(page, slot));
+            source.get(live[slot]);
+         }
+      }
+      int end = PAGE_SIZE;
+      for (int slot = 0; slot < slots; slot++) {
+         if (live[slot] != null) {
+            end -= live[slot].length;
+            putRecord(page, slot, end, live[slot]);
+         }
+      }
+      setFreeEnd(page, end);
+   }
+
+   private void removeTrailingSlots(ByteBuffer page) {
+      int slots = slotCount(page);
+      while (slots > 0 && slotLength(page, slots - 1) == 0) {
+         slots--;
+      }
+      setSlotCount(page, slots);
+   }
+
+   // free bytes in a page, counting space left by deleted records
+   private int totalFree(ByteBuffer page) {
+      int used = PAGE_HEADER + slotCount(page) * SLOT_SIZE;
+      for (int slot = 0; slot < slotCount(page); slot++) {
+         used += slotLength(page, slot);
+      }
+      return PAGE_SIZE - used;
+   }
+
+   private int contiguousFree(ByteBuffer page) {
+      return freeEnd(page) - PAGE_HEADER - slotCount(page) * SLOT_SIZE;
+   }
+
+   private void setFreeSpace(int pageNo, ByteBuffer page) {
+      this.freeSpace.set(this.directoryIndex.get(pageNo), totalFree(page));
+   }
+
+   private int slotCount(ByteBuffer page) {
+      return page.getShort(0) & 0xFFFF;
+   }
+
+   private void setSlotCount(ByteBuffer page, int count) {
+      page.putShort(0, (short) count);
+   }
+
+   private int freeEnd(ByteBuffer page) {
+      int end = page.getShort(2) & 0xFFFF;
+      return end == 0 ? PAGE_SIZE : end;
+   }
+
+   private void setFreeEnd(ByteBuffer page, int end) {
+      page.putShort(2, (short) (end == PAGE_SIZE ? 0 : end));
+   }
+
+   private int slotOffset(ByteBuffer page, int slot) {
+      return page.getShort(PAGE_HEADER + slot * SLOT_SIZE) & 0xFFFF;
+   }
+
+   private int slotLength(ByteBuffer page, int slot) {
+      return page.getShort(PAGE_HEADER + slot * SLOT_SIZE + 2) & 0xFFFF;
+   }
+
+   private void setSlot(ByteBuffer page, int slot, int offset, int length) {
+      page.putShort(PAGE_HEADER + slot * SLOT_SIZE, (short) offset);
+      page.putShort(PAGE_HEADER + slot * SLOT_SIZE + 2, (short) length);
+   }
+
+   private static long recordId(int pageNo, int slot) {
+      return ((long) pageNo << 16) | slot;
+   }
+
+   private static int pageOf(long rid) {
+      return (int) (rid >>> 16);
+   }
+
+   private static int slotOf(long rid) {
+      return (int) (rid & 0xFFFF);
+   }
+
+   // --- record encoding ---
+
+   // each field as an unsigned short length followed by its UTF-8 bytes
+   private byte[] encode(Record data) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      for (int i = 0; i < data.size(); i++) {
+         byte[] field = data.getField(i).getBytes(StandardCharsets.UTF_8);
+         if (field.length > 0xFFFF) {
+            System.out.println(tooLarge);
+            throw new IllegalArgumentException();
+         }
+         bytes.write(field.length >>> 8);
+         bytes.write(field.length);
+         bytes.write(field, 0, field.length);
+      }
+      return bytes.toByteArray();
+   }
+
+   private Record decode(ByteBuffer page, int offset, int length) {
+      Record data = new Record();
+      int position = offset;
+      for (int i = 0; i < this.schema.getColumnSize(); i++) {
+         int fieldLength = page.getShort(position) & 0xFFFF;
+         position += 2;
+         data.add(new String(page.array(), position, fieldLength, StandardCharsets.UTF_8));
+         position += fieldLength;
+      }
+      return data;
+   }
+
+   // --- header and directory ---
+
+   private void writeHeader() throws IOException {
+      ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+      try {
+         page.putInt(MAGIC);
+         page.putInt(VERSION);
+         page.putInt(PAGE_SIZE);
+         page.putInt(this.pageCount);
+         page.putInt(this.rowCount);
+         page.putInt(this.directoryPages.isEmpty() ? NO_PAGE : this.directoryPages.get(0));
+         page.putInt(this.schema.getKeyColumn());
+         page.putInt(this.schema.getColumnSize());
+         putString(page, this.schema.getName());
+         for (int i = 0; i < this.schema.getColumnSize(); i++) {
+            putString(page, this.schema.getColumnName(i));
+            page.put((byte) this.schema.getColumnType(i).ordinal());
+         }
+      } catch (java.nio.BufferOverflowException e) {
+         System.out.println("Table schema is too large for a page file header.");
+         throw new IllegalArgumentException();
+      }
+      writePage(0, page);
+   }
+
+   private void readHeader() throws IOException {
+      ByteBuffer page = readPage(0);
+      if (page.getInt() != MAGIC || page.getInt() != VERSION 
+            || page.getInt() != PAGE_SIZE) {
+         System.out.println(badFormat);
+         throw new IOException(badFormat);
+      }
+      this.pageCount = page.getInt();
+      this.rowCount = page.getInt();
+      int directory = page.getInt();
+      int keyColumn = page.getInt();
+      int columnCount = page.getInt();
+      String name = getString(page);
+      ColumnID[] columns = new ColumnID[columnCount];
+      for (int i = 0; i < columnCount; i++) {
+         String columnName = getString(page);
+         FieldType type = FieldType.values()[page.get()];
+         columns[i] = new ColumnID(columnName, i == keyColumn, type);
+      }
+      this.schema = new Table(name, columns);
+      while (directory != NO_PAGE) {
+         this.directoryPages.add(directory);
+         directory = readPage(directory).getInt(0);
+      }
+   }
+
+   private void readDirectory() throws IOException {
+      for (int dirPage : this.directoryPages) {
+         ByteBuffer page = readPage(dirPage);
+         int entries = page.getInt(4);
+         page.position(DIR_HEADER);
+         for (int i = 0; i < entries; i++) {
+            this.directoryIndex.put(page.getInt(DIR_HEADER + i * DIR_ENTRY), this.dataPages.size());
+            this.dataPages.add(page.getInt());
+            this.freeSpace.add(page.getInt());
+         }
+      }
+   }
+
+   private void writeDirectory() throws IOException {
+      int needed = (this.dataPages.size() + DIR_CAPACITY - 1) / DIR_CAPACITY;
+      while (this.directoryPages.size() < needed) {
+         this.directoryPages.add(allocatePage());
+      }
+      for (int i = 0; i < this.directoryPages.size(); i++) {
+         ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+         int first = i * DIR_CAPACITY;
+         int entries = Math.max(0, Math.min(DIR_CAPACITY, this.dataPages.size() - first));
+         boolean last = i == this.directoryPages.size() - 1;
+         page.putInt(last ? NO_PAGE : this.directoryPages.get(i + 1));
+         page.putInt(entries);
+         for (int j = first; j < first + entries; j++) {
+            page.putInt(this.dataPages.get(j));
+            page.putInt(this.freeSpace.get(j));
+         }
+         writePage(this.directoryPages.get(i), page);
+      }
+   }
+
+   private void putString(ByteBuffer page, String str) {
+      byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+      page.putShort((short) bytes.length);
+      page.put(bytes);
+   }
+
+   private String getString(ByteBuffer page) {
+      byte[] bytes = new byte[page.getShort() & 0xFFFF];
+      page.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   // --- helper methods ---
+
+   private Table copySchema(Table table) {
+      ColumnID[] columns = new ColumnID[table.getColumnSize()];
+      for (int i = 0; i < columns.length; i++) {
+         columns[i] = new ColumnID(table.getColumnName(i), 
+            i == table.getKeyColumn(), table.getColumnType(i));
+      }
+      return new Table(table.getName(), columns);
+   }
+
+   private void checkIfRecordMatchesSchema(Record data) {
+      if (data.size() != this.schema.getColumnSize()) {
+         System.out.println("Input data does not match table columns.");
+         throw new IllegalArgumentException();
+      }
+   }
+
+   private void checkIfSlotUsed(ByteBuffer page, int slot) {
+      if (slot >= slotCount(page) || slotLength(page, slot) == 0) {
+         System.out.println(noSuchRecord);
+         throw new IllegalArgumentException();
+      }
+   }
+
+   // --- testing ---
+
+   private static Table testSchema() {
+      return new Table(
+         "paged",
+         new ColumnID("key", true),
+         new ColumnID("count", false, FieldType.INT),
+         new ColumnID("note")
+      );
+   }
+
+   private void testRecordAccess(Path dir) throws IOException {
+      String path = dir.resolve("paged.dbp").toString();
+      PageFile test = new PageFile(path, testSchema());
+      long r0 = test.insert(new Record("a", "1", "first"));
+      long r1 = test.insert(new Record("b", "2", "second"));
+      assert(test.getRecordSize() == 2);
+      assert(test.read(r0).getField(2).equals("first"));
+      assert(test.read(r1).getField(0).equals("b"));
+      // shrinking and growing updates keep their record id while they fit
+      assert(test.update(r0, new Record("a", "1", "x")) == r0);
+      assert(test.update(r0, new Record("a", "1", "much longer than before")) == r0);
+      assert(test.read(r0).getField(2).equals("much longer than before"));
+      assert(test.read(r1).getField(2).equals("second"));
+      assert(test.find("b") == r1);
+      assert(test.find("z") == -1);
+      test.delete(r1);
+      assert(test.getRecordSize() == 1);
+      assert(test.find("b") == -1);
+      test.close();
+      // reopening reads only the header and directory
+      PageFile reopened = new PageFile(path);
+      assert(reopened.getRecordSize() == 1);
+      Table schema = reopened.getSchema();
+      assert(schema.getName().equals("paged"));
+      assert(schema.getKeyColumn() == 0);
+      assert(schema.getColumnType(1) == FieldType.INT);
+      assert(reopened.read(r0).getField(2).equals("much longer than before"));
+      assert(reopened.find("a") == r0);
+      reopened.close();
+   }
+
+   private void testManyPages(Path dir) throws IOException {
+      String path = dir.resolve("many.dbp").toString();
+      PageFile test = new PageFile(path, testSchema());
+      StringBuilder padding = new StringBuilder();
+      for (int i = 0; i < 600; i++) {
+         padding.append('p');
+      }
+      List<Long> rids = new ArrayList<Long>();
+      for (int i = 0; i < 5000; i++) {
+         rids.add(test.insert(new Record("k" + i, Integer.toString(i), padding.toString())));
+      }
+      assert(test.getPageCount() > DIR_CAPACITY);
+      test.close();
+      PageFile reopened = new PageFile(path);
+      assert(reopened.getRecordSize() == 5000);
+      assert(reopened.read(rids.get(4321)).getField(1).equals("4321"));
+      // deleted space is reused by later inserts
+      int pages = reopened.getPageCount();
+      for (int i = 0; i < 100; i++) {
+         reopened.delete(rids.get(i));
+      }
+      for (int i = 0; i < 100; i++) {
+         reopened.insert(new Record("n" + i, "0", padding.toString()));
+      }
+      assert(reopened.getPageCount() == pages);
+      Table loaded = reopened.readTable();
+      assert(loaded.getRecordSize() == 5000);
+      assert(loaded.select("n99").getField(0).equals("n99"));
+      assert(loaded.select("k4999").getField(1).equals("4999"));
+      reopened.close();
+   }
+
+   private void testSharedPool(Path dir) throws IOException {
+      String path = dir.resolve("pooled.dbp").toString();
+      PageFile test = new PageFile(path, testSchema());
+      char[] wide = new char[PAGE_SIZE / 4];
+      for (int i = 0; i < 200; i++) {
+         test.insert(new Record("k" + i, Integer.toString(i), new String(wide)));
+      }
+      test.close();
+      // a lookup reads only the page holding the record
+      BufferPool pool = new BufferPool(8);
+      PageFile reopened = new PageFile(path, pool);
+      PageFile other = new PageFile(dir.resolve("many.dbp").toString(), pool);
+      long rid = reopened.find("k150");
+      reopened.getRecordIds();
+      long misses = pool.getMisses();
+      assert(reopened.read(rid).getField(1).equals("150"));
+      assert(pool.getMisses() == misses + 1);
+      assert(reopened.read(rid).getField(1).equals("150"));
+      assert(pool.getMisses() == misses + 1);
+      // files sharing a pool keep their pages apart
+      assert(other.read(other.find("k4999")).getField(1).equals("4999"));
+      assert(pool.getPinnedCount() == 0);
+      reopened.update(rid, new Record("k150", "changed", ""));
+      reopened.close();
+      other.close();
+      pool.close();
+      reopened = new PageFile(path);
+      assert(reopened.read(reopened.find("k150")).getField(1).equals("changed"));
+      assert(reopened.getRecordSize() == 200);
+      reopened.close();
+   }
+
+   private void testBadInput(Path dir) throws IOException {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      String path = dir.resolve("bad.dbp").toString();
+      PageFile test = new PageFile(path, testSchema());
+      boolean caught = false;
+      char[] huge = new char[PAGE_SIZE];
+      try { test.insert(new Record("a", "1", new String(huge))); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      try { test.insert(new Record("a", "1")); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      try { test.read(recordId(1, 0)); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      test.close();
+      Path text = dir.resolve("text.dbf");
+      Files.write(text, "not\ta\tpage\tfile\n".getBytes(StandardCharsets.UTF_8));
+      try { new PageFile(text.toString()); }
+      catch (IOException e) { caught = true; }
+      assert(caught == true);
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void runTests() throws IOException {
+      Path dir = Files.createTempDirectory("pagefile");
+      testRecordAccess(dir);
+      testManyPages(dir);
+      testSharedPool(dir);
+      testBadInput(dir);
+      for (java.io.File entry : dir.toFile().listFiles()) {
+         entry.delete();
+      }
+      Files.delete(dir);
+   }
+
+   public static void main(String[] args) throws IOException {
+      Path dir = Files.createTempDirectory("pagefile");
+      PageFile program = new PageFile(dir.resolve("main.dbp").toString(), testSchema());
+      program.close();
+      program.runTests();
+      Files.delete(dir.resolve("main.dbp"));
+      Files.delete(dir);
+   }
+}
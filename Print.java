@@ -2,10 +2,17 @@
  * automatically generated through helper functions which scan all column and
  * record data for longest length. There are also helper methods to generate
  * a horizontal divider and to format column/record data into appropriately
- * width-adjusted strings.
+ * width-adjusted strings. Tables are rendered in two passes straight over the
+ * table's records (one to find widths, one to write rows) into any Appendable,
+ * so large tables can be streamed to a Writer, and a row offset/limit allows
+ * paging through a table without rendering all of it. Both passes read the
+ * same Snapshot of the table, so rows changed while printing can neither 
+ * skew the widths nor hold up writers.
  */
 
+import java.util.Iterator;
 import java.util.List;
+import java.io.*;
 
 class Print {
    private int[] colWidth;
@@ -29,20 +36,44 @@ class Print {
    //                  | x | y | z |
    //                  +---+---+---+
    String printTableToString(Table inputTable) {
-      String horDiv = generateHorizontalDivider(inputTable);
+      return printTableToString(inputTable, 0, inputTable.getRecordSize());
+   }
+
+   // same as above, only rendering records offset..offset+limit-1
+   String printTableToString(Table inputTable, int offset, int limit) {
       StringBuilder tableStringBuilder = new StringBuilder();
-      tableStringBuilder.append(horDiv);
-      // i = -1 for column headers; i = 0..recsz for records
-      for (int i = -1; i < inputTable.getRecordSize(); i++) {
-         tableStringBuilder.append(generateDataString(inputTable, i));
-         if (i == -1) {
-            tableStringBuilder.append(horDiv);
-         }
+      try {
+         printTable(inputTable, tableStringBuilder, offset, limit);
+      } catch (IOException e) {
+         // StringBuilder never throws
+         throw new UncheckedIOException(e);
       }
-      tableStringBuilder.append(horDiv);
       return tableStringBuilder.toString();
    }
 
+   void printTable(Table inputTable, Appendable out) throws IOException {
+      printTable(inputTable, out, 0, inputTable.getRecordSize());
+   }
+
+   // streams the table to out; widths only account for the printed rows
+   void printTable(Table inputTable, Appendable out, int offset, int limit)
+         throws IOException {
+      checkValidRange(offset, limit);
+      try (Snapshot snapshot = inputTable.snapshot()) {
+         Iterable<Record> records = inputTable.getRecords(snapshot);
+         setMaxWidths(inputTable, records, offset, limit);
+         String horDiv = generateHorizontalDivider(inputTable);
+         out.append(horDiv);
+         appendColumnNames(inputTable, out);
+         out.append(horDiv);
+         Iterator<Record> rows = skipRecords(records, offset);
+         for (int i = 0; i < limit && rows.hasNext(); i++) {
+            appendRecord(inputTable, rows.next(), out);
+         }
+         out.append(horDiv);
+      }
+   }
+
    // --- helper methods ---
 
    // return a copy of the selected width
@@ -61,20 +92,40 @@ class Print {
 
    // get max column widths from record fields
    private void setMaxWidths(Table inputTable) {
+      setMaxWidths(inputTable, inputTable.getRecords(), 0, inputTable.getRecordSize());
+   }
+
+   // get max column widths from the fields of records offset..offset+limit-1
+   private void setMaxWidths(Table inputTable, Iterable<Record> records, 
+         int offset, int limit) {
       int colsz = inputTable.getColumnSize();
       setInitialWidths(inputTable, colsz);
-      List<String> recordKeys = inputTable.getKeyList();
-      for (String entry : recordKeys) {
+      Iterator<Record> rows = skipRecords(records, offset);
+      for (int j = 0; j < limit && rows.hasNext(); j++) {
+         Record entry = rows.next();
          for (int i = 0; i < colsz; i++) {
             this.colWidth[i] = 
-               Math.max(
-                  this.colWidth[i], 
-                  inputTable.select(entry).getField(i).length()
-               );
+               Math.max(this.colWidth[i], entry.getField(i).length());
          }
       }
    }
 
+   // returns an iterator over records positioned at offset
+   private Iterator<Record> skipRecords(Iterable<Record> records, int offset) {
+      Iterator<Record> rows = records.iterator();
+      for (int i = 0; i < offset && rows.hasNext(); i++) {
+         rows.next();
+      }
+      return rows;
+   }
+
+   private void checkValidRange(int offset, int limit) {
+      if (offset < 0 || limit < 0) {
+         System.out.println("Invalid range of records.");
+         throw new IllegalArgumentException();
+      }
+   }
+
    // Returns string like "+---+---+---+\n"
    private String generateHorizontalDivider(Table inputTable) {
       StringBuilder horDivBuilder = new StringBuilder();
@@ -97,24 +148,46 @@ class Print {
          throw new IndexOutOfBoundsException();
       }
       StringBuilder dataBuilder = new StringBuilder();
-      String currField;
-      List<String> recordKeys = inputTable.getKeyList();
-      for (int i = 0; i < inputTable.getColumnSize(); i++) {
+      try {
          if (idxData == -1) {
-            currField = inputTable.getColumnName(i);
+            appendColumnNames(inputTable, dataBuilder);
          } else {
-            currField = inputTable.select(recordKeys.get(idxData)).getField(i);
-         }
-         dataBuilder.append(V_DIV + EMPTY + currField);
-         // fill right side of data with empty spaces
-         for (int j = 0; j < getColWidth(i) - currField.length() + HPADD; j++) {
-            dataBuilder.append(EMPTY);
+            List<String> recordKeys = inputTable.getKeyList();
+            Record entry = inputTable.select(recordKeys.get(idxData));
+            appendRecord(inputTable, entry, dataBuilder);
          }
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
       }
-      dataBuilder.append(V_DIV + NEWLN);
       return dataBuilder.toString();
    }
 
+   private void appendColumnNames(Table inputTable, Appendable out)
+         throws IOException {
+      for (int i = 0; i < inputTable.getColumnSize(); i++) {
+         appendField(i, inputTable.getColumnName(i), out);
+      }
+      out.append(V_DIV + NEWLN);
+   }
+
+   private void appendRecord(Table inputTable, Record entry, Appendable out)
+         throws IOException {
+      for (int i = 0; i < inputTable.getColumnSize(); i++) {
+         appendField(i, entry.getField(i), out);
+      }
+      out.append(V_DIV + NEWLN);
+   }
+
+   // Appends "| data " padded to the width of column i
+   private void appendField(int i, String currField, Appendable out)
+         throws IOException {
+      out.append(V_DIV).append(EMPTY).append(currField);
+      // fill right side of data with empty spaces
+      for (int j = 0; j < getColWidth(i) - currField.length() + HPADD; j++) {
+         out.append(EMPTY);
+      }
+   }
+
    // --- testing ---
 
    private void testPrintingMethods() {
@@ -170,8 +243,53 @@ class Print {
       ));
    }
 
+   private void testPagedPrinting() {
+      Print testPrint = new Print();
+      Table testTable = new Table(
+         "test_table",
+         new ColumnID("1", true),
+         new ColumnID("2")
+      );
+      testTable.add(new Record("a", "b"));
+      testTable.add(new Record("ccc", "d"));
+      testTable.add(new Record("e", "ffff"));
+      // widths only come from the printed page
+      assert(testPrint.printTableToString(testTable, 1, 1).equals(
+         "+-----+---+\n" +
+         "| 1   | 2 |\n" +
+         "+-----+---+\n" +
+         "| ccc | d |\n" +
+         "+-----+---+\n"
+      ));
+      // pages past the end only print headers
+      assert(testPrint.printTableToString(testTable, 3, 10).equals(
+         "+---+---+\n" +
+         "| 1 | 2 |\n" +
+         "+---+---+\n" +
+         "+---+---+\n"
+      ));
+      // streaming to a Writer matches the string output
+      StringWriter writer = new StringWriter();
+      try { testPrint.printTable(testTable, writer); }
+      catch (IOException e) { assert(false); }
+      assert(writer.toString().equals(testPrint.printTableToString(testTable)));
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      boolean caught = false;
+      try { testPrint.printTableToString(testTable, -1, 1); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
    private void runTests() {
       testPrintingMethods();
+      testPagedPrinting();
    }
 
    public static void main(String[] args) {
@@ -0,0 +1,420 @@
+/* This class builds and runs queries over a table: records are filtered by
+ * conditions of the form "column op value" (all of which must hold), then
+ * optionally ordered by a column, cut to a number of records and projected
+ * onto a subset of columns. Conditions compare fields by the column's
+ * FieldType (see Operator.java). A query is built by chaining where, select,
+ * orderBy and limit, and runs each time it is iterated. Running it picks the
+ * cheapest way to find candidate records: an equality on the key column is
+ * a single lookup (a lookup in the ordered key set, if the table keeps one,
+ * for typed key columns, as other spellings of the value match too; without
+ * one they are scanned), an equality (or range, for SORTED indexes) on an indexed
+ * column goes through the table's SecondaryIndex, and anything else is one
+ * pass over the table's records. Every condition is then checked on the
+ * candidates as they stream through; an equality on a STRING column whose
+ * fields the table interns (see Table.isInterned) is a reference comparison
+ * with the table's own copy of the value, and matches nothing at once if the
+ * table has never held the value. Projected records are copies; without
+ * a projection the table's own records are returned, as by Table.select.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.io.*;
+
+class Query implements Iterable<Record> {
+   private Table table;
+   private List<Condition> conditions;
+   private int[] projection;
+   private int orderColumn = -1;
+   private boolean ascending = true;
+   private int limit = Integer.MAX_VALUE;
+
+   private static final String noSuchColumn = "No such column exists in table.";
+   private static final String invalidLimit = "Invalid limit on records.";
+
+   Query(Table table) {
+      this.table = table;
+      this.conditions = new ArrayList<Condition>();
+   }
+
+   // keeps records whose field in column compares to value as op says
+   Query where(String column, Operator op, String value) {
+      this.conditions.add(new Condition(columnIndex(column), op, value));
+      return this;
+   }
+
+   // returns only the given columns, in the given order
+   Query select(String... columns) {
+      this.projection = new int[columns.length];
+      for (int i = 0; i < columns.length; i++) {
+         this.projection[i] = columnIndex(columns[i]);
+      }
+      return this;
+   }
+
+   Query orderBy(String column, boolean ascending) {
+      this.orderColumn = columnIndex(column);
+      this.ascending = ascending;
+      return this;
+   }
+
+   Query limit(int limit) {
+      if (limit < 0) {
+         System.out.println(invalidLimit);
+         throw new IllegalArgumentException();
+      }
+      this.limit = limit;
+      return this;
+   }
+
+   @Override
+   public Iterator<Record> iterator() {
+      List<Record> matches = candidates();
+      if (this.orderColumn >= 0) {
+         FieldType type = this.table.getColumnType(this.orderColumn);
+         int col = this.orderColumn;
+         Comparator<Record> order = (a, b) -> type.compare(a.getField(col), b.getField(col));
+         matches.sort(this.ascending ? order : order.reversed());
+         if (matches.size() > this.limit) {
+            matches = matches.subList(0, this.limit);
+         }
+      }
+      Iterator<Record> rows = matches.iterator();
+      if (this.projection == null) {
+         return rows;
+      }
+      return new Iterator<Record>() {
+         @Override
+         public boolean hasNext() {
+            return rows.hasNext();
+         }
+
+         @Override
+         public Record next() {
+            return project(rows.next());
+         }
+      };
+   }
+
+   // runs the query, collecting its records
+   List<Record> list() {
+      ArrayList<Record> results = new ArrayList<>();
+      for (Record entry : this) {
+         results.add(entry);
+      }
+      return results;
+   }
+
+   // --- helper methods ---
+
+   // the records matching every condition, through the cheapest access path;
+   // limited here unless they still need ordering
+   private List<Record> candidates() {
+      int max = this.orderColumn >= 0 ? Integer.MAX_VALUE : this.limit;
+      String[] interned = internedValues();
+      if (interned == null) {
+         return new ArrayList<Record>();
+      }
+      Predicate<Record> filter = data -> matches(data, interned);
+      for (Condition entry : this.conditions) {
+         List<String> keys = matchingKeys(entry);
+         if (keys != null) {
+            return fetch(keys, filter, max);
+         }
+      }
+      for (Condition entry : this.conditions) {
+         List<String> keys = indexedKeys(entry);
+         if (keys != null) {
+            return fetch(keys, filter, max);
+         }
+      }
+      return this.table.scan(filter, max);
+   }
+
+   // the records under keys that pass filter, up to max of them
+   private List<Record> fetch(List<String> keys, Predicate<Record> filter, int max) {
+      ArrayList<Record> matches = new ArrayList<>();
+      for (String recordKey : keys) {
+         if (matches.size() >= max) {
+            break;
+         }
+         Record found = this.table.find(recordKey);
+         if (found != null && filter.test(found)) {
+            matches.add(found);
+         }
+      }
+      return matches;
+   }
+
+   // keys an equality on the key column could match, or null if they can't
+   // be looked up; keys of other types may be spelled differently to the 
+   // value (such as "01" for "1"), so they need the ordered key set
+   private List<String> matchingKeys(Condition entry) {
+      int keyColumn = this.table.getKeyColumn();
+      if (entry.op != Operator.EQ || entry.column != keyColumn) {
+         return null;
+      }
+      if (this.table.getColumnType(keyColumn) == FieldType.STRING) {
+         return this.table.find(entry.value) == null 
+            ? new ArrayList<String>() : Collections.singletonList(entry.value);
+      }
+      if (this.table.hasKeyOrdering()) {
+         return this.table.range(entry.value, entry.value);
+      }
+      return null;
+   }
+
+   // keys the condition's index holds for it, or null if it can't be used
+   private List<String> indexedKeys(Condition entry) {
+      if (!this.table.hasIndex(entry.column)) {
+         return null;
+      }
+      if (entry.op == Operator.EQ) {
+         return this.table.lookup(entry.column, entry.value);
+      }
+      if (this.table.getIndexType(entry.column) != IndexType.SORTED) {
+         return null;
+      }
+      switch (entry.op) {
+         case LT:
+         case LE:
+            return this.table.lookupRange(entry.column, null, entry.value);
+         case GT:
+         case GE:
+            return this.table.lookupRange(entry.column, entry.value, null);
+         default:
+            return null;
+      }
+   }
+
+   // the table's instance of each value of an equality on an interned 
+   // STRING column (null for other conditions), or null if one of those 
+   // values isn't in the table at all
+   private String[] internedValues() {
+      String[] interned = new String[this.conditions.size()];
+      for (int i = 0; i < interned.length; i++) {
+         Condition entry = this.conditions.get(i);
+         if (entry.op == Operator.EQ 
+               && this.table.getColumnType(entry.column) == FieldType.STRING
+               && this.table.isInterned(entry.column)) {
+            interned[i] = this.table.internedValue(entry.column, entry.value);
+            if (interned[i] == null) {
+               return null;
+            }
+         }
+      }
+      return interned;
+   }
+
+   private boolean matches(Record data, String[] interned) {
+      for (int i = 0; i < interned.length; i++) {
+         Condition entry = this.conditions.get(i);
+         String field = data.getField(entry.column);
+         if (interned[i] != null) {
+            if (field != interned[i]) {
+               return false;
+            }
+            continue;
+         }
+         FieldType type = this.table.getColumnType(entry.column);
+         if (!entry.op.test(type, field, entry.value)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private Record project(Record data) {
+      Record projected = new Record();
+      for (int idx : this.projection) {
+         projected.add(data.getField(idx));
+      }
+      return projected;
+   }
+
+   private int columnIndex(String column) {
+      for (int i = 0; i < this.table.getColumnSize(); i++) {
+         if (this.table.getColumnName(i).equals(column)) {
+            return i;
+         }
+      }
+      System.out.println(noSuchColumn);
+      throw new IllegalArgumentException();
+   }
+
+   private static class Condition {
+      private final int column;
+      private final Operator op;
+      private final String value;
+
+      Condition(int column, Operator op, String value) {
+         this.column = column;
+         this.op = op;
+         this.value = value;
+      }
+   }
+
+   // --- testing ---
+
+   private static Table testTable() {
+      Table test = new Table(
+         "people",
+         new ColumnID("key", true),
+         new ColumnID("name", false),
+         new ColumnID("age", false, FieldType.INT)
+      );
+      test.add(new Record("p1", "ann", "34"));
+      test.add(new Record("p2", "bob", "9"));
+      test.add(new Record("p3", "cat", "51"));
+      test.add(new Record("p4", "dan", "9"));
+      test.add(new Record("p5", "eve", "27"));
+      return test;
+   }
+
+   private static List<String> keysOf(Iterable<Record> records, int idx) {
+      ArrayList<String> keys = new ArrayList<>();
+      for (Record entry : records) {
+         keys.add(entry.getField(idx));
+      }
+      return keys;
+   }
+
+   private void testFiltering() {
+      Table test = testTable();
+      // numeric comparison, not string comparison
+      List<String> keys = keysOf(new Query(test).where("age", Operator.GT, "10"), 0);
+      assert(keys.equals(List.of("p1", "p3", "p5")));
+      keys = keysOf(new Query(test)
+         .where("age", Operator.LT, "40")
+         .where("name", Operator.NE, "bob"), 0);
+      assert(keys.equals(List.of("p1", "p4", "p5")));
+      // key lookups still check the other conditions
+      assert(new Query(test).where("key", Operator.EQ, "p2").list().size() == 1);
+      assert(new Query(test)
+         .where("key", Operator.EQ, "p2")
+         .where("age", Operator.GT, "10").list().isEmpty());
+      assert(new Query(test).where("key", Operator.EQ, "p9").list().isEmpty());
+      // the whole record comes back unless columns are selected
+      Record first = new Query(test).where("key", Operator.EQ, "p3").list().get(0);
+      assert(first == test.select("p3"));
+      Record projected = new Query(test)
+         .where("key", Operator.EQ, "p3")
+         .select("age", "name").list().get(0);
+      assert(projected.size() == 2);
+      assert(projected.getField(0).equals("51"));
+      assert(projected.getField(1).equals("cat"));
+   }
+
+   private void testOrderingAndLimits() {
+      Table test = testTable();
+      List<String> keys = keysOf(new Query(test).orderBy("age", false).limit(3), 0);
+      assert(keys.equals(List.of("p3", "p1", "p5")));
+      keys = keysOf(new Query(test).orderBy("age", true).select("name"), 0);
+      assert(keys.equals(List.of("bob", "dan", "eve", "ann", "cat")));
+      keys = keysOf(new Query(test).where("age", Operator.EQ, "9").limit(1), 0);
+      assert(keys.equals(List.of("p2")));
+      assert(new Query(test).limit(0).list().isEmpty());
+   }
+
+   private void testIndexedQueries() {
+      Table test = testTable();
+      test.createIndex(1, IndexType.HASH);
+      test.createIndex(2, IndexType.SORTED);
+      List<String> keys = keysOf(new Query(test).where("name", Operator.EQ, "dan"), 0);
+      assert(keys.equals(List.of("p4")));
+      // range indexes are inclusive; the condition still applies afterwards
+      keys = keysOf(new Query(test).where("age", Operator.GT, "27"), 0);
+      assert(keys.equals(List.of("p1", "p3")));
+      keys = keysOf(new Query(test).where("age", Operator.LE, "27").orderBy("key", true), 0);
+      assert(keys.equals(List.of("p2", "p4", "p5")));
+      // hash indexes can't answer ranges, so this scans
+      keys = keysOf(new Query(test).where("name", Operator.GE, "cat"), 0);
+      assert(keys.equals(List.of("p3", "p4", "p5")));
+   }
+
+   private void testTypedAccessPaths() {
+      Table test = new Table(
+         "counts",
+         new ColumnID("id", true, FieldType.INT),
+         new ColumnID("n", false, FieldType.INT)
+      );
+      test.add(new Record("01", "9"));
+      test.add(new Record("2", "09"));
+      test.add(new Record("3", "10"));
+      // every access path finds both spellings of a number
+      assert(new Query(test).where("n", Operator.EQ, "9").list().size() == 2);
+      test.createIndex(1, IndexType.HASH);
+      assert(new Query(test).where("n", Operator.EQ, "9").list().size() == 2);
+      test.dropIndex(1);
+      test.createIndex(1, IndexType.SORTED);
+      assert(new Query(test).where("n", Operator.EQ, "9").list().size() == 2);
+      assert(new Query(test).where("n", Operator.LE, "9").list().size() == 2);
+      assert(new Query(test).where("id", Operator.EQ, "1").list().size() == 1);
+      assert(new Query(test).where("id", Operator.GE, "1")
+         .where("id", Operator.LE, "1").list().size() == 1);
+      test.enableKeyOrdering();
+      assert(keysOf(new Query(test).where("id", Operator.EQ, "1"), 0).equals(List.of("01")));
+      assert(new Query(test).where("id", Operator.EQ, "4").list().isEmpty());
+   }
+
+   private void testInternedQueries() {
+      Table test = testTable();
+      test.add(new Record("p6", "bob", "40"));
+      test.createDictionary(1);
+      // an equal but separate String still finds the shared fields
+      String bob = new String("bob");
+      List<String> keys = keysOf(new Query(test).where("name", Operator.EQ, bob), 0);
+      assert(keys.equals(List.of("p2", "p6")));
+      assert(new Query(test).where("name", Operator.EQ, "zed").list().isEmpty());
+      keys = keysOf(new Query(test)
+         .where("name", Operator.EQ, "bob")
+         .where("age", Operator.GT, "10"), 0);
+      assert(keys.equals(List.of("p6")));
+      // updates share the dictionary's instance too
+      test.update("p1", 1, new String("bob"));
+      assert(new Query(test).where("name", Operator.EQ, "bob").list().size() == 3);
+      test.setStorageMode(StorageMode.COLUMNAR);
+      assert(new Query(test).where("name", Operator.EQ, bob).list().size() == 3);
+      assert(new Query(test).where("key", Operator.EQ, "p4").list().size() == 1);
+   }
+
+   private void testInvalidQueries() {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      Table test = testTable();
+      boolean caught = false;
+      try { new Query(test).where("height", Operator.EQ, "1"); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      try { new Query(test).limit(-1); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void runTests() {
+      testFiltering();
+      testOrderingAndLimits();
+      testIndexedQueries();
+      testTypedAccessPaths();
+      testInternedQueries();
+      testInvalidQueries();
+   }
+
+   public static void main(String[] args) {
+      Query program = new Query(new Table());
+      program.runTests();
+   }
+}
@@ -3,10 +3,13 @@
  * field data is accessed by getField and setField methods (validated using 
  * a helper function to check if the field exists). The record object is 
  * initialized either without arguments or by passing in strings using varargs.
- * Add and clear methods are also implemented for manual data creation. 
+ * Add and clear methods are also implemented for manual data creation. A 
+ * record can also be a view over a list owned by some other storage (such as
+ * a row of a ColumnStore), in which case field access goes to that storage.
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.io.*;
 
@@ -18,10 +21,12 @@ class Record {
    }
 
    Record(String... data) {
-      this.row = new ArrayList<>();
-      for (int i = 0; i < data.length; i++) {
-         this.row.add(data[i]);
-      }
+      this.row = new ArrayList<>(Arrays.asList(data));
+   }
+
+   // wraps row without copying it; used for views over other storage
+   Record(List<String> row) {
+      this.row = row;
    }
 
    void add(String data) {
@@ -46,6 +51,11 @@ class Record {
       this.row.set(idx, data);
    }
 
+   // the list holding this record's fields
+   List<String> getRow() {
+      return this.row;
+   }
+
    // --- helper methods ---
 
    private void checkRecordExists(int idx) {
@@ -66,6 +76,12 @@ class Record {
       test.clear();
       Record testArr = new Record("test1", "test2");
       assert(testArr.size() == 2);
+      List<String> backing = new ArrayList<>();
+      backing.add("test1");
+      Record testView = new Record(backing);
+      backing.add("test2");
+      assert(testView.size() == 2);
+      assert(testView.getRow() == backing);
    }
 
    // tests getField(int) setField(int, String)
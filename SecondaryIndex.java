@@ -0,0 +1,229 @@
+/* This class indexes one non-key column of a table, mapping each field value
+ * to the keys of the records holding that value. HASH indexes answer equality
+ * lookups; SORTED indexes keep values ordered by the column's FieldType and 
+ * also answer range lookups. Values that are equal by the column's type but
+ * spelled differently (such as "9" and "09" in an INT column) match the same
+ * lookups in both kinds, as they do in a scan: HASH indexes file them under
+ * their canonical spelling, and SORTED indexes keep them apart in string 
+ * order but widen lookups to take in all of them. Keys for a value are 
+ * returned in the order they were indexed. The index itself does not watch records: it is the 
+ * responsibility of the Table class to insert and remove entries as records
+ * are added, updated and deleted.
+ */
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.io.*;
+
+class SecondaryIndex {
+   private int column;
+   private IndexType type;
+   private FieldType fieldType;
+   private Map<String,Set<String>> entries;
+
+   SecondaryIndex(int column, IndexType type, FieldType fieldType) {
+      this.column = column;
+      this.type = type;
+      this.fieldType = fieldType;
+      if (type == IndexType.SORTED) {
+         this.entries = new TreeMap<String,Set<String>>(
+            fieldType.comparator().thenComparing(Comparator.naturalOrder()));
+      } else {
+         this.entries = new HashMap<String,Set<String>>();
+      }
+   }
+
+   int getColumn() {
+      return this.column;
+   }
+
+   IndexType getType() {
+      return this.type;
+   }
+
+   void insert(String value, String recordKey) {
+      value = entryFor(value);
+      Set<String> keys = this.entries.get(value);
+      if (keys == null) {
+         keys = new LinkedHashSet<String>();
+         this.entries.put(value, keys);
+      }
+      keys.add(recordKey);
+   }
+
+   void remove(String value, String recordKey) {
+      value = entryFor(value);
+      Set<String> keys = this.entries.get(value);
+      if (keys != null) {
+         keys.remove(recordKey);
+         if (keys.isEmpty()) {
+            this.entries.remove(value);
+         }
+      }
+   }
+
+   // keys of records whose field equals value
+   List<String> lookup(String value) {
+      if (this.type == IndexType.SORTED) {
+         return range(value, value);
+      }
+      Set<String> keys = this.entries.get(entryFor(value));
+      if (keys == null) {
+         return new ArrayList<String>();
+      }
+      return new ArrayList<String>(keys);
+   }
+
+   // keys of records whose field lies between from and to (both inclusive),
+   // in value order; a null bound leaves that end of the range open
+   List<String> range(String from, String to) {
+      checkIfSorted();
+      NavigableMap<String,Set<String>> sorted = (NavigableMap<String,Set<String>>) this.entries;
+      from = from == null ? null : lowestEqual(sorted, from);
+      to = to == null ? null : highestEqual(sorted, to);
+      if (from != null && to != null && sorted.comparator().compare(from, to) > 0) {
+         return new ArrayList<String>();
+      } else if (from != null && to != null) {
+         sorted = sorted.subMap(from, true, to, true);
+      } else if (from != null) {
+         sorted = sorted.tailMap(from, true);
+      } else if (to != null) {
+         sorted = sorted.headMap(to, true);
+      }
+      List<String> keys = new ArrayList<String>();
+      for (Set<String> entry : sorted.values()) {
+         keys.addAll(entry);
+      }
+      return keys;
+   }
+
+   // number of distinct entries in the index
+   int size() {
+      return this.entries.size();
+   }
+
+   // --- helper methods ---
+
+   // the value HASH entries are filed under
+   private String entryFor(String value) {
+      return this.type == IndexType.HASH ? this.fieldType.canonical(value) : value;
+   }
+
+   // the lowest and highest values in sorted equal to bound by the column's
+   // type, or bound itself, so that ranges take in every spelling of a value
+   private String lowestEqual(NavigableMap<String,Set<String>> sorted, String bound) {
+      String lower = sorted.lowerKey(bound);
+      while (lower != null && this.fieldType.compare(lower, bound) == 0) {
+         bound = lower;
+         lower = sorted.lowerKey(lower);
+      }
+      return bound;
+   }
+
+   private String highestEqual(NavigableMap<String,Set<String>> sorted, String bound) {
+      String higher = sorted.higherKey(bound);
+      while (higher != null && this.fieldType.compare(higher, bound) == 0) {
+         bound = higher;
+         higher = sorted.higherKey(higher);
+      }
+      return bound;
+   }
+
+   private void checkIfSorted() {
+      if (this.type != IndexType.SORTED) {
+         System.out.println("Range lookups need a sorted index.");
+         throw new IllegalArgumentException();
+      }
+   }
+
+   // --- testing ---
+
+   private void testHashIndex() {
+      SecondaryIndex test = new SecondaryIndex(1, IndexType.HASH, FieldType.STRING);
+      assert(test.getColumn() == 1);
+      assert(test.getType() == IndexType.HASH);
+      test.insert("x", "key1");
+      test.insert("y", "key2");
+      test.insert("x", "key3");
+      List<String> keys = test.lookup("x");
+      assert(keys.size() == 2);
+      assert(keys.get(0).equals("key1"));
+      assert(keys.get(1).equals("key3"));
+      assert(test.lookup("z").isEmpty());
+      test.remove("x", "key1");
+      assert(test.lookup("x").size() == 1);
+      test.remove("x", "key3");
+      assert(test.lookup("x").isEmpty());
+      assert(test.size() == 1);
+   }
+
+   private void testSortedIndex() {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      SecondaryIndex test = new SecondaryIndex(2, IndexType.SORTED, FieldType.INT);
+      test.insert("10", "a");
+      test.insert("9", "b");
+      test.insert("100", "c");
+      test.insert("9", "d");
+      // ordered numerically, not as strings
+      List<String> keys = test.range("9", "10");
+      assert(keys.size() == 3);
+      assert(keys.get(0).equals("b"));
+      assert(keys.get(1).equals("d"));
+      assert(keys.get(2).equals("a"));
+      assert(test.range("11", null).get(0).equals("c"));
+      assert(test.range(null, "9").size() == 2);
+      assert(test.range(null, null).size() == 4);
+      assert(test.lookup("100").get(0).equals("c"));
+      // other spellings of a number stay apart but match the same lookups
+      test.insert("09", "e");
+      test.insert(" 9", "f");
+      assert(test.size() == 5);
+      assert(test.lookup("9").size() == 4);
+      assert(test.lookup("009").size() == 4);
+      assert(test.range("9", "9").size() == 4);
+      assert(test.range("10", null).size() == 2);
+      assert(test.range(null, "09").size() == 4);
+      assert(test.range("10", "9").isEmpty());
+      test.remove("09", "e");
+      assert(test.lookup("9").size() == 3);
+      SecondaryIndex hashed = new SecondaryIndex(2, IndexType.HASH, FieldType.INT);
+      hashed.insert("9", "b");
+      hashed.insert("09", "e");
+      hashed.insert("x", "g");
+      assert(hashed.lookup("9").equals(List.of("b", "e")));
+      assert(hashed.lookup("+9").size() == 2);
+      assert(hashed.lookup("x").equals(List.of("g")));
+      hashed.remove("09", "e");
+      assert(hashed.lookup("9").equals(List.of("b")));
+      boolean caught = false;
+      SecondaryIndex hash = new SecondaryIndex(2, IndexType.HASH, FieldType.INT);
+      try { hash.range("1", "2"); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void runTests() {
+      testHashIndex();
+      testSortedIndex();
+   }
+
+   public static void main(String[] args) {
+      SecondaryIndex program = new SecondaryIndex(0, IndexType.HASH, FieldType.STRING);
+      program.runTests();
+   }
+}
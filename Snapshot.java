@@ -0,0 +1,170 @@
+/* This class is a handle on a consistent, read-only view of every table as it
+ * was when the handle was opened. Each change to a table is stamped with a 
+ * number from a clock shared by all tables, and while any snapshot is open
+ * tables keep the versions of records that changes replace (see Table.java),
+ * so reads through a snapshot see exactly the changes stamped before it, no 
+ * matter what writers do meanwhile. Snapshots should be closed when done with;
+ * a background thread regularly discards versions older than every open 
+ * snapshot, and all of them once no snapshot is open. Snapshots taken from a
+ * Database also remember which tables the database held at the time.
+ */
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.io.*;
+
+class Snapshot implements AutoCloseable {
+   static final long COLLECT_INTERVAL_MS = 1000;
+
+   private static final AtomicLong clock = new AtomicLong();
+   private static final AtomicInteger openCount = new AtomicInteger();
+   private static final ConcurrentSkipListMap<Long,AtomicInteger> open = 
+      new ConcurrentSkipListMap<Long,AtomicInteger>();
+   private static final Set<Table> versionedTables = 
+      Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<Table,Boolean>()));
+   private static final Object registry = new Object();
+   private static ScheduledExecutorService collector;
+
+   private long stamp;
+   private boolean closed = false;
+   private Map<String,Table> tables;
+
+   Snapshot() {
+      // counted as open before reading the clock, so a change stamped after 
+      // this snapshot always sees it open and keeps the version it replaces
+      synchronized (registry) {
+         openCount.incrementAndGet();
+         this.stamp = clock.get();
+         open.computeIfAbsent(this.stamp, k -> new AtomicInteger()).incrementAndGet();
+      }
+   }
+
+   Snapshot(Map<String,Table> tables) {
+      this();
+      this.tables = new LinkedHashMap<String,Table>(tables);
+   }
+
+   // changes stamped at or before this are visible through the snapshot
+   long getStamp() {
+      return this.stamp;
+   }
+
+   // the tables of the database the snapshot was taken from, by name, or null
+   // for a snapshot taken from a table
+   Map<String,Table> getTables() {
+      return this.tables;
+   }
+
+   boolean isClosed() {
+      return this.closed;
+   }
+
+   @Override
+   public synchronized void close() {
+      if (!this.closed) {
+         this.closed = true;
+         open.computeIfPresent(this.stamp, (k, count) -> 
+            count.decrementAndGet() == 0 ? null : count);
+         openCount.decrementAndGet();
+      }
+   }
+
+   // --- clock and bookkeeping used by tables ---
+
+   // stamp for a new change
+   static long nextStamp() {
+      return clock.incrementAndGet();
+   }
+
+   // runs changes so that each snapshot sees all of them or none; changes 
+   // should be short as no snapshot can open meanwhile
+   static <T> T atomically(Supplier<T> changes) {
+      synchronized (registry) {
+         return changes.get();
+      }
+   }
+
+   static boolean anyOpen() {
+      return openCount.get() > 0;
+   }
+
+   // stamp of the oldest open snapshot, or of the latest change if there are
+   // none; versions replaced at or before it can't be seen by any snapshot
+   // that is open now or opens later
+   static long oldestOpen() {
+      synchronized (registry) {
+         Map.Entry<Long,AtomicInteger> oldest = open.firstEntry();
+         return oldest == null ? clock.get() : Math.min(oldest.getKey(), clock.get());
+      }
+   }
+
+   // remembers a table holding old versions so the collector visits it
+   static void track(Table table) {
+      versionedTables.add(table);
+      startCollector();
+   }
+
+   // discards versions no open snapshot can see, in every tracked table
+   static void collectVersions() {
+      Table[] tables;
+      synchronized (versionedTables) {
+         tables = versionedTables.toArray(new Table[0]);
+      }
+      long oldest = oldestOpen();
+      for (Table table : tables) {
+         table.collectVersions(oldest);
+      }
+   }
+
+   private static synchronized void startCollector() {
+      if (collector == null) {
+         collector = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "version-collector");
+            thread.setDaemon(true);
+            return thread;
+         });
+         collector.scheduleWithFixedDelay(Snapshot::collectVersions, 
+            COLLECT_INTERVAL_MS, COLLECT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+      }
+   }
+
+   // --- testing ---
+
+   private void testStamps() {
+      Snapshot first = new Snapshot();
+      assert(anyOpen());
+      long change = nextStamp();
+      assert(change > first.getStamp());
+      Snapshot second = new Snapshot();
+      assert(second.getStamp() >= change);
+      assert(oldestOpen() <= first.getStamp());
+      first.close();
+      first.close();
+      assert(first.isClosed());
+      assert(oldestOpen() == second.getStamp());
+      second.close();
+      assert(second.getTables() == null);
+   }
+
+   private void runTests() {
+      testStamps();
+   }
+
+   public static void main(String[] args) {
+      Snapshot program = new Snapshot();
+      program.close();
+      program.runTests();
+      assert(!anyOpen());
+      assert(oldestOpen() == nextStamp() - 1);
+   }
+}
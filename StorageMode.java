@@ -0,0 +1,3 @@
+public enum StorageMode {
+    ROW, COLUMNAR, COMPACT, OFF_HEAP
+}
@@ -0,0 +1,95 @@
+/* This class dictionary-encodes strings: each distinct value is stored once
+ * and identified by a small integer code handed out in order of first use.
+ * Codes are never reused or removed, so a code stays valid for as long as the
+ * dictionary exists. It is used by ColumnStore to hold string columns as 
+ * arrays of codes rather than arrays of String references.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.io.*;
+
+class StringDictionary {
+   private HashMap<String,Integer> codes;
+   private List<String> values;
+
+   StringDictionary() {
+      this.codes = new HashMap<String,Integer>();
+      this.values = new ArrayList<String>();
+   }
+
+   // returns the code for value, adding it to the dictionary if needed
+   int encode(String value) {
+      Integer code = this.codes.get(value);
+      if (code == null) {
+         code = this.values.size();
+         this.codes.put(value, code);
+         this.values.add(value);
+      }
+      return code;
+   }
+
+   // returns the code for value, or -1 if value is not in the dictionary
+   int lookup(String value) {
+      Integer code = this.codes.get(value);
+      if (code == null) {
+         return -1;
+      }
+      return code;
+   }
+
+   String decode(int code) {
+      if (code >= this.values.size() || code < 0) {
+         System.out.println("No such code in dictionary.");
+         throw new IndexOutOfBoundsException();
+      }
+      return this.values.get(code);
+   }
+
+   int size() {
+      return this.values.size();
+   }
+
+   // --- testing ---
+
+   private void testEncoding() {
+      StringDictionary test = new StringDictionary();
+      assert(test.encode("a") == 0);
+      assert(test.encode("b") == 1);
+      assert(test.encode("a") == 0);
+      assert(test.size() == 2);
+      assert(test.lookup("b") == 1);
+      assert(test.lookup("c") == -1);
+      assert(test.size() == 2);
+      assert(test.decode(0).equals("a"));
+      assert(test.decode(1).equals("b"));
+   }
+
+   private void testBadCodes() {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      StringDictionary test = new StringDictionary();
+      boolean caught = false;
+      try { test.decode(0); }
+      catch (IndexOutOfBoundsException e) { caught = true; }
+      assert(caught == true);
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void runTests() {
+      testEncoding();
+      testBadCodes();
+   }
+
+   public static void main(String[] args) {
+      StringDictionary program = new StringDictionary();
+      program.runTests();
+   }
+}
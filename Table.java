@@ -9,12 +9,63 @@
  * values to the Table. Tables can be constructed with a name and column data, 
  * but in their absense, the table is named "untitled" and columns are empty.
  * Records can be updated using this class. In the case that key values are
- * updated, validation for unique record keys occur in this class.
+ * updated, validation for unique record keys occur in this class. By default
+ * records are stored as they are given (StorageMode.ROW); in COLUMNAR mode
+ * their fields are copied into a ColumnStore typed by each column's FieldType
+ * and the table hands out Record views over the stored rows instead; in 
+ * COMPACT mode each record is copied into a single byte[] (see CompactRow.java)
+ * which is decoded as fields are read; OFF_HEAP mode stores the same bytes
+ * outside the Java heap (see OffHeapStore.java), which is released as soon 
+ * as the table is freed (when it is deleted from a Database) rather than
+ * left to the garbage collector.
+ * Columns with few distinct values can be dictionary encoded: a ROW table
+ * then keeps one String per distinct value of the column (see 
+ * StringDictionary.java) and every record holding that value shares it, so
+ * an equality test on the column is a reference comparison (as it is for
+ * STRING columns of a ColumnStore, whose rows hold codes). Loading records
+ * into an empty table with addAll encodes the columns that look like this,
+ * judged from records sampled evenly across the load. Values that records 
+ * stop holding stay in a dictionary until it grows past DICTIONARY_LIMIT,
+ * when it is rebuilt from the current fields, or dropped if they hold more
+ * than MAX_DICTIONARY_SIZE distinct values.
+ * Secondary indexes can be created on any column to find records by field
+ * value without a scan; they are kept current by add, update and delete, so
+ * indexed fields should only be changed through this class. Record keys can
+ * also be kept in order (by the key column's FieldType) for range, prefix and
+ * first/last scans over the keys without sorting the whole table. When a
+ * WriteAheadLog is attached, every add, update and delete is appended to it.
+ * Tables are safe to share between threads: reads share a read-write lock,
+ * adds and deletes take it exclusively, and updates to different records 
+ * only contend on one of a set of striped locks picked by record key. While
+ * any Snapshot is open, each change keeps the version of the record it 
+ * replaces, stamped with the change, and updates copy records rather than
+ * changing them in place; reads through a snapshot then see the table as it
+ * was when the snapshot was opened. Old versions are discarded by Snapshot's
+ * background collector once no open snapshot can see them.
  */
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.LinkedHashMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.io.*;
 
 class Table {
@@ -22,11 +73,37 @@ class Table {
    private List<ColumnID> columns;
    private LinkedHashMap<String,Record> records;
    private int keyColumn = -1;
+   private StorageMode mode = StorageMode.ROW;
+   private ColumnStore store;
+   private OffHeapStore offHeap;
+   private volatile long freedAt = 0;
+   private volatile long lastChange = 0;
+   private HashMap<Integer,SecondaryIndex> indexes = new HashMap<>();
+   private HashMap<Integer,StringDictionary> dictionaries = new HashMap<>();
+   private TreeSet<String> orderedKeys;
+   private WriteAheadLog log;
+   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+   private final ReentrantLock[] stripes = newStripes();
+   private final ConcurrentHashMap<String,Version> versions = new ConcurrentHashMap<>();
+
+   private static final int STRIPES = 64;
+
+   // addAll samples this many records of a load to spot columns to encode,
+   // which must have at most MAX_DICTIONARY_SIZE distinct values among them
+   static final int DICTIONARY_SAMPLE = 10000;
+   static final int MAX_DICTIONARY_SIZE = 256;
+   static final int DICTIONARY_LIMIT = 4 * MAX_DICTIONARY_SIZE;
+   static final int SIZE_SAMPLE = 1000;
+   static final int SNAPSHOT_CHUNK = 1024;
 
    private static final String noSuchRecord = "No such record exists in table.";
    private static final String noSuchColumn = "No such column exists in table.";
    private static final String duplicateKey = "Duplicate key exists in table.";
    private static final String noKeySpecified = "No key specified in table.";
+   private static final String noSuchIndex = "No index exists on column.";
+   private static final String noSuchDictionary = "No dictionary exists on column.";
+   private static final String noKeyOrdering = "Record keys are not ordered.";
+   private static final String closedSnapshot = "Snapshot is closed.";
 
    Table() {
       this.name = "untitled";
@@ -48,9 +125,69 @@ class Table {
    }
 
    void setColumnIDs(ColumnID... columns) {
-      checkIfUniqueKeyColumnExists(columns);
-      for (ColumnID entry : columns) {
-         this.columns.add(entry);
+      this.lock.writeLock().lock();
+      try {
+         checkIfUniqueKeyColumnExists(columns);
+         for (ColumnID entry : columns) {
+            this.columns.add(entry);
+         }
+         if (this.mode == StorageMode.COLUMNAR) {
+            rebuildStorage(StorageMode.COLUMNAR);
+         }
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   StorageMode getStorageMode() {
+      return this.mode;
+   }
+
+   // moves any existing records into the storage used by the given mode
+   void setStorageMode(StorageMode mode) {
+      this.lock.writeLock().lock();
+      try {
+         if (mode != this.mode) {
+            rebuildStorage(mode);
+         }
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   FieldType getColumnType(int idx) {
+      checkIfColumnExists(idx);
+      return this.columns.get(idx).getType();
+   }
+
+   // the column store backing a COLUMNAR table, otherwise null
+   ColumnStore getColumnStore() {
+      return this.store;
+   }
+
+   // the store backing an OFF_HEAP table, otherwise null
+   OffHeapStore getOffHeapStore() {
+      return this.offHeap;
+   }
+
+   /* Releases the table's off-heap storage, once every snapshot open now is
+    * closed (at once if there are none), as they may still read it. The
+    * table's records can't be read afterwards, so it should no longer be
+    * used; tables in other storage modes are left to the garbage collector.
+    */
+   void free() {
+      this.lock.writeLock().lock();
+      try {
+         if (this.freedAt == 0) {
+            this.freedAt = Snapshot.nextStamp();
+         }
+         if (Snapshot.oldestOpen() >= this.freedAt) {
+            freeStorage();
+         } else {
+            Snapshot.track(this);
+         }
+      } finally {
+         this.lock.writeLock().unlock();
       }
    }
 
@@ -59,7 +196,49 @@ class Table {
    }
 
    int getRecordSize() {
-      return this.records.size();
+      this.lock.readLock().lock();
+      try {
+         return this.records.size();
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // stamp of the latest add, update or delete (see Snapshot.java), or 0
+   long getLastChange() {
+      return this.lastChange;
+   }
+
+   // rough heap size of the records, from a sample of at most 
+   // SIZE_SAMPLE of them: object headers plus two bytes per char, except
+   // that OFF_HEAP rows only cost their views
+   long estimateBytes() {
+      this.lock.readLock().lock();
+      try {
+         int size = this.records.size();
+         if (size == 0) {
+            return 0;
+         }
+         if (this.mode == StorageMode.OFF_HEAP) {
+            return 96L * size;
+         }
+         long sampled = 0;
+         int count = 0;
+         for (Record entry : this.records.values()) {
+            if (count++ == SIZE_SAMPLE) {
+               break;
+            }
+            sampled += 96;
+            for (int i = 0; i < entry.size(); i++) {
+               String field = entry.getField(i);
+               sampled += field == null ? 8 : 48 + 2L * field.length();
+            }
+         }
+         count = Math.min(count, SIZE_SAMPLE);
+         return sampled / count * size;
+      } finally {
+         this.lock.readLock().unlock();
+      }
    }
 
    String getColumnName(int idx) {
@@ -76,20 +255,186 @@ class Table {
    }
 
    Record select(String recordKey) {
-      checkIfRecordExists(recordKey);
-      return this.records.get(recordKey);
+      this.lock.readLock().lock();
+      try {
+         checkIfRecordExists(recordKey);
+         return this.records.get(recordKey);
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // the record, or null if there is none
+   Record find(String recordKey) {
+      this.lock.readLock().lock();
+      try {
+         return this.records.get(recordKey);
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // the records matching filter, in table order, stopping after limit; a 
+   // single pass over the records rather than a lookup per key
+   List<Record> scan(Predicate<Record> filter, int limit) {
+      this.lock.readLock().lock();
+      try {
+         ArrayList<Record> matches = new ArrayList<>();
+         for (Record entry : this.records.values()) {
+            if (matches.size() >= limit) {
+               break;
+            }
+            if (filter.test(entry)) {
+               matches.add(entry);
+            }
+         }
+         return matches;
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // a splittable pass over the records that existed when snapshot was 
+   // opened, in getKeyList order, reading each record as the pass reaches
+   // it; it splits evenly, for parallel scans (see Aggregation.java)
+   Spliterator<Record> spliterator(Snapshot snapshot) {
+      checkIfSnapshotOpen(snapshot);
+      SnapshotIterator source = new SnapshotIterator(snapshot.getStamp());
+      return new SnapshotSpliterator(source, 0, source.total());
+   }
+
+   // adds many records at once, all or none: every record is checked first
+   // (sizes, types for COLUMNAR storage, and keys unique among themselves 
+   // and against the table) in one pass, storage is grown once to fit them
+   // all, and the write lock is taken once for the whole load; loading an
+   // empty table also encodes the low-cardinality columns of data
+   void addAll(List<Record> data) {
+      this.lock.writeLock().lock();
+      try {
+         HashSet<String> newKeys = new HashSet<>(capacityFor(data.size()));
+         for (Record entry : data) {
+            checkIfRecordsMatchColumns(entry);
+            if (this.store != null) {
+               this.store.validate(entry);
+            }
+            String recordKey = entry.getField(this.keyColumn);
+            if (!newKeys.add(recordKey)) {
+               System.out.println(duplicateKey);
+               throw new IllegalArgumentException();
+            }
+            checkIfDuplicateKey(recordKey);
+         }
+         if (this.records.isEmpty()) {
+            detectDictionaries(data);
+         }
+         ensureCapacity(this.records.size() + data.size());
+         for (Record entry : data) {
+            String recordKey = entry.getField(this.keyColumn);
+            Record stored = storedRecord(entry);
+            recordChange(recordKey, null);
+            this.records.put(recordKey, stored);
+            for (SecondaryIndex index : this.indexes.values()) {
+               index.insert(stored.getField(index.getColumn()), recordKey);
+            }
+            if (this.log != null) {
+               this.log.logAdd(this.name, stored);
+            }
+         }
+         if (this.orderedKeys != null) {
+            this.orderedKeys.addAll(newKeys);
+         }
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   // grows the table's storage to hold expectedSize records without rehashing
+   void ensureCapacity(int expectedSize) {
+      this.lock.writeLock().lock();
+      try {
+         // copying the map costs about as much as one rehash, so only do it
+         // when the table would otherwise rehash more than once
+         if (expectedSize > this.records.size() * 2) {
+            LinkedHashMap<String,Record> grown = 
+               new LinkedHashMap<String,Record>(capacityFor(expectedSize));
+            grown.putAll(this.records);
+            this.records = grown;
+         }
+         if (this.store != null) {
+            this.store.ensureCapacity(expectedSize);
+         }
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   // passes every record to consumer in batches of column vectors, reusing 
+   // batch; COLUMNAR tables are read in storage order, straight from their
+   // ColumnStore
+   void scanBatches(ColumnBatch batch, Consumer<ColumnBatch> consumer) {
+      this.lock.readLock().lock();
+      try {
+         if (this.store != null) {
+            int total = this.store.size();
+            for (int from = 0; from < total; from += batch.capacity()) {
+               batch.fill(this.store, from, Math.min(batch.capacity(), total - from));
+               consumer.accept(batch);
+            }
+            return;
+         }
+         batch.clear();
+         for (Record entry : this.records.values()) {
+            batch.append(entry);
+            if (batch.isFull()) {
+               consumer.accept(batch);
+               batch.clear();
+            }
+         }
+         if (batch.size() > 0) {
+            consumer.accept(batch);
+         }
+      } finally {
+         this.lock.readLock().unlock();
+      }
    }
 
    void add(Record data) {
-      String recordKey = data.getField(this.keyColumn);
-      checkIfRecordsMatchColumns(data);
-      checkIfDuplicateKey(recordKey);
-      this.records.put(recordKey, data);
+      this.lock.writeLock().lock();
+      try {
+         String recordKey = data.getField(this.keyColumn);
+         checkIfRecordsMatchColumns(data);
+         checkIfDuplicateKey(recordKey);
+         data = storedRecord(data);
+         recordChange(recordKey, null);
+         this.records.put(recordKey, data);
+         if (this.orderedKeys != null) {
+            this.orderedKeys.add(recordKey);
+         }
+         for (SecondaryIndex index : this.indexes.values()) {
+            index.insert(data.getField(index.getColumn()), recordKey);
+         }
+         if (this.log != null) {
+            this.log.logAdd(this.name, data);
+         }
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   // read-only view of the records in insertion order, without copying; it
+   // must not be iterated while other threads add or delete records
+   Collection<Record> getRecords() {
+      return Collections.unmodifiableCollection(this.records.values());
    }
 
    List<String> getKeyList() {
-      ArrayList<String> recordKeys = new ArrayList<>(records.keySet());
-      return recordKeys;
+      this.lock.readLock().lock();
+      try {
+         ArrayList<String> recordKeys = new ArrayList<>(records.keySet());
+         return recordKeys;
+      } finally {
+         this.lock.readLock().unlock();
+      }
    }
 
    int getKeyColumn() {
@@ -97,22 +442,903 @@ class Table {
       return keyColumn;
    }
 
+   /* Updates to different records run side by side under the shared lock,
+    * each holding the stripe lock of its record key. Updates which also
+    * change structures shared between records (the key column, an indexed
+    * column, or a column store's bitsets and dictionaries) take the 
+    * exclusive lock instead.
+    */
    void update(String recordKey, int idx, String input) {
-      checkIfRecordExists(recordKey);
       checkIfColumnExists(idx);
-      if (idx == keyColumn && recordKey != input) {
-         checkIfDuplicateKey(input);
+      boolean exclusive = needsExclusiveUpdate(idx);
+      Lock held = exclusive ? this.lock.writeLock() : this.lock.readLock();
+      held.lock();
+      ReentrantLock stripe = exclusive ? null : stripeFor(recordKey);
+      if (stripe != null) {
+         stripe.lock();
+      }
+      try {
+         checkIfRecordExists(recordKey);
+         if (idx == keyColumn && !recordKey.equals(input)) {
+            checkIfDuplicateKey(input);
+         }
+         Record data = this.records.get(recordKey);
+         String previous = data.getField(idx);
+         if (this.mode == StorageMode.ROW) {
+            input = internField(idx, input);
+         }
+         long stamp = Snapshot.nextStamp();
+         this.lastChange = stamp;
+         if (Snapshot.anyOpen()) {
+            // leave the old version untouched for snapshots to read; stored
+            // rows keep a heap copy, so the store can reuse their space
+            Record old = data;
+            if (this.store != null || this.offHeap != null) {
+               old = copyRecord(data);
+            } else {
+               data = copyRecord(data);
+            }
+            data.setField(idx, input);
+            if (this.mode == StorageMode.COMPACT) {
+               data = storedRecord(data);
+            }
+            this.records.put(recordKey, data);
+            keepVersion(recordKey, old, stamp);
+         } else {
+            data.setField(idx, input);
+         }
+         SecondaryIndex index = this.indexes.get(idx);
+         if (index != null) {
+            index.remove(previous, recordKey);
+            index.insert(data.getField(idx), recordKey);
+         }
+         if (this.log != null) {
+            this.log.logUpdate(this.name, recordKey, idx, input);
+         }
+      } finally {
+         if (stripe != null) {
+            stripe.unlock();
+         }
+         held.unlock();
       }
-      select(recordKey).setField(idx, input);
    }
 
    void delete(String recordKey) {
-      checkIfRecordExists(recordKey);
-      this.records.remove(recordKey);
+      this.lock.writeLock().lock();
+      try {
+         checkIfRecordExists(recordKey);
+         Record removed = this.records.get(recordKey);
+         recordChange(recordKey, this.store != null ? copyRecord(removed) : removed);
+         this.records.remove(recordKey);
+         if (this.orderedKeys != null) {
+            this.orderedKeys.remove(recordKey);
+         }
+         for (SecondaryIndex index : this.indexes.values()) {
+            index.remove(removed.getField(index.getColumn()), recordKey);
+         }
+         if (this.mode == StorageMode.COLUMNAR) {
+            this.store.remove(this.store.rowOf(removed));
+         } else if (this.mode == StorageMode.OFF_HEAP) {
+            this.offHeap.remove(removed);
+         }
+         if (this.log != null) {
+            this.log.logDelete(this.name, recordKey);
+         }
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   // --- snapshot reads ---
+
+   Snapshot snapshot() {
+      return new Snapshot();
+   }
+
+   // the record as it was when snapshot was opened
+   Record select(String recordKey, Snapshot snapshot) {
+      checkIfSnapshotOpen(snapshot);
+      this.lock.readLock().lock();
+      ReentrantLock stripe = stripeFor(recordKey);
+      stripe.lock();
+      try {
+         Record visible = visibleRecord(recordKey, snapshot.getStamp(), true);
+         if (visible == null) {
+            System.out.println(noSuchRecord);
+            throw new IllegalArgumentException();
+         }
+         return visible;
+      } finally {
+         stripe.unlock();
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // whether the record existed when snapshot was opened
+   boolean contains(String recordKey, Snapshot snapshot) {
+      checkIfSnapshotOpen(snapshot);
+      this.lock.readLock().lock();
+      ReentrantLock stripe = stripeFor(recordKey);
+      stripe.lock();
+      try {
+         return visibleRecord(recordKey, snapshot.getStamp(), false) != null;
+      } finally {
+         stripe.unlock();
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // whether the record was added, changed or deleted after stamp; only 
+   // reliable while a snapshot at or before stamp is open
+   boolean changedSince(String recordKey, long stamp) {
+      Version version = this.versions.get(recordKey);
+      return version != null && version.end > stamp;
+   }
+
+   // keys of the records that existed when snapshot was opened; keys deleted 
+   // since then come after the others
+   List<String> getKeyList(Snapshot snapshot) {
+      checkIfSnapshotOpen(snapshot);
+      this.lock.readLock().lock();
+      try {
+         long stamp = snapshot.getStamp();
+         ArrayList<String> recordKeys = new ArrayList<>();
+         for (String entry : this.records.keySet()) {
+            if (visibleRecord(entry, stamp, false) != null) {
+               recordKeys.add(entry);
+            }
+         }
+         for (String entry : this.versions.keySet()) {
+            if (!this.records.containsKey(entry) 
+                  && visibleRecord(entry, stamp, false) != null) {
+               recordKeys.add(entry);
+            }
+         }
+         return recordKeys;
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // the records that existed when snapshot was opened, in getKeyList order;
+   // each iteration walks the table's entries once, a chunk at a time
+   Iterable<Record> getRecords(Snapshot snapshot) {
+      checkIfSnapshotOpen(snapshot);
+      return () -> new SnapshotIterator(snapshot.getStamp());
+   }
+
+   // drops versions replaced at or before oldest, and frees the table's
+   // storage if that was waiting on older snapshots
+   void collectVersions(long oldest) {
+      if (this.freedAt != 0 && oldest >= this.freedAt) {
+         whileQuiet(() -> {
+            freeStorage();
+            return null;
+         });
+      }
+      for (String entry : this.versions.keySet()) {
+         this.versions.computeIfPresent(entry, (key, version) -> {
+            if (version.end <= oldest) {
+               return null;
+            }
+            Version newer = version;
+            while (newer.older != null && newer.older.end > oldest) {
+               newer = newer.older;
+            }
+            newer.older = null;
+            return version;
+         });
+      }
+   }
+
+   // drops every kept version, so that snapshots see the records as they are
+   // now; for tables no snapshot has been able to see yet, such as ones just
+   // read from a file
+   void forgetVersions() {
+      this.lock.writeLock().lock();
+      try {
+         this.versions.clear();
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   // runs task once changes in progress have finished, holding off new ones
+   // until it returns
+   <T> T whileQuiet(Supplier<T> task) {
+      this.lock.writeLock().lock();
+      try {
+         return task.get();
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   // number of records with old versions kept
+   int getVersionedSize() {
+      return this.versions.size();
+   }
+
+   WriteAheadLog getLog() {
+      return this.log;
+   }
+
+   // log that changes to this table are appended to, or null for none
+   void setLog(WriteAheadLog log) {
+      this.lock.writeLock().lock();
+      try {
+         this.log = log;
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   // builds an index over the current records of column idx
+   void createIndex(int idx, IndexType type) {
+      this.lock.writeLock().lock();
+      try {
+         buildIndex(idx, type);
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   void dropIndex(int idx) {
+      this.lock.writeLock().lock();
+      try {
+         checkIfIndexExists(idx);
+         this.indexes.remove(idx);
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   boolean hasIndex(int idx) {
+      this.lock.readLock().lock();
+      try {
+         return this.indexes.containsKey(idx);
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // the type of index on column idx, or null if there is none
+   IndexType getIndexType(int idx) {
+      this.lock.readLock().lock();
+      try {
+         SecondaryIndex index = this.indexes.get(idx);
+         return index == null ? null : index.getType();
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // keys of records whose field idx equals value, using the column's index
+   List<String> lookup(int idx, String value) {
+      this.lock.readLock().lock();
+      try {
+         checkIfIndexExists(idx);
+         return this.indexes.get(idx).lookup(value);
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // keys of records whose field idx lies within from..to (inclusive, null
+   // for open ends), using the column's sorted index
+   List<String> lookupRange(int idx, String from, String to) {
+      this.lock.readLock().lock();
+      try {
+         checkIfIndexExists(idx);
+         return this.indexes.get(idx).range(from, to);
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // dictionary encodes column idx from now on, sharing the fields of the
+   // current records
+   void createDictionary(int idx) {
+      this.lock.writeLock().lock();
+      try {
+         checkIfColumnExists(idx);
+         if (!this.dictionaries.containsKey(idx)) {
+            this.dictionaries.put(idx, new StringDictionary());
+            if (this.mode == StorageMode.ROW) {
+               for (Record entry : this.records.values()) {
+                  entry.setField(idx, internField(idx, entry.getField(idx)));
+               }
+            }
+         }
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   void dropDictionary(int idx) {
+      this.lock.writeLock().lock();
+      try {
+         checkIfDictionaryExists(idx);
+         this.dictionaries.remove(idx);
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   boolean hasDictionary(int idx) {
+      this.lock.readLock().lock();
+      try {
+         return this.dictionaries.containsKey(idx);
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // whether equal fields of column idx are always the same String: those
+   // of dictionary encoded columns of ROW tables and STRING columns of 
+   // COLUMNAR tables
+   boolean isInterned(int idx) {
+      this.lock.readLock().lock();
+      try {
+         checkIfColumnExists(idx);
+         return interningDictionary(idx) != null;
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // the String that fields of interned column idx equal to value are, or
+   // null if no record of the table has held value
+   String internedValue(int idx, String value) {
+      this.lock.readLock().lock();
+      try {
+         checkIfColumnExists(idx);
+         StringDictionary dictionary = interningDictionary(idx);
+         if (dictionary == null) {
+            System.out.println(noSuchDictionary);
+            throw new IllegalArgumentException();
+         }
+         int code = dictionary.lookup(value);
+         return code < 0 ? null : dictionary.decode(code);
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // keeps record keys ordered by the key column's type from now on
+   void enableKeyOrdering() {
+      this.lock.writeLock().lock();
+      try {
+         if (this.orderedKeys == null) {
+            checkIfKeyColumnExists();
+            FieldType keyType = getColumnType(this.keyColumn);
+            // keys equal as numbers ("1", "01") are still different keys
+            this.orderedKeys = new TreeSet<String>(keyType.comparator()
+               .thenComparing(Comparator.naturalOrder()));
+            this.orderedKeys.addAll(this.records.keySet());
+         }
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   void disableKeyOrdering() {
+      this.lock.writeLock().lock();
+      try {
+         this.orderedKeys = null;
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   boolean hasKeyOrdering() {
+      return this.orderedKeys != null;
+   }
+
+   // record keys from..to in key order (inclusive, null for open ends)
+   List<String> range(String from, String to) {
+      this.lock.readLock().lock();
+      try {
+         checkIfKeysOrdered();
+         NavigableSet<String> keys = this.orderedKeys;
+         from = from == null ? null : lowestEqual(from);
+         to = to == null ? null : highestEqual(to);
+         if (from != null && to != null) {
+            keys = keys.subSet(from, true, to, true);
+         } else if (from != null) {
+            keys = keys.tailSet(from, true);
+         } else if (to != null) {
+            keys = keys.headSet(to, true);
+         }
+         return new ArrayList<String>(keys);
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // record keys starting with prefix, in key order
+   List<String> prefix(String prefix) {
+      this.lock.readLock().lock();
+      try {
+         checkIfKeysOrdered();
+         if (getColumnType(this.keyColumn) == FieldType.STRING) {
+            // string order keeps keys with a common prefix together
+            return new ArrayList<String>(this.orderedKeys.subSet(
+               prefix, true, prefix + Character.MAX_VALUE, true));
+         }
+         List<String> keys = new ArrayList<String>();
+         for (String entry : this.orderedKeys) {
+            if (entry.startsWith(prefix)) {
+               keys.add(entry);
+            }
+         }
+         return keys;
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // the n lowest record keys, lowest first
+   List<String> first(int n) {
+      this.lock.readLock().lock();
+      try {
+         checkIfKeysOrdered();
+         return takeKeys(this.orderedKeys, n);
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   // the n highest record keys, highest first
+   List<String> last(int n) {
+      this.lock.readLock().lock();
+      try {
+         checkIfKeysOrdered();
+         return takeKeys(this.orderedKeys.descendingSet(), n);
+      } finally {
+         this.lock.readLock().unlock();
+      }
    }
 
    // --- helper methods ---
 
+   // the lowest and highest ordered keys equal to bound by the key column's
+   // type, or bound itself, so that ranges take in every spelling of a number
+   private String lowestEqual(String bound) {
+      Comparator<String> order = getColumnType(this.keyColumn).comparator();
+      String lower = this.orderedKeys.lower(bound);
+      while (lower != null && order.compare(lower, bound) == 0) {
+         bound = lower;
+         lower = this.orderedKeys.lower(lower);
+      }
+      return bound;
+   }
+
+   private String highestEqual(String bound) {
+      Comparator<String> order = getColumnType(this.keyColumn).comparator();
+      String higher = this.orderedKeys.higher(bound);
+      while (higher != null && order.compare(higher, bound) == 0) {
+         bound = higher;
+         higher = this.orderedKeys.higher(higher);
+      }
+      return bound;
+   }
+
+   // stamps a change to recordKey, keeping the version it replaces (null if
+   // the record did not exist) if any snapshot could need it; must hold the
+   // write lock or the record's stripe
+   private void recordChange(String recordKey, Record previous) {
+      long stamp = Snapshot.nextStamp();
+      this.lastChange = stamp;
+      if (Snapshot.anyOpen()) {
+         keepVersion(recordKey, previous, stamp);
+      }
+   }
+
+   private void keepVersion(String recordKey, Record previous, long stamp) {
+      this.versions.compute(recordKey, (key, older) -> new Version(previous, stamp, older));
+      Snapshot.track(this);
+   }
+
+   // the record visible at stamp, or null if it did not exist; current 
+   // column store rows are copied when asked so later updates can't show
+   private Record visibleRecord(String recordKey, long stamp, boolean copy) {
+      Version version = this.versions.get(recordKey);
+      if (version == null || version.end <= stamp) {
+         Record current = this.records.get(recordKey);
+         if (current != null && copy && this.store != null) {
+            return copyRecord(current);
+         }
+         return current;
+      }
+      return versionAt(version, stamp);
+   }
+
+   // a version chain's record visible at stamp
+   private static Record versionAt(Version version, long stamp) {
+      while (version.older != null && version.older.end > stamp) {
+         version = version.older;
+      }
+      return version.record;
+   }
+
+   // the records visible at a stamp, from the entries of the record map and
+   // the keys deleted since, taken in one pass; the current record of an 
+   // entry is read from the entry itself, under its stripe, rather than
+   // looked up again by key
+   private class SnapshotIterator implements Iterator<Record> {
+      private final long stamp;
+      private final List<Map.Entry<String,Record>> entries;
+      private final List<String> deleted = new ArrayList<>();
+      private final ArrayDeque<Record> ready = new ArrayDeque<>();
+      private int position = 0;
+
+      SnapshotIterator(long stamp) {
+         this.stamp = stamp;
+         lock.readLock().lock();
+         try {
+            this.entries = new ArrayList<>(records.entrySet());
+            for (String entry : versions.keySet()) {
+               if (!records.containsKey(entry)) {
+                  this.deleted.add(entry);
+               }
+            }
+         } finally {
+            lock.readLock().unlock();
+         }
+      }
+
+      @Override
+      public boolean hasNext() {
+         int total = total();
+         while (this.ready.isEmpty() && this.position < total) {
+            readChunk(total);
+         }
+         return !this.ready.isEmpty();
+      }
+
+      // the number of positions, of which some may have no visible record
+      int total() {
+         return this.entries.size() + this.deleted.size();
+      }
+
+      @Override
+      public Record next() {
+         if (!hasNext()) {
+            throw new NoSuchElementException();
+         }
+         return this.ready.poll();
+      }
+
+      private void readChunk(int total) {
+         int end = Math.min(this.position + SNAPSHOT_CHUNK, total);
+         lock.readLock().lock();
+         try {
+            for (; this.position < end; this.position++) {
+               Record visible = visibleAt(this.position);
+               if (visible != null) {
+                  this.ready.add(visible);
+               }
+            }
+         } finally {
+            lock.readLock().unlock();
+         }
+      }
+
+      // the record at a position, or null if none was visible; must hold 
+      // the read lock
+      Record visibleAt(int position) {
+         if (position < this.entries.size()) {
+            return visibleEntry(this.entries.get(position));
+         }
+         String recordKey = this.deleted.get(position - this.entries.size());
+         ReentrantLock stripe = stripeFor(recordKey);
+         stripe.lock();
+         try {
+            return visibleRecord(recordKey, this.stamp, true);
+         } finally {
+            stripe.unlock();
+         }
+      }
+
+      private Record visibleEntry(Map.Entry<String,Record> entry) {
+         ReentrantLock stripe = stripeFor(entry.getKey());
+         stripe.lock();
+         try {
+            Version version = versions.get(entry.getKey());
+            if (version != null && version.end > this.stamp) {
+               return versionAt(version, this.stamp);
+            }
+            Record current = entry.getValue();
+            return store != null ? copyRecord(current) : current;
+         } finally {
+            stripe.unlock();
+         }
+      }
+   }
+
+   // the positions from..to of a SnapshotIterator's pass, split in halves
+   // and read a chunk at a time under the read lock
+   private class SnapshotSpliterator implements Spliterator<Record> {
+      private final SnapshotIterator source;
+      private int position;
+      private final int end;
+
+      SnapshotSpliterator(SnapshotIterator source, int from, int to) {
+         this.source = source;
+         this.position = from;
+         this.end = to;
+      }
+
+      @Override
+      public boolean tryAdvance(Consumer<? super Record> action) {
+         while (this.position < this.end) {
+            Record visible;
+            lock.readLock().lock();
+            try {
+               visible = this.source.visibleAt(this.position++);
+            } finally {
+               lock.readLock().unlock();
+            }
+            if (visible != null) {
+               action.accept(visible);
+               return true;
+            }
+         }
+         return false;
+      }
+
+      @Override
+      public void forEachRemaining(Consumer<? super Record> action) {
+         ArrayList<Record> chunk = new ArrayList<>(SNAPSHOT_CHUNK);
+         while (this.position < this.end) {
+            int stop = Math.min(this.position + SNAPSHOT_CHUNK, this.end);
+            lock.readLock().lock();
+            try {
+               for (; this.position < stop; this.position++) {
+                  Record visible = this.source.visibleAt(this.position);
+                  if (visible != null) {
+                     chunk.add(visible);
+                  }
+               }
+            } finally {
+               lock.readLock().unlock();
+            }
+            chunk.forEach(action);
+            chunk.clear();
+         }
+      }
+
+      @Override
+      public Spliterator<Record> trySplit() {
+         int middle = (this.position + this.end) >>> 1;
+         if (middle == this.position) {
+            return null;
+         }
+         SnapshotSpliterator prefix = new SnapshotSpliterator(this.source, this.position, middle);
+         this.position = middle;
+         return prefix;
+      }
+
+      // positions left, which is more than the records left if some of
+      // them have none visible
+      @Override
+      public long estimateSize() {
+         return this.end - this.position;
+      }
+
+      @Override
+      public int characteristics() {
+         return Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE;
+      }
+   }
+
+   private void checkIfSnapshotOpen(Snapshot snapshot) {
+      if (snapshot.isClosed()) {
+         System.out.println(closedSnapshot);
+         throw new IllegalArgumentException();
+      }
+   }
+
+   // a record as it was until the change stamped end replaced it
+   private static class Version {
+      private final Record record;
+      private final long end;
+      private volatile Version older;
+
+      Version(Record record, long end, Version older) {
+         this.record = record;
+         this.end = end;
+         this.older = older;
+      }
+   }
+
+   // hash capacity that holds size entries at the default load factor
+   private static int capacityFor(int size) {
+      return (int) Math.min(Integer.MAX_VALUE, (long) (size / 0.75f) + 1);
+   }
+
+   private boolean needsExclusiveUpdate(int idx) {
+      if (idx == this.keyColumn || this.indexes.containsKey(idx)
+            || this.dictionaries.containsKey(idx)) {
+         return true;
+      }
+      FieldType type = getColumnType(idx);
+      return this.store != null && (type == FieldType.STRING || type == FieldType.BOOLEAN);
+   }
+
+   private ReentrantLock stripeFor(String recordKey) {
+      int hash = recordKey.hashCode();
+      return this.stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+   }
+
+   private static ReentrantLock[] newStripes() {
+      ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+      for (int i = 0; i < STRIPES; i++) {
+         stripes[i] = new ReentrantLock();
+      }
+      return stripes;
+   }
+
+   // must hold the write lock
+   private void buildIndex(int idx, IndexType type) {
+      checkIfColumnExists(idx);
+      SecondaryIndex index = new SecondaryIndex(idx, type, getColumnType(idx));
+      for (String entry : this.records.keySet()) {
+         index.insert(this.records.get(entry).getField(idx), entry);
+      }
+      this.indexes.put(idx, index);
+   }
+
+   // must hold the write lock
+   private void freeStorage() {
+      if (this.offHeap != null) {
+         this.offHeap.free();
+      }
+   }
+
+   // the dictionary holding the fields of column idx, if they are shared
+   private StringDictionary interningDictionary(int idx) {
+      if (this.mode == StorageMode.ROW) {
+         return this.dictionaries.get(idx);
+      }
+      if (this.store != null && getColumnType(idx) == FieldType.STRING) {
+         return this.store.getDictionary(idx);
+      }
+      return null;
+   }
+
+   // the shared instance of a field of dictionary encoded column idx, or the
+   // field itself if the column is not encoded; must hold the write lock
+   private String internField(int idx, String field) {
+      StringDictionary dictionary = this.dictionaries.get(idx);
+      if (dictionary == null) {
+         return field;
+      }
+      String shared = dictionary.decode(dictionary.encode(field));
+      if (dictionary.size() > DICTIONARY_LIMIT) {
+         dictionary = compactDictionary(idx);
+         if (dictionary != null) {
+            // field isn't stored yet, so it was not among the current fields
+            shared = dictionary.decode(dictionary.encode(shared));
+         }
+      }
+      return shared;
+   }
+
+   // rebuilds the dictionary of column idx from the fields the records hold
+   // now, forgetting values they no longer hold, or drops it if they hold
+   // more than MAX_DICTIONARY_SIZE distinct values; must hold the write lock
+   private StringDictionary compactDictionary(int idx) {
+      StringDictionary live = new StringDictionary();
+      for (Record entry : this.records.values()) {
+         live.encode(entry.getField(idx));
+         if (live.size() > MAX_DICTIONARY_SIZE) {
+            this.dictionaries.remove(idx);
+            return null;
+         }
+      }
+      this.dictionaries.put(idx, live);
+      return live;
+   }
+
+   // encodes the non-key columns with few distinct values among 
+   // DICTIONARY_SAMPLE records taken at even steps through data (so sorted
+   // or clustered loads are judged on all of their values), if each value
+   // repeats on average
+   private void detectDictionaries(List<Record> data) {
+      int sampled = Math.min(data.size(), DICTIONARY_SAMPLE);
+      long step = sampled == 0 ? 1 : data.size() / sampled;
+      for (int idx = 0; idx < this.columns.size(); idx++) {
+         if (idx == this.keyColumn || this.dictionaries.containsKey(idx)) {
+            continue;
+         }
+         HashSet<String> distinct = new HashSet<String>();
+         for (int i = 0; i < sampled && distinct.size() <= MAX_DICTIONARY_SIZE; i++) {
+            distinct.add(data.get((int) (i * step)).getField(idx));
+         }
+         if (distinct.size() <= MAX_DICTIONARY_SIZE && distinct.size() * 2 <= sampled) {
+            this.dictionaries.put(idx, new StringDictionary());
+         }
+      }
+   }
+
+   private List<String> takeKeys(NavigableSet<String> keys, int n) {
+      List<String> taken = new ArrayList<String>();
+      for (String entry : keys) {
+         if (taken.size() >= n) {
+            break;
+         }
+         taken.add(entry);
+      }
+      return taken;
+   }
+
+   // re-adds every record, in order, to the storage of the given mode
+   private void rebuildStorage(StorageMode mode) {
+      LinkedHashMap<String,Record> rebuilt = new LinkedHashMap<String,Record>();
+      ColumnStore newStore = null;
+      OffHeapStore newOffHeap = mode == StorageMode.OFF_HEAP ? new OffHeapStore() : null;
+      if (mode == StorageMode.COLUMNAR) {
+         FieldType[] types = new FieldType[this.columns.size()];
+         for (int i = 0; i < types.length; i++) {
+            types[i] = this.columns.get(i).getType();
+         }
+         newStore = new ColumnStore(this.keyColumn, types);
+      }
+      for (String entry : this.records.keySet()) {
+         Record data = this.records.get(entry);
+         if (newStore != null) {
+            data = newStore.add(data);
+         } else if (newOffHeap != null) {
+            data = newOffHeap.add(data);
+         } else if (mode == StorageMode.COMPACT) {
+            data = new Record(new CompactRow(data.getRow()));
+         } else if (this.mode != StorageMode.ROW) {
+            data = internFields(copyRecord(data));
+         }
+         rebuilt.put(entry, data);
+      }
+      this.records = rebuilt;
+      this.store = newStore;
+      // the old off-heap store may still back versions, so it's left to the
+      // garbage collector
+      this.offHeap = newOffHeap;
+      this.mode = mode;
+      for (SecondaryIndex index : new ArrayList<>(this.indexes.values())) {
+         buildIndex(index.getColumn(), index.getType());
+      }
+   }
+
+   // the record as this table's storage mode keeps it
+   private Record storedRecord(Record data) {
+      switch (this.mode) {
+         case COLUMNAR:
+            return this.store.add(data);
+         case COMPACT:
+            return new Record(new CompactRow(data.getRow()));
+         case OFF_HEAP:
+            return this.offHeap.add(data);
+         default:
+            return internFields(data);
+      }
+   }
+
+   private Record internFields(Record data) {
+      for (int idx : this.dictionaries.keySet()) {
+         data.setField(idx, internField(idx, data.getField(idx)));
+      }
+      return data;
+   }
+
+   private Record copyRecord(Record data) {
+      Record copy = new Record();
+      for (int i = 0; i < data.size(); i++) {
+         copy.add(data.getField(i));
+      }
+      return copy;
+   }
+
    private void checkIfUniqueKeyColumnExists(ColumnID... values) {
       int colCnt = 0;
       this.columns.clear();
@@ -144,6 +1370,27 @@ class Table {
       }
    }
 
+   private void checkIfKeysOrdered() {
+      if (this.orderedKeys == null) {
+         System.out.println(noKeyOrdering);
+         throw new IllegalArgumentException();
+      }
+   }
+
+   private void checkIfIndexExists(int idx) {
+      if (!this.indexes.containsKey(idx)) {
+         System.out.println(noSuchIndex);
+         throw new IllegalArgumentException();
+      }
+   }
+
+   private void checkIfDictionaryExists(int idx) {
+      if (!this.dictionaries.containsKey(idx)) {
+         System.out.println(noSuchDictionary);
+         throw new IllegalArgumentException();
+      }
+   }
+
    private void checkIfRecordExists(String recordKey) {
       if (!this.records.containsKey(recordKey)) {
          System.out.println(noSuchRecord);
@@ -209,6 +1456,8 @@ class Table {
       List<String> keys = test1.getKeyList();
       assert(keys.get(0).equals("key1"));
       assert(keys.get(1).equals("key2"));
+      assert(test1.getRecords().size() == 2);
+      assert(test1.getRecords().iterator().next() == testR1);
       //reset System.out
       System.out.flush();
       System.setOut(console);
@@ -271,12 +1520,587 @@ class Table {
       System.setOut(console);
    }
 
-   private void runTests() {
+   private void testColumnarStorage() {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      Table test = new Table(
+         "typed",
+         new ColumnID("key", true),
+         new ColumnID("count", false, FieldType.INT),
+         new ColumnID("price", false, FieldType.FLOAT),
+         new ColumnID("stocked", false, FieldType.BOOLEAN)
+      );
+      assert(test.getColumnType(0) == FieldType.STRING);
+      assert(test.getColumnType(1) == FieldType.INT);
+      test.add(new Record("a", "1", "2.5", "true"));
+      test.add(new Record("b", "2", "3.5", "false"));
+      // existing records move into the column store in order
+      test.setStorageMode(StorageMode.COLUMNAR);
+      assert(test.getStorageMode() == StorageMode.COLUMNAR);
+      assert(test.getColumnStore().size() == 2);
+      assert(test.select("a").getField(2).equals("2.5"));
+      test.add(new Record("c", "3", "4", "true"));
+      assert(test.select("c").getField(2).equals("4.0"));
+      assert(test.getColumnStore().getLong(2, 1) == 3);
+      test.update("b", 1, "20");
+      assert(test.select("b").getField(1).equals("20"));
+      boolean caught = false;
+      try { test.update("b", 1, "twenty"); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      try { test.add(new Record("d", "x", "1", "true")); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      assert(test.getRecordSize() == 3);
+      test.delete("a");
+      assert(test.getColumnStore().size() == 2);
+      assert(test.select("c").getField(0).equals("c"));
+      assert(test.select("b").getField(1).equals("20"));
+      List<String> keys = test.getKeyList();
+      assert(keys.get(0).equals("b"));
+      assert(keys.get(1).equals("c"));
+      // and back out again
+      test.setStorageMode(StorageMode.ROW);
+      assert(test.getColumnStore() == null);
+      assert(test.select("c").getField(3).equals("true"));
+      // INT keys keep the text they were added with
+      test = new Table("ids", new ColumnID("id", true, FieldType.INT), new ColumnID("n", false));
+      test.setStorageMode(StorageMode.COLUMNAR);
+      test.add(new Record("01", "x"));
+      test.add(new Record("4294967296", "y"));
+      assert(test.select("01").getField(0).equals("01"));
+      assert(test.select("4294967296").getField(1).equals("y"));
+      assert(test.getKeyList().equals(List.of("01", "4294967296")));
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void testSecondaryIndexes() {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      Table test = new Table(
+         "customers",
+         new ColumnID("id", true),
+         new ColumnID("email"),
+         new ColumnID("age", false, FieldType.INT)
+      );
+      test.add(new Record("c1", "a@x.com", "30"));
+      test.add(new Record("c2", "b@x.com", "9"));
+      // indexes pick up existing records
+      test.createIndex(1, IndexType.HASH);
+      test.createIndex(2, IndexType.SORTED);
+      assert(test.hasIndex(1));
+      assert(test.getIndexType(2) == IndexType.SORTED);
+      assert(test.getIndexType(0) == null);
+      test.add(new Record("c3", "a@x.com", "41"));
+      List<String> keys = test.lookup(1, "a@x.com");
+      assert(keys.size() == 2);
+      assert(keys.get(0).equals("c1"));
+      assert(keys.get(1).equals("c3"));
+      keys = test.lookupRange(2, "10", null);
+      assert(keys.size() == 2);
+      assert(keys.get(0).equals("c1"));
+      assert(keys.get(1).equals("c3"));
+      // updates and deletes keep indexes current
+      test.update("c1", 1, "c@x.com");
+      assert(test.lookup(1, "a@x.com").size() == 1);
+      assert(test.lookup(1, "c@x.com").get(0).equals("c1"));
+      test.delete("c3");
+      assert(test.lookup(1, "a@x.com").isEmpty());
+      assert(test.lookupRange(2, null, "40").size() == 2);
+      // indexes survive a change of storage
+      test.setStorageMode(StorageMode.COLUMNAR);
+      assert(test.lookup(2, "9").get(0).equals("c2"));
+      boolean caught = false;
+      try { test.lookupRange(1, "a", "b"); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      test.dropIndex(1);
+      assert(!test.hasIndex(1));
+      try { test.lookup(1, "c@x.com"); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void testKeyOrdering() {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      Table test = new Table(
+         "buckets",
+         new ColumnID("hour", true, FieldType.INT),
+         new ColumnID("hits")
+      );
+      boolean caught = false;
+      try { test.first(1); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      test.add(new Record("10", "a"));
+      test.add(new Record("9", "b"));
+      test.enableKeyOrdering();
+      assert(test.hasKeyOrdering());
+      test.add(new Record("100", "c"));
+      test.add(new Record("11", "d"));
+      // numeric order, not insertion or string order
+      List<String> keys = test.range("9", "11");
+      assert(keys.size() == 3);
+      assert(keys.get(0).equals("9"));
+      assert(keys.get(1).equals("10"));
+      assert(keys.get(2).equals("11"));
+      assert(test.range("12", null).get(0).equals("100"));
+      assert(test.range(null, "9").size() == 1);
+      keys = test.prefix("1");
+      assert(keys.size() == 3);
+      assert(keys.get(0).equals("10"));
+      assert(keys.get(2).equals("100"));
+      assert(test.first(2).get(1).equals("10"));
+      keys = test.last(2);
+      assert(keys.get(0).equals("100"));
+      assert(keys.get(1).equals("11"));
+      assert(test.last(10).size() == 4);
+      test.delete("100");
+      assert(test.last(1).get(0).equals("11"));
+      // insertion order is unaffected
+      assert(test.getKeyList().get(0).equals("10"));
+      // keys equal as numbers are kept apart, and both are in range
+      test.add(new Record("1", "e"));
+      test.add(new Record("01", "f"));
+      assert(test.first(10).size() == 5);
+      keys = test.range("1", "1");
+      assert(keys.size() == 2);
+      assert(keys.contains("1") && keys.contains("01"));
+      assert(test.range("01", "9").size() == 3);
+      test.delete("01");
+      assert(test.first(1).get(0).equals("1"));
+      assert(test.range("1", "1").equals(List.of("1")));
+      Table strings = new Table("s", new ColumnID("k", true));
+      strings.enableKeyOrdering();
+      strings.add(new Record("2024-01-02"));
+      strings.add(new Record("2024-02-01"));
+      strings.add(new Record("2024-01-01"));
+      keys = strings.prefix("2024-01");
+      assert(keys.size() == 2);
+      assert(keys.get(0).equals("2024-01-01"));
+      strings.disableKeyOrdering();
+      try { strings.prefix("2024"); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void testConcurrentUpdates() throws InterruptedException {
+      Table test = new Table(
+         "counters",
+         new ColumnID("key", true),
+         new ColumnID("count", false, FieldType.INT),
+         new ColumnID("note")
+      );
+      for (int i = 0; i < 64; i++) {
+         test.add(new Record("k" + i, "0", ""));
+      }
+      test.createIndex(2, IndexType.HASH);
+      Thread[] workers = new Thread[8];
+      for (int t = 0; t < workers.length; t++) {
+         final int id = t;
+         workers[t] = new Thread(() -> {
+            for (int round = 0; round < 100; round++) {
+               // each worker owns 8 counters and shares the table with adds
+               for (int i = id * 8; i < id * 8 + 8; i++) {
+                  String key = "k" + i;
+                  int count = Integer.parseInt(test.select(key).getField(1));
+                  test.update(key, 1, Integer.toString(count + 1));
+               }
+               test.update("k" + (id * 8), 2, "round" + round);
+               test.add(new Record("w" + id + "_" + round, "0", ""));
+               test.delete("w" + id + "_" + round);
+            }
+         });
+         workers[t].start();
+      }
+      for (Thread worker : workers) {
+         worker.join();
+      }
+      assert(test.getRecordSize() == 64);
+      for (int i = 0; i < 64; i++) {
+         assert(test.select("k" + i).getField(1).equals("100"));
+      }
+      assert(test.lookup(2, "round99").size() == 8);
+      // columnar tables too
+      test.setStorageMode(StorageMode.COLUMNAR);
+      workers[0] = new Thread(() -> test.update("k0", 1, "7"));
+      workers[1] = new Thread(() -> test.update("k1", 1, "8"));
+      workers[0].start();
+      workers[1].start();
+      workers[0].join();
+      workers[1].join();
+      assert(test.getColumnStore().getLong(test.getColumnStore().rowOf(test.select("k1")), 1) == 8);
+   }
+
+   private void testSnapshotReads() {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      Table test = new Table("versions", new ColumnID("key", true), new ColumnID("v"));
+      test.add(new Record("a", "1"));
+      test.add(new Record("b", "1"));
+      Record before = test.select("a");
+      Snapshot snap = test.snapshot();
+      test.update("a", 1, "2");
+      test.delete("b");
+      test.add(new Record("c", "1"));
+      // the snapshot still sees the table as it was
+      assert(test.select("a", snap).getField(1).equals("1"));
+      assert(test.select("b", snap).getField(1).equals("1"));
+      assert(before.getField(1).equals("1"));
+      assert(test.select("a").getField(1).equals("2"));
+      List<String> keys = test.getKeyList(snap);
+      assert(keys.size() == 2);
+      assert(keys.get(0).equals("a"));
+      assert(keys.get(1).equals("b"));
+      boolean caught = false;
+      try { test.select("c", snap); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      Snapshot later = test.snapshot();
+      test.update("a", 1, "3");
+      assert(test.select("a", later).getField(1).equals("2"));
+      assert(test.select("a", snap).getField(1).equals("1"));
+      int count = 0;
+      for (Record entry : test.getRecords(later)) {
+         count++;
+      }
+      assert(count == 2);
+      // versions only the closed snapshot needed are collected
+      snap.close();
+      test.collectVersions(Snapshot.oldestOpen());
+      assert(test.select("a", later).getField(1).equals("2"));
+      assert(test.getVersionedSize() == 1);
+      later.close();
+      test.collectVersions(Snapshot.oldestOpen());
+      assert(test.getVersionedSize() == 0);
+      try { test.select("a", later); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      // iterating a snapshot sees changed, deleted and added records as they
+      // were, across chunks
+      Table many = new Table("many", new ColumnID("key", true), new ColumnID("v"));
+      for (int i = 0; i < SNAPSHOT_CHUNK * 2 + 10; i++) {
+         many.add(new Record("k" + i, "0"));
+      }
+      Snapshot scan = many.snapshot();
+      Iterator<Record> rows = many.getRecords(scan).iterator();
+      rows.next();
+      many.update("k1", 1, "1");
+      many.update("k2000", 1, "1");
+      many.delete("k3");
+      many.add(new Record("new", "1"));
+      int seen = 1;
+      while (rows.hasNext()) {
+         Record entry = rows.next();
+         assert(entry.getField(1).equals("0"));
+         seen++;
+      }
+      assert(seen == SNAPSHOT_CHUNK * 2 + 10);
+      List<String> scanned = new ArrayList<>();
+      for (Record entry : many.getRecords(scan)) {
+         scanned.add(entry.getField(0));
+      }
+      assert(scanned.equals(many.getKeyList(scan)));
+      scan.close();
+      // columnar rows are copied so snapshots don't see later updates
+      test.setStorageMode(StorageMode.COLUMNAR);
+      Snapshot columnar = test.snapshot();
+      Record old = test.select("a", columnar);
+      test.update("a", 1, "4");
+      assert(old.getField(1).equals("3"));
+      assert(test.select("a", columnar).getField(1).equals("3"));
+      assert(test.select("a").getField(1).equals("4"));
+      columnar.close();
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void testCompactStorage() {
+      Table test = new Table("compact", new ColumnID("key", true), new ColumnID("v"));
+      Record given = new Record("a", "1");
+      test.add(given);
+      test.setStorageMode(StorageMode.COMPACT);
+      assert(test.getStorageMode() == StorageMode.COMPACT);
+      assert(test.select("a").getRow() instanceof CompactRow);
+      test.add(new Record("b", "caf\u00e9"));
+      test.update("a", 1, "2");
+      assert(test.select("a").getField(1).equals("2"));
+      assert(test.select("b").getField(1).equals("caf\u00e9"));
+      // stored rows are copies, even of records added in this mode
+      assert(given.getField(1).equals("1"));
+      test.addAll(List.of(new Record("c", "3")));
+      assert(test.select("c").getRow() instanceof CompactRow);
+      // old versions stay readable and updates keep rows compact
+      Snapshot snap = test.snapshot();
+      test.update("c", 1, "4");
+      assert(test.select("c", snap).getField(1).equals("3"));
+      assert(test.select("c").getRow() instanceof CompactRow);
+      snap.close();
+      test.delete("b");
+      test.setStorageMode(StorageMode.ROW);
+      assert(!(test.select("a").getRow() instanceof CompactRow));
+      assert(test.select("c").getField(1).equals("4"));
+      assert(test.getRecordSize() == 2);
+   }
+
+   private void testOffHeapStorage() {
+      Table test = new Table("offheap", new ColumnID("key", true), 
+         new ColumnID("v", false, FieldType.INT));
+      test.add(new Record("a", "1"));
+      test.setStorageMode(StorageMode.OFF_HEAP);
+      OffHeapStore store = test.getOffHeapStore();
+      assert(store != null);
+      test.add(new Record("b", "2"));
+      test.addAll(List.of(new Record("c", "3"), new Record("d", "4")));
+      test.createIndex(1, IndexType.SORTED);
+      test.update("a", 1, "5");
+      assert(test.select("a").getField(1).equals("5"));
+      assert(test.lookup(1, "5").equals(List.of("a")));
+      long live = store.getLiveBytes();
+      // old versions stay readable, and deletes leave the bytes unused
+      Snapshot snap = test.snapshot();
+      test.update("b", 1, "6");
+      test.delete("c");
+      assert(test.select("b", snap).getField(1).equals("2"));
+      assert(test.select("c", snap).getField(1).equals("3"));
+      assert(test.select("b").getField(1).equals("6"));
+      snap.close();
+      assert(store.getLiveBytes() < live * 2);
+      // repeated updates, with and without a snapshot open, reuse the space
+      Table churn = new Table("churn", new ColumnID("key", true), 
+         new ColumnID("v", false, FieldType.INT), new ColumnID("pad"));
+      churn.setStorageMode(StorageMode.OFF_HEAP);
+      String padding = "p".repeat(2000);
+      churn.add(new Record("a", "0", padding));
+      for (int i = 1; i <= 2000; i++) {
+         Snapshot during = i % 2 == 0 ? churn.snapshot() : null;
+         churn.update("a", 1, Integer.toString(i));
+         churn.add(new Record("t", Integer.toString(i), padding));
+         churn.delete("t");
+         if (during != null) {
+            assert(churn.select("a", during).getField(1).equals(Integer.toString(i - 1)));
+            during.close();
+         }
+      }
+      assert(churn.select("a").getField(1).equals("2000"));
+      assert(churn.getOffHeapStore().getAllocatedBytes() <= 2L * OffHeapStore.BLOCK_SIZE);
+      // moving out of OFF_HEAP copies rows back onto the heap
+      test.setStorageMode(StorageMode.ROW);
+      assert(test.getOffHeapStore() == null);
+      assert(test.select("d").getField(1).equals("4"));
+      assert(test.getRecordSize() == 3);
+      test.setStorageMode(StorageMode.OFF_HEAP);
+      Record held = test.select("a");
+      test.free();
+      assert(test.getOffHeapStore().isFreed() == true);
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      boolean caught = false;
+      try { held.getField(1); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void testBulkLoad() {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      Table test = new Table("bulk", new ColumnID("key", true), 
+         new ColumnID("n", false, FieldType.INT));
+      test.add(new Record("k0", "0"));
+      test.createIndex(1, IndexType.HASH);
+      test.enableKeyOrdering();
+      ArrayList<Record> batch = new ArrayList<>();
+      for (int i = 1; i <= 1000; i++) {
+         batch.add(new Record("k" + i, Integer.toString(i % 10)));
+      }
+      test.addAll(batch);
+      assert(test.getRecordSize() == 1001);
+      assert(test.getKeyList().get(1).equals("k1"));
+      assert(test.lookup(1, "3").size() == 100);
+      assert(test.first(1).get(0).equals("k0"));
+      // any bad record stops the whole batch
+      boolean caught = false;
+      try { test.addAll(List.of(new Record("new", "1"), new Record("k5", "1"))); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      try { test.addAll(List.of(new Record("x", "1"), new Record("x", "2"))); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      test.setStorageMode(StorageMode.COLUMNAR);
+      try { test.addAll(List.of(new Record("y", "1"), new Record("z", "one"))); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      assert(test.getRecordSize() == 1001);
+      assert(test.getColumnStore().size() == 1001);
+      test.ensureCapacity(5000);
+      test.addAll(List.of(new Record("y", "1")));
+      assert(test.select("y").getField(1).equals("1"));
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void testDictionaries() {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      Table test = new Table("orders", new ColumnID("key", true),
+         new ColumnID("status", false), new ColumnID("note", false));
+      ArrayList<Record> batch = new ArrayList<>();
+      for (int i = 0; i < 1000; i++) {
+         // fresh Strings, as split makes them
+         batch.add(new Record("o" + i, new String(i % 3 == 0 ? "open" : "shipped"),
+            "note " + i));
+      }
+      test.addAll(batch);
+      // only the low-cardinality column is encoded on load
+      assert(test.hasDictionary(1) == true);
+      assert(test.hasDictionary(0) == false);
+      assert(test.hasDictionary(2) == false);
+      String open = test.internedValue(1, "open");
+      assert(test.select("o0").getField(1) == open);
+      assert(test.select("o3").getField(1) == open);
+      assert(test.internedValue(1, "lost") == null);
+      test.update("o1", 1, new String("open"));
+      assert(test.select("o1").getField(1) == open);
+      test.add(new Record("o1000", new String("open"), "late"));
+      assert(test.select("o1000").getField(1) == open);
+      // columns can be encoded later, and storage changes keep sharing
+      test.createDictionary(2);
+      test.update("o5", 2, "note 7");
+      assert(test.select("o5").getField(2) == test.select("o7").getField(2));
+      test.setStorageMode(StorageMode.COMPACT);
+      assert(test.isInterned(1) == false);
+      test.setStorageMode(StorageMode.ROW);
+      assert(test.isInterned(1) == true);
+      assert(test.select("o6").getField(1) == test.internedValue(1, "open"));
+      test.dropDictionary(2);
+      assert(test.isInterned(2) == false);
+      boolean caught = false;
+      try { test.dropDictionary(2); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      try { test.internedValue(0, "o1"); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      // tables loaded into after they hold records aren't re-examined
+      Table unique = new Table("unique", new ColumnID("key", true), new ColumnID("v", false));
+      unique.add(new Record("a", "x"));
+      unique.addAll(List.of(new Record("b", "x"), new Record("c", "x")));
+      assert(unique.hasDictionary(1) == false);
+      // loads are sampled all the way through, not just at the front
+      Table clustered = new Table("clustered", new ColumnID("key", true), new ColumnID("v", false));
+      batch = new ArrayList<>();
+      for (int i = 0; i < 200000; i++) {
+         batch.add(new Record("k" + i, i < 10000 ? "same" : "v" + i));
+      }
+      clustered.addAll(batch);
+      assert(clustered.hasDictionary(1) == false);
+      // values no record holds any more are dropped as the dictionary grows
+      Table churn = new Table("churn", new ColumnID("key", true), new ColumnID("v", false));
+      batch = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+         batch.add(new Record("k" + i, "s" + (i % 4)));
+      }
+      churn.addAll(batch);
+      assert(churn.hasDictionary(1) == true);
+      for (int i = 0; i < 5000; i++) {
+         churn.update("k" + (i % 100), 1, "t" + i);
+      }
+      assert(churn.hasDictionary(1) == true);
+      String last = churn.internedValue(1, "t4999");
+      assert(last != null && churn.select("k99").getField(1) == last);
+      assert(churn.internedValue(1, "t0") == null);
+      for (int i = 0; i < 100; i++) {
+         churn.update("k" + i, 1, new String("t4999"));
+      }
+      assert(churn.select("k0").getField(1) == churn.internedValue(1, "t4999"));
+      // and the dictionary goes once the column stops repeating
+      Table spread = new Table("spread", new ColumnID("key", true), new ColumnID("v", false));
+      batch = new ArrayList<>();
+      for (int i = 0; i < 2000; i++) {
+         batch.add(new Record("k" + i, "same"));
+      }
+      spread.addAll(batch);
+      for (int i = 0; i < 2000; i++) {
+         spread.update("k" + i, 1, "v" + i);
+      }
+      assert(spread.hasDictionary(1) == false);
+      assert(spread.select("k1999").getField(1).equals("v1999"));
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void runTests() throws InterruptedException {
       testTableCreation();
       testTableManipulation();
+      testColumnarStorage();
+      testSecondaryIndexes();
+      testKeyOrdering();
+      testConcurrentUpdates();
+      testSnapshotReads();
+      testBulkLoad();
+      testCompactStorage();
+      testOffHeapStorage();
+      testDictionaries();
    }
 
-   public static void main(String[] args) {
+   public static void main(String[] args) throws InterruptedException {
       Table program = new Table();
       program.runTests();
    }
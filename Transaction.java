@@ -0,0 +1,316 @@
+/* This class groups changes to the tables of a database so they take effect
+ * together or not at all. A transaction is begun on a Database and reads the
+ * database through a Snapshot taken at that point, along with its own
+ * changes, which are kept in a private workspace of records by table and key
+ * (a null record marks a delete) until commit. Adds, updates and deletes are
+ * checked against that view as they are made. Commit is optimistic: nothing
+ * is locked while the transaction runs, and at commit the changed tables are
+ * locked in name order, every changed record is checked against later
+ * changes by other writers (which cause the commit to fail and be rolled
+ * back), and the changes are applied so that snapshots see all or none of
+ * them. A logged database logs the changes as one entry and makes it durable
+ * before commit returns. Rolling back just throws the workspace away.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.io.*;
+
+class Transaction implements AutoCloseable {
+   private Database database;
+   private Snapshot snapshot;
+   private LinkedHashMap<String,LinkedHashMap<String,Record>> writes;
+   private boolean active = true;
+
+   private static final String noSuchRecord = "No such record exists in table.";
+   private static final String duplicateKey = "Duplicate record keys in table.";
+   private static final String sizeMismatch = "Records are not the same size.";
+   private static final String notActive = "Transaction is not active.";
+
+   Transaction(Database database, Snapshot snapshot) {
+      this.database = database;
+      this.snapshot = snapshot;
+      this.writes = new LinkedHashMap<String,LinkedHashMap<String,Record>>();
+   }
+
+   boolean isActive() {
+      return this.active;
+   }
+
+   Snapshot getSnapshot() {
+      return this.snapshot;
+   }
+
+   // changed records by table and key; null records are deletes
+   Map<String,LinkedHashMap<String,Record>> getWrites() {
+      return this.writes;
+   }
+
+   // the record as this transaction sees it
+   Record select(String tableName, String recordKey) {
+      checkIfActive();
+      Record visible = visibleRecord(tableName, recordKey);
+      checkIfRecordExists(visible);
+      return copyRecord(visible);
+   }
+
+   void add(String tableName, Record data) {
+      checkIfActive();
+      Table table = this.database.select(tableName, this.snapshot);
+      if (data.size() != table.getColumnSize()) {
+         System.out.println(sizeMismatch);
+         throw new IndexOutOfBoundsException();
+      }
+      String recordKey = data.getField(table.getKeyColumn());
+      if (visibleRecord(tableName, recordKey) != null) {
+         System.out.println(duplicateKey);
+         throw new IllegalArgumentException();
+      }
+      workspace(tableName).put(recordKey, copyRecord(data));
+   }
+
+   void update(String tableName, String recordKey, int idx, String input) {
+      checkIfActive();
+      Record visible = visibleRecord(tableName, recordKey);
+      checkIfRecordExists(visible);
+      Record changed = copyRecord(visible);
+      changed.setField(idx, input);
+      workspace(tableName).put(recordKey, changed);
+   }
+
+   // replaces every field of the record
+   void update(String tableName, String recordKey, Record newRecord) {
+      checkIfActive();
+      Record visible = visibleRecord(tableName, recordKey);
+      checkIfRecordExists(visible);
+      if (visible.size() != newRecord.size()) {
+         System.out.println(sizeMismatch);
+         throw new IndexOutOfBoundsException();
+      }
+      workspace(tableName).put(recordKey, copyRecord(newRecord));
+   }
+
+   void delete(String tableName, String recordKey) {
+      checkIfActive();
+      checkIfRecordExists(visibleRecord(tableName, recordKey));
+      workspace(tableName).put(recordKey, null);
+   }
+
+   void commit() {
+      checkIfActive();
+      try {
+         this.database.commit(this);
+      } finally {
+         end();
+      }
+   }
+
+   void rollback() {
+      checkIfActive();
+      end();
+   }
+
+   // rolls back if neither committed nor rolled back
+   @Override
+   public void close() {
+      if (this.active) {
+         rollback();
+      }
+   }
+
+   // --- helper methods ---
+
+   private Record visibleRecord(String tableName, String recordKey) {
+      LinkedHashMap<String,Record> changes = this.writes.get(tableName);
+      if (changes != null && changes.containsKey(recordKey)) {
+         return changes.get(recordKey);
+      }
+      Table table = this.database.select(tableName, this.snapshot);
+      if (!table.contains(recordKey, this.snapshot)) {
+         return null;
+      }
+      return table.select(recordKey, this.snapshot);
+   }
+
+   private LinkedHashMap<String,Record> workspace(String tableName) {
+      return this.writes.computeIfAbsent(tableName,
+         key -> new LinkedHashMap<String,Record>());
+   }
+
+   private void end() {
+      this.active = false;
+      this.writes.clear();
+      this.snapshot.close();
+   }
+
+   private Record copyRecord(Record data) {
+      Record copy = new Record();
+      for (int i = 0; i < data.size(); i++) {
+         copy.add(data.getField(i));
+      }
+      return copy;
+   }
+
+   private void checkIfRecordExists(Record visible) {
+      if (visible == null) {
+         System.out.println(noSuchRecord);
+         throw new IllegalArgumentException();
+      }
+   }
+
+   private void checkIfActive() {
+      if (!this.active) {
+         System.out.println(notActive);
+         throw new IllegalArgumentException();
+      }
+   }
+
+   // --- testing ---
+
+   private static Database testDatabase() {
+      Database testDB = new Database("transactions");
+      Table accounts = new Table(
+         "accounts",
+         new ColumnID("key", true),
+         new ColumnID("balance", false, FieldType.INT)
+      );
+      accounts.add(new Record("a", "100"));
+      accounts.add(new Record("b", "0"));
+      testDB.add(accounts);
+      testDB.add(new Table("audit", new ColumnID("key", true), new ColumnID("note")));
+      return testDB;
+   }
+
+   private void testCommitAndRollback() {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      Database testDB = testDatabase();
+      Table accounts = testDB.select("accounts");
+      Transaction test = testDB.begin();
+      test.update("accounts", "a", 1, "60");
+      test.update("accounts", "b", 1, "40");
+      test.add("audit", new Record("t1", "a->b"));
+      // the transaction reads its own changes; nobody else sees them yet
+      assert(test.select("accounts", "a").getField(1).equals("60"));
+      assert(accounts.select("a").getField(1).equals("100"));
+      assert(testDB.select("audit").getRecordSize() == 0);
+      Snapshot before = testDB.snapshot();
+      test.commit();
+      assert(!test.isActive());
+      assert(accounts.select("a").getField(1).equals("60"));
+      assert(accounts.select("b").getField(1).equals("40"));
+      assert(testDB.select("audit").select("t1").getField(1).equals("a->b"));
+      assert(accounts.select("a", before).getField(1).equals("100"));
+      before.close();
+      // rolled back changes never show
+      try (Transaction undone = testDB.begin()) {
+         undone.delete("accounts", "a");
+         undone.add("accounts", new Record("a", "1"));
+         assert(undone.select("accounts", "a").getField(1).equals("1"));
+         undone.rollback();
+      }
+      assert(accounts.select("a").getField(1).equals("60"));
+      // changes are checked against the transaction's view
+      boolean caught = false;
+      try (Transaction invalid = testDB.begin()) {
+         invalid.add("accounts", new Record("b", "1"));
+      }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      try (Transaction invalid = testDB.begin()) {
+         invalid.delete("accounts", "c");
+      }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      try { test.commit(); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      // a change that fails while being applied undoes the ones before it
+      accounts.setStorageMode(StorageMode.COLUMNAR);
+      try (Transaction failing = testDB.begin()) {
+         failing.update("accounts", "a", 1, "0");
+         failing.update("accounts", "b", 1, "not a number");
+         failing.commit();
+      }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      assert(accounts.select("a").getField(1).equals("60"));
+      assert(accounts.select("b").getField(1).equals("40"));
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void testConflicts() throws InterruptedException {
+      //redirect System.out
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(baos);
+      PrintStream console = System.out;
+      System.setOut(out);
+      //Begin tests
+      Database testDB = testDatabase();
+      Transaction first = testDB.begin();
+      Transaction second = testDB.begin();
+      first.update("accounts", "a", 1, "90");
+      second.update("accounts", "a", 1, "80");
+      second.update("accounts", "b", 1, "20");
+      first.commit();
+      // the second transaction read "a" before the first changed it
+      boolean caught = false;
+      try { second.commit(); }
+      catch (IllegalArgumentException e) { caught = true; }
+      assert(caught == true);
+      caught = false;
+      assert(testDB.select("accounts").select("a").getField(1).equals("90"));
+      assert(testDB.select("accounts").select("b").getField(1).equals("0"));
+      // transfers retried on conflict never lose money
+      Thread[] workers = new Thread[8];
+      for (int t = 0; t < workers.length; t++) {
+         workers[t] = new Thread(() -> {
+            for (int i = 0; i < 50; i++) {
+               while (true) {
+                  try (Transaction transfer = testDB.begin()) {
+                     int a = Integer.parseInt(transfer.select("accounts", "a").getField(1));
+                     int b = Integer.parseInt(transfer.select("accounts", "b").getField(1));
+                     transfer.update("accounts", "a", 1, Integer.toString(a - 1));
+                     transfer.update("accounts", "b", 1, Integer.toString(b + 1));
+                     transfer.commit();
+                     break;
+                  } catch (IllegalArgumentException e) {
+                     // conflict; try again
+                  }
+               }
+            }
+         });
+         workers[t].start();
+      }
+      for (Thread worker : workers) {
+         worker.join();
+      }
+      Table accounts = testDB.select("accounts");
+      assert(accounts.select("a").getField(1).equals("-310"));
+      assert(accounts.select("b").getField(1).equals("400"));
+      //reset System.out
+      System.out.flush();
+      System.setOut(console);
+   }
+
+   private void runTests() throws InterruptedException {
+      testCommitAndRollback();
+      testConflicts();
+   }
+
+   public static void main(String[] args) throws InterruptedException {
+      Transaction program = new Transaction(new Database(), new Snapshot());
+      program.close();
+      program.runTests();
+   }
+}
@@ -0,0 +1,804 @@
+/* This class keeps a write-ahead log of changes made to a database since its
+ * files were last written, so that a change can be made durable by appending
+ * a few bytes instead of rewriting table files. Tables and databases with a
+ * log attached append an entry for every add, update and delete of a record
+ * and every table created or dropped. Entries are compact binary frames (a 
+ * length, a CRC32 checksum and the entry itself) which collect in memory 
+ * until commit() writes and forces them to disk. Commits are grouped: a thread
+ * whose entries were already forced by another thread's commit returns
+ * without forcing again, so concurrent writers share fsyncs. On load the log
+ * is replayed over the tables read from their files, stopping at the first
+ * incomplete or corrupt entry. The log also remembers which tables changed so
+ * a checkpoint only needs to rewrite those files before truncating the log.
+ * Entries logged by a thread between beginBatch() and endBatch() are framed
+ * together as one, so replay applies a transaction in full or not at all.
+ * Checkpoints that run alongside writers mark the log where their snapshot 
+ * was taken and afterwards cut only the entries before the mark. A change is
+ * durable once a commit() that began after it returns; transactions commit 
+ * for themselves, while plain table changes wait in memory for the next 
+ * commit, checkpoint or close. Once the log passes its checkpoint size or
+ * entry count, the checkpoint set with setCheckpoint() is started in the
+ * background. A crash between writing the table files and cutting the log 
+ * leaves entries the files already hold, so replay applies each entry as a
+ * redo: adds replace a record already there, and updates and deletes of
+ * records that are gone are skipped.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.io.*;
+
+class WriteAheadLog implements Closeable {
+   static final long DEFAULT_CHECKPOINT_SIZE = 64L * 1024 * 1024;
+   static final long DEFAULT_CHECKPOINT_ENTRIES = 1000000;
+
+   private static final byte CREATE_TABLE = 1;
+   private static final byte DROP_TABLE = 2;
+   private static final byte ADD_RECORD = 3;
+   private static final byte UPDATE_RECORD = 4;
+   private static final byte DELETE_RECORD = 5;
+   private static final byte BATCH = 6;
+   private static final int FRAME_HEADER = 8;     // length, checksum
+   private static final int WRITE_THRESHOLD = 64 * 1024;
+
+   private FileChannel channel;
+   private final Object appendLock = new Object();
+   private final Object syncLock = new Object();
+   private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+   private Set<String> dirtyTables = new LinkedHashSet<String>();
+   private long appended = 0;
+   private long durable = 0;
+   private long size;
+   private long checkpointSize = DEFAULT_CHECKPOINT_SIZE;
+   private long checkpointEntries = DEFAULT_CHECKPOINT_ENTRIES;
+   private long entries = 0;
+   private Executor checkpointExecutor;
+   private Runnable checkpoint;
+   private final AtomicBoolean checkpointing = new AtomicBoolean();
+   private long mark = 0;
+   private List<String> markedTables = new ArrayList<String>();
+   private final ThreadLocal<ByteArrayOutputStream> batch = new ThreadLocal<>();
+
+   WriteAheadLog(String filepath) throws IOException {
+      Path path = Paths.get(filepath);
+      if (path.getParent() != null) {
+         Files.createDirectories(path.getParent());
+      }
+      this.channel = FileChannel.open(path, StandardOpenOption.READ, 
+         StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+      this.size = this.channel.size();
+   }
+
+   // --- logging ---
+
+   void logCreateTable(Table table) {
+      Entry entry = startEntry(CREATE_TABLE, table.getName());
+      try {
+         entry.writeInt(table.getColumnSize());
+         entry.writeInt(table.getKeyColumn());
+         for (int i = 0; i < table.getColumnSize(); i++) {
+            writeString(entry, table.getColumnName(i));
+            entry.writeByte(table.getColumnType(i).ordinal());
+         }
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+      append(table.getName(), entry);
+   }
+
+   void logDropTable(String tableName) {
+      append(tableName, startEntry(DROP_TABLE, tableName));
+   }
+
+   void logAdd(String tableName, Record data) {
+      Entry entry = startEntry(ADD_RECORD, tableName);
+      try {
+         entry.writeInt(data.size());
+         for (int i = 0; i < data.size(); i++) {
+            writeString(entry, data.getField(i));
+         }
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+      append(tableName, entry);
+   }
+
+   void logUpdate(String tableName, String recordKey, int idx, String input) {
+      Entry entry = startEntry(UPDATE_RECORD, tableName);
+      try {
+         writeString(entry, recordKey);
+         entry.writeInt(idx);
+         writeString(entry, input);
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+      append(tableName, entry);
+   }
+
+   void logDelete(String tableName, String recordKey) {
+      Entry entry = startEntry(DELETE_RECORD, tableName);
+      try {
+         writeString(entry, recordKey);
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+      append(tableName, entry);
+   }
+
+   // collects the entries this thread logs from here on into one entry
+   void beginBatch() {
+      this.batch.set(new ByteArrayOutputStream());
+   }
+
+   // appends the entries collected since beginBatch as one entry
+   void endBatch() {
+      ByteArrayOutputStream frames = this.batch.get();
+      this.batch.remove();
+      if (frames == null || frames.size() == 0) {
+         return;
+      }
+      Entry entry = startEntry(BATCH, "");
+      try {
+         frames.writeTo(entry);
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+      append("", entry);
+   }
+
+   // drops the entries collected since beginBatch
+   void abortBatch() {
+      this.batch.remove();
+   }
+
+   // makes every entry appended so far durable
+   void commit() throws IOException {
+      long target;
+      synchronized (this.appendLock) {
+         target = this.appended;
+      }
+      synchronized (this.syncLock) {
+         if (this.durable >= target) {
+            // forced by a commit that ran while we waited
+            return;
+         }
+         long upTo;
+         synchronized (this.appendLock) {
+            upTo = this.appended;
+            writePending();
+         }
+         this.channel.force(false);
+         this.durable = upTo;
+      }
+   }
+
+   // --- replay and checkpoints ---
+
+   // applies the logged changes to database; returns the number of entries
+   // applied. Anything after the first incomplete entry is cut off the log.
+   int replay(Database database) throws IOException {
+      long position = 0;
+      int applied = 0;
+      ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+      while (true) {
+         header.clear();
+         if (!readFully(header, position)) {
+            break;
+         }
+         int length = header.getInt(0);
+         if (length <= 0 || position + FRAME_HEADER + length > this.size) {
+            break;
+         }
+         ByteBuffer payload = ByteBuffer.allocate(length);
+         readFully(payload, position + FRAME_HEADER);
+         CRC32 crc = new CRC32();
+         crc.update(payload.array());
+         if ((int) crc.getValue() != header.getInt(4)) {
+            break;
+         }
+         apply(database, new DataInputStream(new ByteArrayInputStream(payload.array())));
+         // replayed changes are only in the log until the tables are saved
+         synchronized (this.appendLock) {
+            noteChange(this.dirtyTables, payload.array(), 0, length);
+            this.entries++;
+         }
+         position += FRAME_HEADER + length;
+         applied++;
+      }
+      if (position < this.size) {
+         this.channel.truncate(position);
+         this.size = position;
+      }
+      return applied;
+   }
+
+   // tables changed since the log was last truncated, in order of first change
+   List<String> getDirtyTables() {
+      synchronized (this.appendLock) {
+         return new ArrayList<String>(this.dirtyTables);
+      }
+   }
+
+   long getSize() {
+      synchronized (this.appendLock) {
+         return this.size + this.pending.size();
+      }
+   }
+
+   void setCheckpointSize(long checkpointSize) {
+      this.checkpointSize = checkpointSize;
+   }
+
+   void setCheckpointEntries(long checkpointEntries) {
+      this.checkpointEntries = checkpointEntries;
+   }
+
+   // entries appended since the log was last cut
+   long getEntries() {
+      synchronized (this.appendLock) {
+         return this.entries;
+      }
+   }
+
+   boolean needsCheckpoint() {
+      return getSize() >= this.checkpointSize || getEntries() >= this.checkpointEntries;
+   }
+
+   // runs checkpoint on executor whenever an append leaves the log needing 
+   // one, never more than one at a time; null for none
+   void setCheckpoint(Executor executor, Runnable checkpoint) {
+      this.checkpointExecutor = executor;
+      this.checkpoint = checkpoint;
+   }
+
+   // empties the log once its changes have been written to the table files
+   void truncate() throws IOException {
+      synchronized (this.syncLock) {
+         synchronized (this.appendLock) {
+            this.pending.reset();
+            this.dirtyTables.clear();
+            this.channel.truncate(0);
+            this.channel.force(false);
+            this.size = 0;
+            this.entries = 0;
+            this.durable = this.appended;
+            this.mark = 0;
+            this.markedTables = new ArrayList<String>();
+         }
+      }
+   }
+
+   // remembers the current end of the log and the tables changed before it
+   void mark() {
+      synchronized (this.appendLock) {
+         this.mark = this.size + this.pending.size();
+         this.markedTables = new ArrayList<String>(this.dirtyTables);
+      }
+   }
+
+   // tables changed before the mark
+   List<String> getMarkedTables() {
+      synchronized (this.appendLock) {
+         return new ArrayList<String>(this.markedTables);
+      }
+   }
+
+   // cuts the entries before the mark once their changes have been written to
+   // the table files; entries after it are kept
+   void truncateToMark() throws IOException {
+      synchronized (this.syncLock) {
+         synchronized (this.appendLock) {
+            writePending();
+            ByteBuffer kept = ByteBuffer.allocate((int) (this.size - this.mark));
+            readFully(kept, this.mark);
+            kept.flip();
+            this.channel.truncate(0);
+            while (kept.hasRemaining()) {
+               this.channel.write(kept, kept.position());
+            }
+            this.channel.force(false);
+            this.size = kept.limit();
+            this.entries = countFrames(kept.array());
+            this.durable = this.appended;
+            this.dirtyTables = changedTables(kept.array());
+            this.mark = 0;
+            this.markedTables = new ArrayList<String>();
+         }
+      }
+   }
+
+   @Override
+   public void close() throws IOException {
+      if (this.channel.isOpen()) {
+         commit();
+         this.channel.close();
+      }
+   }
+
+   // --- helper methods ---
+
+   private Entry startEntry(byte type, String tableName) {
+      Entry entry = new Entry();
+      try {
+         entry.writeByte(type);
+         writeString(entry, tableName);
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+      return entry;
+   }
+
+   private void append(String tableName, Entry entry) {
+      byte[] payload = entry.toByteArray();
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+      header.putInt(payload.length);
+      header.putInt((int) crc.getValue());
+      ByteArrayOutputStream frames = this.batch.get();
+      if (frames != null) {
+         frames.write(header.array(), 0, FRAME_HEADER);
+         frames.write(payload, 0, payload.length);
+         return;
+      }
+      synchronized (this.appendLock) {
+         this.pending.write(header.array(), 0, FRAME_HEADER);
+         this.pending.write(payload, 0, payload.length);
+         this.appended++;
+         this.entries++;
+         try {
+            noteChange(this.dirtyTables, payload, 0, payload.length);
+            if (this.pending.size() >= WRITE_THRESHOLD) {
+               writePending();
+            }
+         } catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }
+      }
+      if (this.checkpoint != null && needsCheckpoint()) {
+         startCheckpoint();
+      }
+   }
+
+   // appends can come from under table locks, so the checkpoint (which 
+   // snapshots every table) runs on another thread
+   private void startCheckpoint() {
+      if (!this.checkpointing.compareAndSet(false, true)) {
+         return;
+      }
+      Runnable task = () -> {
+         try {
+            this.checkpoint.run();
+         } finally {
+            this.checkpointing.set(false);
+         }
+      };
+      try {
+         this.checkpointExecutor.execute(task);
+      } catch (RuntimeException e) {
+         this.checkpointing.set(false);
+         throw e;
+      }
+   }
+
+   // number of frames in log
+   private static long countFrames(byte[] log) {
+      ByteBuffer frames = ByteBuffer.wrap(log);
+      long count = 0;
+      while (frames.remaining() >= FRAME_HEADER) {
+         int length = frames.getInt();
+         frames.getInt();
+         frames.position(frames.position() + length);
+         count++;
+      }
+      return count;
+   }
+
+   // must hold appendLock
+   private void writePending() throws IOException {
+      ByteBuffer bytes = ByteBuffer.wrap(this.pending.toByteArray());
+      while (bytes.hasRemaining()) {
+         this.size += this.channel.write(bytes, this.size);
+      }
+      this.pending.reset();
+   }
+
+   // tables changed by the entries framed in log, in order of first change
+   private static Set<String> changedTables(byte[] log) throws IOException {
+      Set<String> tables = new LinkedHashSet<String>();
+      noteChanges(tables, log, 0, log.length);
+      return tables;
+   }
+
+   // updates tables with the changes of the frames in log[offset..end)
+   private static void noteChanges(Set<String> tables, byte[] log, int offset, 
+         int end) throws IOException {
+      ByteBuffer frames = ByteBuffer.wrap(log, offset, end - offset);
+      while (frames.remaining() >= FRAME_HEADER) {
+         int length = frames.getInt();
+         frames.getInt();
+         noteChange(tables, log, frames.position(), length);
+         frames.position(frames.position() + length);
+      }
+   }
+
+   // updates tables with the change of the entry in log[offset..offset+length)
+   private static void noteChange(Set<String> tables, byte[] log, int offset, 
+         int length) throws IOException {
+      DataInputStream entry = new DataInputStream(
+         new ByteArrayInputStream(log, offset, length));
+      byte type = entry.readByte();
+      String tableName = readString(entry);
+      if (type == BATCH) {
+         noteChanges(tables, log, offset + length - entry.available(), offset + length);
+      } else if (type == DROP_TABLE) {
+         tables.remove(tableName);
+      } else {
+         tables.add(tableName);
+      }
+   }
+
+   private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+      while (buffer.hasRemaining()) {
+         if (this.channel.read(buffer, position + buffer.position()) < 0) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private void apply(Database database, DataInputStream entry) throws IOException {
+      byte type = entry.readByte();
+      String tableName = readString(entry);
+      switch (type) {
+         case CREATE_TABLE:
+            int columnCount = entry.readInt();
+            int keyColumn = entry.readInt();
+            ColumnID[] columns = new ColumnID[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+               String name = readString(entry);
+               FieldType fieldType = FieldType.values()[entry.readByte()];
+               columns[i] = new ColumnID(name, i == keyColumn, fieldType);
+            }
+            if (database.getKeyList().contains(tableName)) {
+               database.delete(tableName);
+            }
+            database.add(new Table(tableName, columns));
+            break;
+         case DROP_TABLE:
+            if (database.getKeyList().contains(tableName)) {
+               database.delete(tableName);
+            }
+            break;
+         case ADD_RECORD:
+            Record data = new Record();
+            int fieldCount = entry.readInt();
+            for (int i = 0; i < fieldCount; i++) {
+               data.add(readString(entry));
+            }
+            redoAdd(database.select(tableName), data);
+            break;
+         case UPDATE_RECORD:
+            String recordKey = readString(entry);
+            int idx = entry.readInt();
+            String input = readString(entry);
+            Table updated = database.select(tableName);
+            if (updated.find(recordKey) != null) {
+               updated.update(recordKey, idx, input);
+            }
+            break;
+         case DELETE_RECORD:
+            String deletedKey = readString(entry);
+            Table deleted = database.select(tableName);
+            if (deleted.find(deletedKey) != null) {
+               deleted.delete(deletedKey);
+            }
+            break;
+         case BATCH:
+            byte[] frames = entry.readAllBytes();
+            ByteBuffer nested = ByteBuffer.wrap(frames);
+            while (nested.remaining() >= FRAME_HEADER) {
+               int length = nested.getInt();
+               nested.getInt();
+               apply(database, new DataInputStream(
+                  new ByteArrayInputStream(frames, nested.position(), length)));
+               nested.position(nested.position() + length);
+            }
+            break;
+         default:
+            System.out.println("Unknown entry in log.");
+            throw new IOException();
+      }
+   }
+
+   // adds data, or makes the record already under its key match it
+   private static void redoAdd(Table table, Record data) {
+      String recordKey = data.getField(table.getKeyColumn());
+      Record existing = table.find(recordKey);
+      if (existing == null) {
+         table.add(data);
+         return;
+      }
+      for (int i = 0; i < data.size(); i++) {
+         if (i != table.getKeyColumn() && !existing.getField(i).equals(data.getField(i))) {
+            table.update(recordKey, i, data.getField(i));
+         }
+      }
+   }
+
+   // an entry being built in memory
+   private static class Entry extends DataOutputStream {
+      Entry() {
+         super(new ByteArrayOutputStream());
+      }
+
+      byte[] toByteArray() {
+         return ((ByteArrayOutputStream) this.out).toByteArray();
+      }
+   }
+
+   private static void writeString(DataOutputStream out, String str) throws IOException {
+      byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   private static String readString(DataInputStream in) throws IOException {
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   // --- testing ---
+
+   private static Table testTable(String name) {
+      return new Table(
+         name,
+         new ColumnID("key", true),
+         new ColumnID("count", false, FieldType.INT)
+      );
+   }
+
+   private void testReplay(Path dir) throws IOException {
+      String path = dir.resolve("replay.wal").toString();
+      WriteAheadLog test = new WriteAheadLog(path);
+      Database source = new Database("logged");
+      source.setLog(test);
+      Table first = testTable("first");
+      first.add(new Record("a", "1"));
+      source.add(first);
+      first.add(new Record("b", "2"));
+      first.update("a", 1, "10");
+      source.update("first", "b", new Record("b", "20"));
+      source.add(testTable("second"));
+      source.select("second").add(new Record("x", "0"));
+      source.select("second").delete("x");
+      source.add(testTable("third"));
+      source.delete("third");
+      List<String> dirty = test.getDirtyTables();
+      assert(dirty.size() == 2);
+      assert(dirty.get(0).equals("first"));
+      test.commit();
+      test.close();
+      // replaying onto an empty database rebuilds the changes
+      WriteAheadLog reopened = new WriteAheadLog(path);
+      Database target = new Database("logged");
+      assert(reopened.replay(target) > 0);
+      assert(target.getKeyList().size() == 2);
+      assert(target.select("first").select("a").getField(1).equals("10"));
+      assert(target.select("first").select("b").getField(1).equals("20"));
+      assert(target.select("first").getColumnType(1) == FieldType.INT);
+      assert(target.select("second").getRecordSize() == 0);
+      reopened.truncate();
+      assert(reopened.getSize() == 0);
+      assert(reopened.getDirtyTables().isEmpty());
+      reopened.close();
+   }
+
+   private void testRepeatedReplay(Path dir) throws IOException {
+      String path = dir.resolve("redo.wal").toString();
+      WriteAheadLog test = new WriteAheadLog(path);
+      test.logCreateTable(testTable("t"));
+      test.logAdd("t", new Record("a", "1"));
+      test.logAdd("t", new Record("b", "2"));
+      test.logDelete("t", "a");
+      test.logAdd("t", new Record("a", "3"));
+      test.logUpdate("t", "b", 1, "20");
+      test.logAdd("t", new Record("c", "4"));
+      test.logDelete("t", "c");
+      test.logCreateTable(testTable("u"));
+      test.logDropTable("u");
+      test.close();
+      WriteAheadLog reopened = new WriteAheadLog(path);
+      Database target = new Database();
+      assert(reopened.replay(target) == 10);
+      // as after a crash between saving the tables and cutting the log, the
+      // entries are replayed over tables that already hold them
+      Table saved = target.select("t");
+      target = new Database();
+      target.add(saved);
+      assert(reopened.replay(target) == 10);
+      assert(target.select("t").getRecordSize() == 2);
+      assert(target.select("t").select("a").getField(1).equals("3"));
+      assert(target.select("t").select("b").getField(1).equals("20"));
+      assert(target.getKeyList().equals(List.of("t")));
+      reopened.close();
+   }
+
+   private void testCheckpointTrigger(Path dir) throws IOException {
+      String path = dir.resolve("trigger.wal").toString();
+      WriteAheadLog test = new WriteAheadLog(path);
+      int[] checkpoints = new int[1];
+      test.setCheckpointEntries(3);
+      test.setCheckpoint(Runnable::run, () -> {
+         checkpoints[0]++;
+         try { test.truncate(); }
+         catch (IOException e) { throw new UncheckedIOException(e); }
+      });
+      test.logCreateTable(testTable("t"));
+      test.logAdd("t", new Record("a", "1"));
+      assert(checkpoints[0] == 0);
+      assert(test.getEntries() == 2);
+      test.logAdd("t", new Record("b", "2"));
+      assert(checkpoints[0] == 1);
+      assert(test.getEntries() == 0);
+      // by size as well as by count
+      test.setCheckpointSize(1);
+      test.logAdd("t", new Record("c", "3"));
+      assert(checkpoints[0] == 2);
+      test.setCheckpoint(null, null);
+      test.logAdd("t", new Record("d", "4"));
+      assert(checkpoints[0] == 2);
+      test.close();
+   }
+
+   private void testTornTail(Path dir) throws IOException {
+      String path = dir.resolve("torn.wal").toString();
+      WriteAheadLog test = new WriteAheadLog(path);
+      test.logCreateTable(testTable("t"));
+      test.logAdd("t", new Record("a", "1"));
+      test.logAdd("t", new Record("b", "2"));
+      test.commit();
+      long fullSize = test.getSize();
+      test.close();
+      // chop the last entry in half as if the process died mid-write
+      try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE)) {
+         channel.truncate(fullSize - 3);
+      }
+      WriteAheadLog reopened = new WriteAheadLog(path);
+      Database target = new Database();
+      assert(reopened.replay(target) == 2);
+      assert(target.select("t").getRecordSize() == 1);
+      // the torn entry is gone, so new entries follow the good ones
+      reopened.logAdd("t", new Record("c", "3"));
+      reopened.commit();
+      reopened.close();
+      reopened = new WriteAheadLog(path);
+      target = new Database();
+      assert(reopened.replay(target) == 3);
+      assert(target.select("t").select("c").getField(1).equals("3"));
+      reopened.close();
+   }
+
+   private void testBatches(Path dir) throws IOException {
+      String path = dir.resolve("batch.wal").toString();
+      WriteAheadLog test = new WriteAheadLog(path);
+      test.logCreateTable(testTable("t"));
+      test.beginBatch();
+      test.logAdd("t", new Record("a", "1"));
+      test.logAdd("t", new Record("b", "2"));
+      test.endBatch();
+      test.beginBatch();
+      test.logAdd("t", new Record("c", "3"));
+      test.abortBatch();
+      test.commit();
+      long batchedSize = test.getSize();
+      test.beginBatch();
+      test.logDelete("t", "a");
+      test.logDelete("t", "b");
+      test.endBatch();
+      test.commit();
+      long fullSize = test.getSize();
+      test.close();
+      // cutting into the second batch loses all of it
+      try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE)) {
+         channel.truncate(fullSize - 3);
+      }
+      WriteAheadLog reopened = new WriteAheadLog(path);
+      Database target = new Database();
+      assert(reopened.replay(target) == 2);
+      assert(reopened.getSize() == batchedSize);
+      assert(target.select("t").getRecordSize() == 2);
+      reopened.close();
+   }
+
+   private void testGroupCommit(Path dir) throws Exception {
+      String path = dir.resolve("group.wal").toString();
+      WriteAheadLog test = new WriteAheadLog(path);
+      test.logCreateTable(testTable("t"));
+      Thread[] writers = new Thread[8];
+      for (int t = 0; t < writers.length; t++) {
+         final int offset = t * 1000;
+         writers[t] = new Thread(() -> {
+            try {
+               for (int i = 0; i < 200; i++) {
+                  test.logAdd("t", new Record("k" + (offset + i), "1"));
+                  test.commit();
+               }
+            } catch (IOException e) {
+               throw new UncheckedIOException(e);
+            }
+         });
+         writers[t].start();
+      }
+      for (Thread writer : writers) {
+         writer.join();
+      }
+      test.close();
+      WriteAheadLog reopened = new WriteAheadLog(path);
+      Database target = new Database();
+      assert(reopened.replay(target) == 1 + 8 * 200);
+      assert(target.select("t").getRecordSize() == 1600);
+      reopened.close();
+   }
+
+   private void testTruncateToMark(Path dir) throws IOException {
+      String path = dir.resolve("mark.wal").toString();
+      WriteAheadLog test = new WriteAheadLog(path);
+      test.logCreateTable(testTable("t"));
+      test.logAdd("t", new Record("a", "1"));
+      test.mark();
+      test.logCreateTable(testTable("u"));
+      test.logAdd("u", new Record("b", "2"));
+      assert(test.getMarkedTables().size() == 1);
+      assert(test.getDirtyTables().size() == 2);
+      test.truncateToMark();
+      // only the entries after the mark are left
+      List<String> dirty = test.getDirtyTables();
+      assert(dirty.size() == 1);
+      assert(dirty.get(0).equals("u"));
+      assert(test.getMarkedTables().isEmpty());
+      test.close();
+      WriteAheadLog reopened = new WriteAheadLog(path);
+      Database target = new Database();
+      assert(reopened.replay(target) == 2);
+      assert(target.getKeyList().size() == 1);
+      assert(target.select("u").select("b").getField(1).equals("2"));
+      reopened.close();
+   }
+
+   private void runTests() throws Exception {
+      Path dir = Files.createTempDirectory("wal");
+      testReplay(dir);
+      testRepeatedReplay(dir);
+      testCheckpointTrigger(dir);
+      testTruncateToMark(dir);
+      testBatches(dir);
+      testTornTail(dir);
+      testGroupCommit(dir);
+      for (java.io.File entry : dir.toFile().listFiles()) {
+         entry.delete();
+      }
+      Files.delete(dir);
+   }
+
+   public static void main(String[] args) throws Exception {
+      Path temp = Files.createTempFile("wal", ".wal");
+      WriteAheadLog program = new WriteAheadLog(temp.toString());
+      program.close();
+      Files.delete(temp);
+      program.runTests();
+   }
+}